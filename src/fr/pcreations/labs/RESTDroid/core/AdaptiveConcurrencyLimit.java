@@ -0,0 +1,243 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.util.HashMap;
+
+/**
+ * <b>Per host limit of in-flight requests adapted to the measured round-trip time and to the failures</b>
+ * 
+ * <p>
+ * The limit follows a gradient algorithm : the latency of each response (time until the status and headers are received) is compared to the no-load latency of its host,
+ * the lowest latency among its last {@link AdaptiveConcurrencyLimit#NO_LOAD_WINDOW} to twice as many responses. While the responses are about as fast the limit grows by about the square root of the limit, as soon as they get slower than {@link AdaptiveConcurrencyLimit#TOLERANCE} times the no-load latency
+ * the requests are queuing somewhere on the network and the limit is reduced in proportion. A timeout or a 429 or 503 response reduces the limit by {@link AdaptiveConcurrencyLimit#BACKOFF_RATIO} (multiplicative decrease).
+ * The limit only grows while it is actually used, a host with few requests keeps its limit.
+ * </p>
+ * 
+ * <p>
+ * The limit is applied by {@link RequestDispatcher} to the requests waiting for a slot of their host, whatever the {@link Transport} : the exchanges of an {@link AsyncTransport} hold a slot until their response is processed.
+ * See {@link RequestDispatcher#setConcurrencyLimit(AdaptiveConcurrencyLimit)}.
+ * The current limit of a host is given by {@link AdaptiveConcurrencyLimit#getLimit(String)}.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public class AdaptiveConcurrencyLimit {
+	
+	/**
+	 * Ratio between the latency of a response and the no-load latency of its host below which the limit is not reduced
+	 */
+	public static final double TOLERANCE = 1.5;
+	
+	/**
+	 * Ratio applied to the limit of a host when a request times out or is refused by the server
+	 */
+	public static final double BACKOFF_RATIO = 0.9;
+	
+	/**
+	 * Weight of a new sample in the limit, so that one slow response does not collapse it
+	 */
+	private static final double SMOOTHING = 0.2;
+	
+	/**
+	 * Number of samples over which the lowest latency of a host is taken, so that a lasting change of the network is eventually accepted
+	 */
+	public static final int NO_LOAD_WINDOW = 100;
+	
+	/**
+	 * Limit of a host before its first sample
+	 */
+	private final int mInitialLimit;
+	
+	/**
+	 * Lowest limit of a host
+	 */
+	private final int mMinLimit;
+	
+	/**
+	 * Highest limit of a host
+	 */
+	private final int mMaxLimit;
+	
+	/**
+	 * HashMap to store the state of the hosts
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : host (and port if not default)</li>
+	 * <li><b>value</b> : the limit and latencies of the host</li>
+	 * </ul>
+	 * </p>
+	 */
+	private final HashMap<String, HostLimit> mHosts;
+	
+	/**
+	 * Constructor. The limit of a host starts at 6 and stays between 1 and 20
+	 */
+	public AdaptiveConcurrencyLimit() {
+		this(6, 1, 20);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param initialLimit
+	 * 		Limit of a host before its first response
+	 * 
+	 * @param minLimit
+	 * 		Lowest limit of a host, at least 1
+	 * 
+	 * @param maxLimit
+	 * 		Highest limit of a host. With a blocking {@link Transport} the number of worker threads of the {@link RequestDispatcher} is a limit as well
+	 */
+	public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+		if(minLimit < 1 || maxLimit < minLimit)
+			throw new IllegalArgumentException("Limits must verify 1 <= minLimit <= maxLimit");
+		if(initialLimit < minLimit || initialLimit > maxLimit)
+			throw new IllegalArgumentException("Initial limit must be in [minLimit, maxLimit]");
+		mInitialLimit = initialLimit;
+		mMinLimit = minLimit;
+		mMaxLimit = maxLimit;
+		mHosts = new HashMap<String, HostLimit>();
+	}
+	
+	/**
+	 * Updates the limit of a host with the outcome of one of its requests
+	 * 
+	 * @param host
+	 * 		Host of the request
+	 * 
+	 * @param rtt
+	 * 		Time in milliseconds between the start of the exchange and the reception of the response headers
+	 * 
+	 * @param inFlight
+	 * 		Number of requests of the host in flight when the response has been received
+	 * 
+	 * @param dropped
+	 * 		True if the request timed out or the server refused it because it is overloaded
+	 */
+	public synchronized void onSample(String host, long rtt, int inFlight, boolean dropped) {
+		HostLimit hostLimit = mHosts.get(host);
+		if(null == hostLimit) {
+			hostLimit = new HostLimit(mInitialLimit);
+			mHosts.put(host, hostLimit);
+		}
+		if(dropped) {
+			hostLimit.mLimit = Math.max(mMinLimit, hostLimit.mLimit * BACKOFF_RATIO);
+			return;
+		}
+		double sample = Math.max(1, rtt);
+		if(hostLimit.mWindowRtt == 0 || sample < hostLimit.mWindowRtt)
+			hostLimit.mWindowRtt = sample;
+		if(++hostLimit.mWindowSamples == NO_LOAD_WINDOW) {
+			hostLimit.mPreviousWindowRtt = hostLimit.mWindowRtt;
+			hostLimit.mWindowRtt = 0;
+			hostLimit.mWindowSamples = 0;
+		}
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * hostLimit.getNoLoadRtt() / sample));
+		double newLimit = hostLimit.mLimit * gradient + Math.sqrt(hostLimit.mLimit);
+		/* A limit which is not reached has not been tested : it must not grow */
+		if(inFlight < hostLimit.mLimit / 2)
+			newLimit = Math.min(newLimit, hostLimit.mLimit);
+		newLimit = hostLimit.mLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+		hostLimit.mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, newLimit));
+	}
+	
+	/**
+	 * Returns the current limit of a host
+	 * 
+	 * @param host
+	 * 		The host, followed by ":port" if the port is not the default one
+	 * 
+	 * @return
+	 * 		Maximum number of in-flight requests for this host
+	 */
+	public synchronized int getLimit(String host) {
+		HostLimit hostLimit = mHosts.get(host);
+		return null != hostLimit ? (int) hostLimit.mLimit : mInitialLimit;
+	}
+	
+	/**
+	 * Returns the no-load latency of a host, the latency of its responses when no request is queuing
+	 * 
+	 * @param host
+	 * 		The host, followed by ":port" if the port is not the default one
+	 * 
+	 * @return
+	 * 		No-load latency in milliseconds, 0 if no response has been received from this host
+	 */
+	public synchronized long getNoLoadRtt(String host) {
+		HostLimit hostLimit = mHosts.get(host);
+		return null != hostLimit ? Math.round(hostLimit.getNoLoadRtt()) : 0;
+	}
+	
+	/**
+	 * Getter for {@link AdaptiveConcurrencyLimit#mMinLimit}
+	 * 
+	 * @return
+	 * 		Lowest limit of a host
+	 */
+	public int getMinLimit() {
+		return mMinLimit;
+	}
+	
+	/**
+	 * Getter for {@link AdaptiveConcurrencyLimit#mMaxLimit}
+	 * 
+	 * @return
+	 * 		Highest limit of a host
+	 */
+	public int getMaxLimit() {
+		return mMaxLimit;
+	}
+	
+	/**
+	 * <b>Limit and latency of a host</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class HostLimit {
+	
+		/**
+		 * Current limit, kept as a double so that small adjustments add up
+		 */
+		private double mLimit;
+	
+		/**
+		 * Lowest latency in milliseconds of the current window, 0 before its first sample
+		 */
+		private double mWindowRtt;
+	
+		/**
+		 * Lowest latency in milliseconds of the previous window, 0 during the first window
+		 */
+		private double mPreviousWindowRtt;
+	
+		/**
+		 * Number of samples in the current window
+		 */
+		private int mWindowSamples;
+	
+		public HostLimit(int limit) {
+			mLimit = limit;
+		}
+	
+		/**
+		 * Returns the lowest latency of the current and previous windows
+		 * 
+		 * @return
+		 * 		No-load latency in milliseconds
+		 */
+		public double getNoLoadRtt() {
+			if(mPreviousWindowRtt == 0)
+				return mWindowRtt;
+			if(mWindowRtt == 0)
+				return mPreviousWindowRtt;
+			return Math.min(mWindowRtt, mPreviousWindowRtt);
+		}
+	
+	}
+	
+}
@@ -0,0 +1,424 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+import fr.pcreations.labs.RESTDroid.exceptions.ConnectionTimeoutException;
+
+/**
+ * <b>{@link Transport} backed by Apache HttpClient</b>
+ * 
+ * <p>
+ * All exchanges share a single thread-safe HttpClient so that keep-alive connections are reused across the {@link WebService} thread pool.
+ * Hosts are resolved through the {@link DnsCache}.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public class ApacheTransport implements Transport {
+
+	/**
+	 * Maximum number of connections kept by the pool, all routes included
+	 */
+	private static final int MAX_TOTAL_CONNECTIONS = 20;
+	
+	/**
+	 * Maximum number of connections kept by the pool for a single route (scheme, host and port)
+	 */
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 5;
+	
+	/**
+	 * Maximum time in milliseconds a worker thread waits for a free connection in the pool
+	 */
+	private static final long TIMEOUT_CONNECTION_POOL = 10000L;
+	
+	/**
+	 * Time in milliseconds after which an idle keep-alive connection is evicted from the pool
+	 */
+	private static final long IDLE_CONNECTION_TIMEOUT = 30000L;
+	
+	/**
+	 * Shared thread-safe HttpClient
+	 * 
+	 * @see ApacheTransport#createHttpClient()
+	 */
+	private final HttpClient mHttpClient;
+	
+	/**
+	 * Constructor
+	 */
+	public ApacheTransport() {
+		mHttpClient = createHttpClient();
+	}
+	
+	/**
+	 * Creates the shared HttpClient backed by a {@link ThreadSafeClientConnManager}. The pool is bounded by {@link ApacheTransport#MAX_TOTAL_CONNECTIONS} and {@link ApacheTransport#MAX_CONNECTIONS_PER_ROUTE}
+	 * 
+	 * @return
+	 * 		Instance of HttpClient
+	 * 
+	 * @see ApacheTransport#mHttpClient
+	 */
+	private HttpClient createHttpClient() {
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+		ConnManagerParams.setTimeout(params, TIMEOUT_CONNECTION_POOL);
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry) {
+			
+			@Override
+			protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
+				return new DnsCacheConnectionOperator(schreg);
+			}
+			
+		};
+		return new DefaultHttpClient(connectionManager, params);
+	}
+	
+	/**
+	 * Closes expired connections and connections idle for more than {@link ApacheTransport#IDLE_CONNECTION_TIMEOUT}. Called each time an exchange releases its connection
+	 */
+	private void evictIdleConnections() {
+		ClientConnectionManager connectionManager = mHttpClient.getConnectionManager();
+		connectionManager.closeExpiredConnections();
+		connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Opens a connection to the origin and gives it back to the pool, where it is kept for {@link ApacheTransport#IDLE_CONNECTION_TIMEOUT}. The TLS handshake of an https origin is done as well
+	 * 
+	 * @see Transport#preconnect(URI)
+	 */
+	@Override
+	public void preconnect(URI uri) throws IOException {
+		ClientConnectionManager connectionManager = mHttpClient.getConnectionManager();
+		Scheme scheme = connectionManager.getSchemeRegistry().getScheme(uri.getScheme());
+		HttpRoute route = new HttpRoute(new HttpHost(uri.getHost(), scheme.resolvePort(uri.getPort()), scheme.getName()));
+		ClientConnectionRequest connectionRequest = connectionManager.requestConnection(route, null);
+		ManagedClientConnection connection;
+		try {
+			connection = connectionRequest.getConnection(TIMEOUT_CONNECTION_POOL, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for a connection");
+		}
+		try {
+			if(!connection.isOpen())
+				connection.open(route, new BasicHttpContext(), mHttpClient.getParams());
+			connection.markReusable();
+		} finally {
+			connectionManager.releaseConnection(connection, IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * @see Transport#newExchange(HTTPVerb, URI)
+	 */
+	@Override
+	public Exchange newExchange(HTTPVerb verb, URI uri) {
+		HttpRequestBase request;
+		switch(verb) {
+			case POST:
+				request = new HttpPost(uri);
+				break;
+			case PUT:
+				request = new HttpPut(uri);
+				break;
+			case DELETE:
+				request = new HttpDelete(uri);
+				break;
+			default:
+				request = new HttpGet(uri);
+				break;
+		}
+		return new ApacheExchange(request);
+	}
+	
+	/**
+	 * @see Transport#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		mHttpClient.getConnectionManager().shutdown();
+	}
+	
+	/**
+	 * <b>{@link Transport.Exchange} wrapping an HttpRequestBase</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private class ApacheExchange implements Exchange {
+		
+		/**
+		 * Actual HttpRequestBase
+		 */
+		private HttpRequestBase mRequest;
+		
+		/**
+		 * The response, once executed
+		 */
+		private HttpResponse mResponse;
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param request
+		 * 		Instance of HttpRequestBase
+		 */
+		public ApacheExchange(HttpRequestBase request) {
+			mRequest = request;
+		}
+		
+		@Override
+		public void addHeader(String name, String value) {
+			mRequest.addHeader(name, value);
+		}
+		
+		@Override
+		public void setHeader(String name, String value) {
+			mRequest.setHeader(name, value);
+		}
+		
+		@Override
+		public void setBody(RequestBody body) {
+			if(mRequest instanceof HttpEntityEnclosingRequest)
+				((HttpEntityEnclosingRequest) mRequest).setEntity(new RequestBodyEntity(body));
+		}
+		
+		@Override
+		public void setTimeouts(int connectTimeout, int readTimeout) {
+			HttpConnectionParams.setConnectionTimeout(mRequest.getParams(), connectTimeout);
+			HttpConnectionParams.setSoTimeout(mRequest.getParams(), readTimeout);
+		}
+		
+		@Override
+		public int execute() throws IOException {
+			try {
+				mResponse = mHttpClient.execute(mRequest, new BasicHttpContext());
+			} catch (ConnectTimeoutException e) {
+				throw new ConnectionTimeoutException(e.getMessage());
+			} catch (ClientProtocolException e) {
+				ProtocolException pe = new ProtocolException(e.getMessage());
+				pe.initCause(e);
+				throw pe;
+			}
+			StatusLine responseStatus = mResponse.getStatusLine();
+			return responseStatus != null ? responseStatus.getStatusCode() : 0;
+		}
+		
+		@Override
+		public String getResponseHeader(String name) {
+			if(null == mResponse)
+				return null;
+			Header header = mResponse.getFirstHeader(name);
+			return null != header ? header.getValue() : null;
+		}
+		
+		@Override
+		public InputStream getResponseStream() throws IOException {
+			if(null == mResponse || null == mResponse.getEntity())
+				return null;
+			return mResponse.getEntity().getContent();
+		}
+		
+		@Override
+		public void abort() {
+			mRequest.abort();
+		}
+		
+		@Override
+		public void release() {
+			try {
+				if(null != mResponse) {
+					HttpEntity responseEntity = mResponse.getEntity();
+					if(null != responseEntity)
+						responseEntity.consumeContent();
+				}
+			} catch (IOException e) {
+				/* The rest of the body could not be drained, the connection cannot be reused */
+				Log.w(RestService.TAG, "Cannot release the connection of " + mRequest.getURI() + ", closing it", e);
+				mRequest.abort();
+			}
+			evictIdleConnections();
+		}
+		
+	}
+	
+	/**
+	 * <b>Adapts a {@link RequestBody} to an HttpEntity so that it is written straight to the socket</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class RequestBodyEntity extends AbstractHttpEntity {
+		
+		/**
+		 * The adapted body
+		 */
+		private RequestBody mBody;
+		
+		/**
+		 * Constructor. The entity is chunked if the body length is unknown
+		 * 
+		 * @param body
+		 * 		The {@link RequestBody} to send
+		 */
+		public RequestBodyEntity(RequestBody body) {
+			mBody = body;
+			setContentType(body.getContentType());
+			setChunked(body.getContentLength() < 0);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			/* A transferable body, like a file, can be written again */
+			return mBody.isTransferable();
+		}
+
+		@Override
+		public long getContentLength() {
+			return mBody.getContentLength();
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			throw new UnsupportedOperationException("RequestBody can only be written to a stream");
+		}
+
+		@Override
+		public void writeTo(OutputStream outstream) throws IOException {
+			mBody.writeTo(outstream);
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return true;
+		}
+		
+	}
+	
+	/**
+	 * <b>ClientConnectionOperator resolving hosts through the {@link DnsCache}</b>
+	 * 
+	 * <p>
+	 * The addresses of the host are tried in turn. For an https scheme the TLS layer is added over the connected socket, the certificate being checked against the host name.
+	 * </p>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class DnsCacheConnectionOperator extends DefaultClientConnectionOperator {
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param schemeRegistry
+		 * 		The schemes supported by the connection manager
+		 */
+		public DnsCacheConnectionOperator(SchemeRegistry schemeRegistry) {
+			super(schemeRegistry);
+		}
+		
+		@Override
+		public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local, HttpContext context, HttpParams params) throws IOException {
+			Scheme scheme = schemeRegistry.getScheme(target.getSchemeName());
+			SocketFactory socketFactory = scheme.getSocketFactory();
+			LayeredSocketFactory layeredSocketFactory = null;
+			if(socketFactory instanceof LayeredSocketFactory) {
+				layeredSocketFactory = (LayeredSocketFactory) socketFactory;
+				socketFactory = PlainSocketFactory.getSocketFactory();
+			}
+			int port = scheme.resolvePort(target.getPort());
+			InetAddress[] addresses = DnsCache.lookup(target.getHostName());
+			for(int i = 0; i < addresses.length; i++) {
+				Socket socket = socketFactory.createSocket();
+				conn.opening(socket, target);
+				try {
+					Socket connectedSocket = socketFactory.connectSocket(socket, addresses[i].getHostAddress(), port, local, 0, params);
+					if(connectedSocket != socket) {
+						socket = connectedSocket;
+						conn.opening(socket, target);
+					}
+				} catch (IOException e) {
+					if(i == addresses.length - 1) {
+						DnsCache.invalidate(target.getHostName());
+						throw e;
+					}
+					continue;
+				}
+				if(null != layeredSocketFactory) {
+					Socket layeredSocket = layeredSocketFactory.createSocket(socket, target.getHostName(), port, true);
+					if(layeredSocket != socket) {
+						socket = layeredSocket;
+						conn.opening(socket, target);
+					}
+				}
+				prepareSocket(socket, context, params);
+				conn.openCompleted(scheme.getSocketFactory().isSecure(socket), params);
+				return;
+			}
+		}
+		
+	}
+	
+}
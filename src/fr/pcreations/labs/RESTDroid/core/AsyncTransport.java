@@ -0,0 +1,66 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.IOException;
+
+/**
+ * <b>{@link Transport} able to execute exchanges without blocking the calling thread</b>
+ * 
+ * <p>
+ * {@link HttpRequestHandler} does not hold a worker thread while an asynchronous exchange is on the network : the worker is only used to process the response once it is complete.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see NioTransport
+ */
+public interface AsyncTransport extends Transport {
+	
+	/**
+	 * Starts the exchange and returns immediately. The response body is fully received before {@link ExchangeCallback#onResponse(Transport.Exchange, int)} is fired
+	 * 
+	 * @param exchange
+	 * 		Exchange created by {@link Transport#newExchange(HTTPVerb, java.net.URI)}
+	 * 
+	 * @param callback
+	 * 		Callback fired when the exchange is finished, from the transport I/O thread
+	 * 
+	 * @return
+	 * 		True if the exchange has been started, false if this exchange can only be executed with {@link Transport.Exchange#execute()}
+	 */
+	public boolean executeAsync(Exchange exchange, ExchangeCallback callback);
+	
+	/**
+	 * <b>Callback fired when an asynchronous exchange is finished</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	public interface ExchangeCallback {
+		
+		/**
+		 * The response has been fully received
+		 * 
+		 * @param exchange
+		 * 		The finished exchange
+		 * 
+		 * @param statusCode
+		 * 		The response status code
+		 */
+		public void onResponse(Exchange exchange, int statusCode);
+		
+		/**
+		 * The exchange has failed or has been aborted
+		 * 
+		 * @param exchange
+		 * 		The failed exchange
+		 * 
+		 * @param e
+		 * 		The cause of the failure
+		 */
+		public void onFailure(Exchange exchange, IOException e);
+	}
+	
+}
@@ -0,0 +1,146 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.util.ArrayList;
+
+/**
+ * <b>Shared pool of byte buffers used by the copy loops of the request path</b>
+ * 
+ * <p>
+ * Every buffer has the same size, {@link BufferPool#BUFFER_SIZE}. A buffer is taken with {@link BufferPool#acquire()} and must be given back with {@link BufferPool#release(byte[])} once it is no longer read nor written, usually in a finally block :
+ * <pre>
+ * byte[] buffer = BufferPool.acquire();
+ * try {
+ * 	int read;
+ * 	while((read = input.read(buffer)) != -1)
+ * 		output.write(buffer, 0, read);
+ * } finally {
+ * 	BufferPool.release(buffer);
+ * }
+ * </pre>
+ * At most {@link BufferPool#getMaxPooledBuffers()} free buffers are kept, the others are left to the garbage collector. A buffer which is never released is not a leak, it is simply not reused.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see SegmentedOutputStream
+ */
+public final class BufferPool {
+	
+	/**
+	 * Size in bytes of every buffer of the pool
+	 */
+	public static final int BUFFER_SIZE = 8192;
+	
+	/**
+	 * Default value of {@link BufferPool#maxPooledBuffers}, 256 KB of free buffers
+	 */
+	public static final int DEFAULT_MAX_POOLED_BUFFERS = 32;
+	
+	/**
+	 * Free buffers
+	 */
+	private static final ArrayList<byte[]> buffers = new ArrayList<byte[]>();
+	
+	/**
+	 * Maximum number of free buffers kept in {@link BufferPool#buffers}
+	 */
+	private static int maxPooledBuffers = DEFAULT_MAX_POOLED_BUFFERS;
+	
+	/**
+	 * Number of buffers handed by {@link BufferPool#acquire()}
+	 */
+	private static long acquireCount;
+	
+	/**
+	 * Number of buffers allocated because the pool was empty
+	 */
+	private static long allocationCount;
+	
+	private BufferPool() {
+	}
+	
+	/**
+	 * Takes a free buffer from the pool, or allocates one if the pool is empty
+	 * 
+	 * @return
+	 * 		A buffer of {@link BufferPool#BUFFER_SIZE} bytes. Its content is undefined
+	 */
+	public static byte[] acquire() {
+		synchronized(buffers) {
+			acquireCount++;
+			int size = buffers.size();
+			if(size > 0)
+				return buffers.remove(size - 1);
+			allocationCount++;
+		}
+		return new byte[BUFFER_SIZE];
+	}
+	
+	/**
+	 * Gives a buffer back to the pool. The buffer must not be used anymore by the caller
+	 * 
+	 * @param buffer
+	 * 		A buffer returned by {@link BufferPool#acquire()}. Buffers of another size and null are ignored
+	 */
+	public static void release(byte[] buffer) {
+		if(null == buffer || buffer.length != BUFFER_SIZE)
+			return;
+		synchronized(buffers) {
+			if(buffers.size() < maxPooledBuffers)
+				buffers.add(buffer);
+		}
+	}
+	
+	/**
+	 * Getter for {@link BufferPool#maxPooledBuffers}
+	 * 
+	 * @return
+	 * 		Maximum number of free buffers kept by the pool
+	 */
+	public static int getMaxPooledBuffers() {
+		synchronized(buffers) {
+			return maxPooledBuffers;
+		}
+	}
+	
+	/**
+	 * Setter for {@link BufferPool#maxPooledBuffers}. The free buffers above the new maximum are dropped
+	 * 
+	 * @param max
+	 * 		Maximum number of free buffers kept by the pool, 0 to disable pooling
+	 */
+	public static void setMaxPooledBuffers(int max) {
+		synchronized(buffers) {
+			maxPooledBuffers = Math.max(0, max);
+			while(buffers.size() > maxPooledBuffers)
+				buffers.remove(buffers.size() - 1);
+		}
+	}
+	
+	/**
+	 * Returns the number of buffers handed by {@link BufferPool#acquire()} since the process started
+	 * 
+	 * @return
+	 * 		The number of acquired buffers
+	 */
+	public static long getAcquireCount() {
+		synchronized(buffers) {
+			return acquireCount;
+		}
+	}
+	
+	/**
+	 * Returns the number of buffers allocated because the pool was empty, since the process started. Compared to {@link BufferPool#getAcquireCount()} it tells how well the pool is sized
+	 * 
+	 * @return
+	 * 		The number of allocated buffers
+	 */
+	public static long getAllocationCount() {
+		synchronized(buffers) {
+			return allocationCount;
+		}
+	}
+	
+}
@@ -8,11 +8,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Properties;
 
 /**
  * <b>CacheManager handles caching request in flat file</b>
  * 
+ * <p>
+ * The validators of the response (ETag and Last-Modified) are stored next to each entry so that an expired entry can be revalidated with a conditional GET.
+ * </p>
+ * 
  * @author Pierre Criulanscy
  * 
  * @version 0.8
@@ -32,11 +39,45 @@ public class CacheManager {
 	public static final long DURATION_ONE_MONTH = 30 * DURATION_ONE_WEEK;
 	public static final long DURATION_ONE_YEAR = 365 * DURATION_ONE_DAY;
 
+	/**
+	 * Suffix of the file holding the validators of a cache entry
+	 */
+	private static final String META_SUFFIX = ".meta";
+	
+	/**
+	 * Meta property holding the time at which the entry was last stored or revalidated
+	 */
+	private static final String META_FRESH_SINCE = "Fresh-Since";
+	private static final String META_ETAG = "ETag";
+	private static final String META_LAST_MODIFIED = "Last-Modified";
+
+	/**
+	 * Default value of {@link CacheManager#spillThreshold}
+	 */
+	public static final int DEFAULT_SPILL_THRESHOLD = 256 * 1024;
+	
+	/**
+	 * Name of the directory of {@link CacheManager#cacheDir} holding the responses spilled to disk
+	 */
+	private static final String SPILL_DIR = "responses";
+
 	/**
 	 * Android cache directory
 	 */
 	private static File cacheDir;
 	
+	/**
+	 * Size in bytes above which a response is buffered in a temporary file instead of memory
+	 * 
+	 * @see CacheManager#setSpillThreshold(int)
+	 */
+	private static volatile int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+	
+	/**
+	 * Boolean to know if the files left in the spill directory by a previous process have been deleted
+	 */
+	private static boolean spillDirCleaned = false;
+	
 	private CacheManager(){}
 	
 	/**
@@ -59,6 +100,55 @@ public class CacheManager {
 		return CacheManager.cacheDir;
 	}
 	
+	/**
+	 * Getter for {@link CacheManager#spillThreshold}
+	 * 
+	 * @return
+	 * 		Size in bytes above which a response is buffered in a temporary file
+	 * 
+	 * @since 0.9
+	 */
+	public static int getSpillThreshold() {
+		return spillThreshold;
+	}
+	
+	/**
+	 * Setter for {@link CacheManager#spillThreshold}. Smaller responses stay in memory, larger ones are written in {@link CacheManager#getSpillDir()} and read back from there by {@link RESTRequest#getResultStream()}
+	 * 
+	 * @param threshold
+	 * 		Size in bytes, Integer.MAX_VALUE to always keep responses in memory
+	 * 
+	 * @since 0.9
+	 */
+	public static void setSpillThreshold(int threshold) {
+		spillThreshold = threshold;
+	}
+	
+	/**
+	 * Returns the directory holding the responses larger than {@link CacheManager#getSpillThreshold()}, creating it if needed. The files left by a previous process are deleted the first time
+	 * 
+	 * @return
+	 * 		The directory, or null if {@link CacheManager#cacheDir} is not set or the directory cannot be created
+	 * 
+	 * @since 0.9
+	 */
+	public static synchronized File getSpillDir() {
+		if(null == cacheDir)
+			return null;
+		File dir = new File(cacheDir, SPILL_DIR);
+		if(!dir.isDirectory() && !dir.mkdirs())
+			return null;
+		if(!spillDirCleaned) {
+			spillDirCleaned = true;
+			File[] files = dir.listFiles();
+			if(null != files) {
+				for(File file : files)
+					file.delete();
+			}
+		}
+		return dir;
+	}
+	
 	/**
 	 * Cache request in {@link CacheManager#cacheDir}
 	 * 
@@ -69,21 +159,28 @@ public class CacheManager {
 	 */
 	public static void cacheRequest(RESTRequest<? extends Resource> request) throws IOException {
 		InputStream input = request.getResultStream();
+		if(null == input)
+			return;
 		try {
-		    final File file = new File(CacheManager.getCacheDir(), String.valueOf(request.getUrl().hashCode()));
+		    final File file = getCacheFile(request);
 		    final OutputStream output = new FileOutputStream(file);
 		    try {
 		        try {
-		            final byte[] buffer = new byte[1024];
+		            final byte[] buffer = BufferPool.acquire();
 		            int read;
 
-		            while ((read = input.read(buffer)) != -1)
-		                output.write(buffer, 0, read);
+		            try {
+			            while ((read = input.read(buffer)) != -1)
+			                output.write(buffer, 0, read);
+		            } finally {
+		            	BufferPool.release(buffer);
+		            }
 
 		            output.flush();
 		        } finally {
 		            output.close();
 		        }
+		        writeMeta(request);
 		    } catch (Exception e) {
 		        e.printStackTrace();
 		    }
@@ -102,23 +199,15 @@ public class CacheManager {
 	 * 		The {@link RESTRequest} to retrieve
 	 * 
 	 * @return
+	 * 		The cached response or null if there is no entry or if the entry has expired
 	 */
 	public static InputStream getRequestFromCache(RESTRequest<? extends Resource> r) {
-		InputStream input = null;
-		int requestHashcode = r.getUrl().hashCode();
-		Date date = new Date();
-		long actualTime = date.getTime();
+		long actualTime = new Date().getTime();
 		try {
-		    final File file = new File(CacheManager.getCacheDir(), String.valueOf(requestHashcode));
+		    final File file = getCacheFile(r);
 		    if(file.exists()) {
-		    	long lastModifiedTime = file.lastModified();
-		    	long difference = actualTime - lastModifiedTime;
-		    	if(actualTime - file.lastModified() <= r.getExpirationTime()) {
-			    	input = new BufferedInputStream(new FileInputStream(file));
-			    	file.setLastModified(lastModifiedTime);
-			    	lastModifiedTime = file.lastModified();
-			    	difference = difference + 5;
-				    return input;
+		    	if(actualTime - getFreshSince(file) <= r.getExpirationTime()) {
+				    return new BufferedInputStream(new FileInputStream(file));
 		    	}
 		    	return null;
 		    }
@@ -128,4 +217,159 @@ public class CacheManager {
 		return null;
 	}
 	
+	/**
+	 * Returns the conditional headers (If-None-Match, If-Modified-Since) revalidating the cache entry of the request
+	 * 
+	 * @param r
+	 * 		The {@link RESTRequest} to revalidate
+	 * 
+	 * @return
+	 * 		List of {@link SerializableHeader}, empty if the request has no cache entry or if the entry has no validator
+	 * 
+	 * @since 0.9
+	 */
+	public static List<SerializableHeader> getConditionalHeaders(RESTRequest<? extends Resource> r) {
+		List<SerializableHeader> headers = new ArrayList<SerializableHeader>();
+		File file = getCacheFile(r);
+		if(null == CacheManager.getCacheDir() || !file.exists())
+			return headers;
+		Properties meta = readMeta(file);
+		if(null != meta.getProperty(META_ETAG))
+			headers.add(new SerializableHeader("If-None-Match", meta.getProperty(META_ETAG)));
+		if(null != meta.getProperty(META_LAST_MODIFIED))
+			headers.add(new SerializableHeader("If-Modified-Since", meta.getProperty(META_LAST_MODIFIED)));
+		return headers;
+	}
+	
+	/**
+	 * Handles a 304 Not Modified response : the cache entry of the request is fresh again and its validators are updated if the server sent new ones
+	 * 
+	 * @param r
+	 * 		The revalidated {@link RESTRequest}
+	 * 
+	 * @return
+	 * 		The cached response or null if the entry does not exist anymore
+	 * 
+	 * @since 0.9
+	 */
+	public static InputStream revalidateRequest(RESTRequest<? extends Resource> r) {
+		File file = getCacheFile(r);
+		if(null == CacheManager.getCacheDir() || !file.exists())
+			return null;
+		try {
+			Properties meta = readMeta(file);
+			if(null == r.getETag() && null == r.getLastModified())
+				r.setCacheValidators(meta.getProperty(META_ETAG), meta.getProperty(META_LAST_MODIFIED));
+			else if(null == r.getETag())
+				r.setCacheValidators(meta.getProperty(META_ETAG), r.getLastModified());
+			else if(null == r.getLastModified())
+				r.setCacheValidators(r.getETag(), meta.getProperty(META_LAST_MODIFIED));
+			writeMeta(r);
+			return new BufferedInputStream(new FileInputStream(file));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	/**
+	 * Deletes the cache entry of a request and its validators, so that the next attempt fetches the whole response
+	 * 
+	 * @param r
+	 * 		The {@link RESTRequest}
+	 * 
+	 * @since 0.9
+	 */
+	public static void removeRequest(RESTRequest<? extends Resource> r) {
+		if(null == CacheManager.getCacheDir())
+			return;
+		File file = getCacheFile(r);
+		file.delete();
+		new File(file.getPath() + META_SUFFIX).delete();
+	}
+	
+	/**
+	 * Returns the file holding the cache entry of a request
+	 * 
+	 * @param r
+	 * 		The {@link RESTRequest}
+	 * 
+	 * @return
+	 * 		The cache file, which may not exist
+	 */
+	private static File getCacheFile(RESTRequest<? extends Resource> r) {
+		return new File(CacheManager.getCacheDir(), String.valueOf(r.getUrl().hashCode()));
+	}
+	
+	/**
+	 * Returns the time at which the cache entry was last stored or revalidated
+	 * 
+	 * @param file
+	 * 		The cache file
+	 * 
+	 * @return
+	 * 		Time in milliseconds
+	 */
+	private static long getFreshSince(File file) {
+		String freshSince = readMeta(file).getProperty(META_FRESH_SINCE);
+		if(null != freshSince) {
+			try {
+				return Long.parseLong(freshSince);
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		return file.lastModified();
+	}
+	
+	/**
+	 * Reads the validators of a cache entry
+	 * 
+	 * @param file
+	 * 		The cache file
+	 * 
+	 * @return
+	 * 		The meta properties, empty if the entry has none
+	 */
+	private static Properties readMeta(File file) {
+		Properties meta = new Properties();
+		File metaFile = new File(file.getPath() + META_SUFFIX);
+		if(metaFile.exists()) {
+			try {
+				InputStream input = new FileInputStream(metaFile);
+				try {
+					meta.load(input);
+				} finally {
+					input.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return meta;
+	}
+	
+	/**
+	 * Stores the validators of the request's response next to its cache entry and marks the entry as fresh
+	 * 
+	 * @param r
+	 * 		The cached {@link RESTRequest}
+	 * 
+	 * @throws IOException
+	 */
+	private static void writeMeta(RESTRequest<? extends Resource> r) throws IOException {
+		Properties meta = new Properties();
+		meta.setProperty(META_FRESH_SINCE, String.valueOf(new Date().getTime()));
+		if(null != r.getETag())
+			meta.setProperty(META_ETAG, r.getETag());
+		if(null != r.getLastModified())
+			meta.setProperty(META_LAST_MODIFIED, r.getLastModified());
+		OutputStream output = new FileOutputStream(getCacheFile(r).getPath() + META_SUFFIX);
+		try {
+			meta.store(output, null);
+		} finally {
+			output.close();
+		}
+	}
+	
 }
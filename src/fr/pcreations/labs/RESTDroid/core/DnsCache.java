@@ -0,0 +1,135 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * <b>In-process cache of host name resolutions</b>
+ * 
+ * <p>
+ * Resolved addresses are kept for {@link DnsCache#getTtl()} milliseconds, so that only the first request to a host pays the DNS lookup. Failed lookups are not cached.
+ * {@link ApacheTransport}, {@link NioTransport} and {@link Http2Transport} resolve hosts through this cache, {@link WebService#preconnect(String)} fills it ahead of the first request.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public class DnsCache {
+	
+	/**
+	 * Default time to live of a resolution, in milliseconds
+	 */
+	public static final long DEFAULT_TTL = 5 * 60 * 1000L;
+	
+	/**
+	 * Time to live of a resolution, in milliseconds
+	 */
+	private static long ttl = DEFAULT_TTL;
+	
+	/**
+	 * HashMap to store the resolutions
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : the host name in lower case</li>
+	 * <li><b>value</b> : the resolved addresses and their expiration time</li>
+	 * </ul>
+	 * </p>
+	 */
+	private static final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	
+	private DnsCache() {}
+	
+	/**
+	 * Returns the addresses of a host, resolving it if it is not cached or if its entry has expired
+	 * 
+	 * @param host
+	 * 		Host name or literal IP address
+	 * 
+	 * @return
+	 * 		The addresses of the host
+	 * 
+	 * @throws UnknownHostException
+	 * 		If the host cannot be resolved
+	 */
+	public static InetAddress[] lookup(String host) throws UnknownHostException {
+		String key = host.toLowerCase(Locale.US);
+		long now = System.currentTimeMillis();
+		synchronized(entries) {
+			Entry entry = entries.get(key);
+			if(null != entry && entry.mExpirationTime > now)
+				return entry.mAddresses;
+		}
+		/* Resolved outside of the lock, a slow lookup must not block the other hosts */
+		InetAddress[] addresses = InetAddress.getAllByName(host);
+		synchronized(entries) {
+			entries.put(key, new Entry(addresses, now + ttl));
+		}
+		return addresses;
+	}
+	
+	/**
+	 * Removes the entry of a host, for instance after a connection failure to one of its addresses
+	 * 
+	 * @param host
+	 * 		Host name
+	 */
+	public static void invalidate(String host) {
+		synchronized(entries) {
+			entries.remove(host.toLowerCase(Locale.US));
+		}
+	}
+	
+	/**
+	 * Removes all the entries
+	 */
+	public static void clear() {
+		synchronized(entries) {
+			entries.clear();
+		}
+	}
+	
+	/**
+	 * Getter for {@link DnsCache#ttl}
+	 * 
+	 * @return
+	 * 		Time to live of a resolution, in milliseconds
+	 */
+	public static long getTtl() {
+		return ttl;
+	}
+	
+	/**
+	 * Setter for {@link DnsCache#ttl}. Applies to the next resolutions
+	 * 
+	 * @param ttl
+	 * 		Time to live of a resolution, in milliseconds. 0 disables the cache
+	 */
+	public static void setTtl(long ttl) {
+		DnsCache.ttl = ttl;
+	}
+	
+	/**
+	 * <b>Resolved addresses of a host</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class Entry {
+	
+		private final InetAddress[] mAddresses;
+	
+		private final long mExpirationTime;
+	
+		public Entry(InetAddress[] addresses, long expirationTime) {
+			mAddresses = addresses;
+			mExpirationTime = expirationTime;
+		}
+	
+	}
+	
+}
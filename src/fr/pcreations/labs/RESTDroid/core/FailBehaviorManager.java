@@ -13,7 +13,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * 
  * @author Pierre Criulanscy
  *
- * @version 0.8
+ * @version 0.9
  */
 public class FailBehaviorManager {
 	
@@ -30,7 +30,7 @@ public class FailBehaviorManager {
 	private FailBehaviorManager() {}
 	
 	/**
-	 * Triggers the specified {@link FailBehavior} for each failed request which defines it as behavior of failure
+	 * Triggers the specified {@link FailBehavior} for each failed request which defines it as behavior of failure. Requests whose deadline has passed are dropped instead of being retried
 	 *   
 	 * @param context
 	 * 		Instance of {@link WebService} within which the specified request is running
@@ -52,6 +52,12 @@ public class FailBehaviorManager {
 		
 		for(Iterator<RESTRequest<?>> it = failedRequests.iterator(); it.hasNext();) {
 			RESTRequest<?> r = it.next();
+			if(r.isExpired()) {
+				/* A pending request is dropped when its result is received */
+				if(!r.isPending())
+					context.dropExpiredRequest(r);
+				continue;
+			}
 			if(r.getFailBehaviorClass().equals(failBehaviorClass) || (r.getFailBehaviorClass().getSuperclass().equals(failBehaviorClass))) {
 				if(!requestsToRetry.containsKey(r.getFailBehaviorClass())) {
 					requestsToRetry.put(r.getFailBehaviorClass(), new ArrayList<RESTRequest<? extends Resource>>());
@@ -0,0 +1,228 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <b>{@link RequestBody} sending a file, or a region of a FileChannel, without loading it in the heap</b>
+ * 
+ * <p>
+ * The file is streamed to the connection with FileChannel.transferTo(), which lets the system copy the bytes to a socket channel directly (see {@link NioTransport}).
+ * The file is opened each time the body is written so that the request can be retried.
+ * </p>
+ * 
+ * <p>
+ * Only a body created from a File can be attached to a {@link RESTRequest} : the request is serialized to reach {@link RestService} and a FileChannel is not serializable.
+ * A body created from a FileChannel can be returned by a custom {@link Processor}, the channel is not closed by this class.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see RESTRequest#setRequestBody(RequestBody)
+ * @see MultipartRequestBody
+ */
+public class FileRequestBody extends RequestBody {
+	
+	private static final long serialVersionUID = -1718294406093385917L;
+	
+	/**
+	 * Content type of binary data
+	 */
+	public static final String CONTENT_TYPE_OCTET_STREAM = "application/octet-stream";
+	
+	/**
+	 * The file to send, null if the body has been created from a FileChannel
+	 */
+	private final File mFile;
+	
+	/**
+	 * The channel to send, null if the body has been created from a File
+	 */
+	private final transient FileChannel mChannel;
+	
+	/**
+	 * Position of the first byte to send in the file
+	 */
+	private final long mOffset;
+	
+	/**
+	 * Number of bytes to send
+	 */
+	private final long mLength;
+	
+	/**
+	 * Channel of {@link FileRequestBody#mFile} opened by {@link FileRequestBody#transferTo(WritableByteChannel, long, long)}, closed once the last byte is sent
+	 */
+	private transient FileChannel mOpenedChannel;
+	
+	/**
+	 * Constructor. The whole file is sent
+	 * 
+	 * @param file
+	 * 		The file to send
+	 * 
+	 * @param contentType
+	 * 		The content type of the body
+	 */
+	public FileRequestBody(File file, String contentType) {
+		this(file, contentType, 0, file.length());
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 * 		The file to send
+	 * 
+	 * @param contentType
+	 * 		The content type of the body
+	 * 
+	 * @param offset
+	 * 		Position of the first byte to send
+	 * 
+	 * @param length
+	 * 		Number of bytes to send
+	 */
+	public FileRequestBody(File file, String contentType, long offset, long length) {
+		super(contentType);
+		mFile = file;
+		mChannel = null;
+		mOffset = offset;
+		mLength = length;
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param channel
+	 * 		The channel to send, it is not closed
+	 * 
+	 * @param contentType
+	 * 		The content type of the body
+	 * 
+	 * @param offset
+	 * 		Position of the first byte to send
+	 * 
+	 * @param length
+	 * 		Number of bytes to send
+	 */
+	public FileRequestBody(FileChannel channel, String contentType, long offset, long length) {
+		super(contentType);
+		mFile = null;
+		mChannel = channel;
+		mOffset = offset;
+		mLength = length;
+	}
+	
+	/**
+	 * Getter for {@link FileRequestBody#mFile}
+	 * 
+	 * @return
+	 * 		The file to send, or null if the body has been created from a FileChannel
+	 */
+	public File getFile() {
+		return mFile;
+	}
+	
+	/**
+	 * @see RequestBody#getContentLength()
+	 */
+	@Override
+	public long getContentLength() {
+		return mLength;
+	}
+	
+	/**
+	 * @see RequestBody#writeTo(OutputStream)
+	 */
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		WritableByteChannel target = Channels.newChannel(out);
+		long position = 0;
+		while(position < mLength) {
+			long written = transferTo(target, position, mLength - position);
+			if(written <= 0)
+				throw new IOException("File is shorter than the body length");
+			position += written;
+		}
+		out.flush();
+	}
+	
+	/**
+	 * A body created from a FileChannel is not serializable, the channel is transient
+	 * 
+	 * @see RequestBody#isSerializable()
+	 */
+	@Override
+	public boolean isSerializable() {
+		return null != mFile;
+	}
+	
+	/**
+	 * @see RequestBody#isTransferable()
+	 */
+	@Override
+	public boolean isTransferable() {
+		return true;
+	}
+	
+	/**
+	 * @see RequestBody#transferTo(WritableByteChannel, long, long)
+	 */
+	@Override
+	public long transferTo(WritableByteChannel channel, long position, long count) throws IOException {
+		FileChannel source = getChannel();
+		long written;
+		try {
+			written = source.transferTo(mOffset + position, Math.min(count, mLength - position), channel);
+		} catch (IOException e) {
+			closeOpenedChannel();
+			throw e;
+		}
+		if(written <= 0 && source.size() < mOffset + mLength) {
+			closeOpenedChannel();
+			throw new IOException("File is shorter than the body length");
+		}
+		if(position + written >= mLength)
+			closeOpenedChannel();
+		return written;
+	}
+	
+	/**
+	 * Returns the channel to read from, opening the file if needed
+	 * 
+	 * @return
+	 * 		The channel
+	 * 
+	 * @throws IOException
+	 */
+	private synchronized FileChannel getChannel() throws IOException {
+		if(null != mChannel)
+			return mChannel;
+		if(null == mOpenedChannel)
+			mOpenedChannel = new FileInputStream(mFile).getChannel();
+		return mOpenedChannel;
+	}
+	
+	/**
+	 * Closes the channel opened on {@link FileRequestBody#mFile}
+	 */
+	private synchronized void closeOpenedChannel() {
+		if(null != mOpenedChannel) {
+			try {
+				mOpenedChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mOpenedChannel = null;
+		}
+	}
+	
+}
@@ -0,0 +1,63 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <b>{@link RequestBody} compressing another body with gzip while it is written to the connection</b>
+ * 
+ * <p>
+ * The compressed length is unknown so the body is always sent chunked. The request must carry a "Content-Encoding: gzip" header, see {@link RESTRequest#setCompressRequestBody(boolean)}.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public class GzipRequestBody extends RequestBody {
+
+	private static final long serialVersionUID = 2870462219413760592L;
+
+	/**
+	 * Size of the compression buffer
+	 */
+	private static final int BUFFER_SIZE = 4096;
+	
+	/**
+	 * The body to compress
+	 */
+	private RequestBody mBody;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param body
+	 * 		The {@link RequestBody} to compress
+	 */
+	public GzipRequestBody(RequestBody body) {
+		super(body.getContentType());
+		mBody = body;
+	}
+	
+	/**
+	 * @see RequestBody#isSerializable()
+	 */
+	@Override
+	public boolean isSerializable() {
+		return mBody.isSerializable();
+	}
+	
+	/**
+	 * @see RequestBody#writeTo(OutputStream)
+	 */
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+		mBody.writeTo(gzip);
+		/* finish() instead of close() : the connection stream belongs to the Transport */
+		gzip.finish();
+		out.flush();
+	}
+	
+}
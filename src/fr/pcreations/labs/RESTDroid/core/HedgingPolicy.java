@@ -0,0 +1,214 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <b>Policy sending a second identical GET request when the first one is slower than usual</b>
+ * 
+ * <p>
+ * The latency of the GET responses (time until the status and headers are received) is recorded per host. When no response has arrived after the {@link HedgingPolicy#getPercentile()} of the recent latencies of the host,
+ * {@link HttpRequestHandler} sends the same request a second time and keeps whichever response comes first, the other exchange is aborted.
+ * </p>
+ * 
+ * <p>
+ * Hedged requests are limited by a budget : each GET request earns {@link HedgingPolicy#getMaxExtraLoad()} of a hedge and each hedge spends one, so that hedging never adds more than this fraction of extra requests.
+ * No request is hedged until {@link HedgingPolicy#MIN_SAMPLES} latencies have been recorded for its host.
+ * </p>
+ * 
+ * <p>
+ * Hedging is opt-in : return an instance of this class in {@link Module#setHedgingPolicy()}.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public class HedgingPolicy {
+	
+	/**
+	 * Number of latencies recorded for a host before its requests can be hedged
+	 */
+	public static final int MIN_SAMPLES = 20;
+	
+	/**
+	 * Number of latencies kept per host
+	 */
+	public static final int WINDOW_SIZE = 100;
+	
+	/**
+	 * Maximum number of hedges which can be saved in the budget, so that a long quiet period does not allow a burst of hedges
+	 */
+	private static final double MAX_BUDGET = 10;
+	
+	/**
+	 * Percentile of the recent latencies after which a request is hedged, between 0 and 100
+	 * 
+	 * @see HedgingPolicy#getPercentile()
+	 */
+	private final double mPercentile;
+	
+	/**
+	 * Maximum number of hedges per GET request, between 0 and 1
+	 * 
+	 * @see HedgingPolicy#getMaxExtraLoad()
+	 */
+	private final double mMaxExtraLoad;
+	
+	/**
+	 * Number of hedges that can be sent
+	 */
+	private double mBudget;
+	
+	/**
+	 * HashMap to store the recent latencies of the hosts
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : host (and port if not default)</li>
+	 * <li><b>value</b> : the latency window of the host</li>
+	 * </ul>
+	 * </p>
+	 */
+	private final HashMap<String, LatencyWindow> mLatencies;
+	
+	/**
+	 * Constructor. Requests are hedged after the 95th percentile of latency, adding at most 5 % of requests
+	 */
+	public HedgingPolicy() {
+		this(95, 0.05);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param percentile
+	 * 		Percentile of the recent latencies after which a request is hedged, between 0 and 100
+	 * 
+	 * @param maxExtraLoad
+	 * 		Maximum fraction of extra requests sent as hedges, like 0.05 for 5 %
+	 */
+	public HedgingPolicy(double percentile, double maxExtraLoad) {
+		if(percentile <= 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile must be in ]0, 100]");
+		if(maxExtraLoad < 0 || maxExtraLoad > 1)
+			throw new IllegalArgumentException("Extra load must be in [0, 1]");
+		mPercentile = percentile;
+		mMaxExtraLoad = maxExtraLoad;
+		mLatencies = new HashMap<String, LatencyWindow>();
+	}
+	
+	/**
+	 * Called for each GET request which could be hedged, earns a part of a hedge
+	 * 
+	 * @param host
+	 * 		Host of the request
+	 * 
+	 * @return
+	 * 		Time in milliseconds after which the request should be hedged, or -1 if not enough latencies are known for the host
+	 */
+	public synchronized long onRequest(String host) {
+		mBudget = Math.min(MAX_BUDGET, mBudget + mMaxExtraLoad);
+		LatencyWindow window = mLatencies.get(host);
+		if(null == window || window.mCount < MIN_SAMPLES)
+			return -1;
+		return window.getPercentile(mPercentile);
+	}
+	
+	/**
+	 * Spends one hedge of the budget
+	 * 
+	 * @return
+	 * 		True if the budget allows to send a hedge, false otherwise
+	 */
+	public synchronized boolean acquireHedge() {
+		if(mBudget < 1)
+			return false;
+		mBudget--;
+		return true;
+	}
+	
+	/**
+	 * Gives back a hedge spent by {@link HedgingPolicy#acquireHedge()} which could not be sent
+	 */
+	public synchronized void releaseHedge() {
+		mBudget = Math.min(MAX_BUDGET, mBudget + 1);
+	}
+	
+	/**
+	 * Records the latency of a response
+	 * 
+	 * @param host
+	 * 		Host of the request
+	 * 
+	 * @param latency
+	 * 		Time in milliseconds between the start of the exchange and the reception of the response headers
+	 */
+	public synchronized void recordLatency(String host, long latency) {
+		LatencyWindow window = mLatencies.get(host);
+		if(null == window) {
+			window = new LatencyWindow();
+			mLatencies.put(host, window);
+		}
+		window.add(latency);
+	}
+	
+	/**
+	 * Getter for {@link HedgingPolicy#mPercentile}
+	 * 
+	 * @return
+	 * 		Percentile of the recent latencies after which a request is hedged
+	 */
+	public double getPercentile() {
+		return mPercentile;
+	}
+	
+	/**
+	 * Getter for {@link HedgingPolicy#mMaxExtraLoad}
+	 * 
+	 * @return
+	 * 		Maximum fraction of extra requests sent as hedges
+	 */
+	public double getMaxExtraLoad() {
+		return mMaxExtraLoad;
+	}
+	
+	/**
+	 * <b>Circular buffer of the last {@link HedgingPolicy#WINDOW_SIZE} latencies of a host</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class LatencyWindow {
+	
+		private final long[] mSamples = new long[WINDOW_SIZE];
+	
+		/**
+		 * Number of samples in the buffer
+		 */
+		private int mCount;
+	
+		/**
+		 * Index of the next sample to write
+		 */
+		private int mNext;
+	
+		public void add(long latency) {
+			mSamples[mNext] = latency;
+			mNext = (mNext + 1) % WINDOW_SIZE;
+			if(mCount < WINDOW_SIZE)
+				mCount++;
+		}
+	
+		public long getPercentile(double percentile) {
+			long[] sorted = new long[mCount];
+			System.arraycopy(mSamples, 0, sorted, 0, mCount);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100 * mCount) - 1;
+			return sorted[Math.max(0, Math.min(mCount - 1, index))];
+		}
+	
+	}
+	
+}
@@ -0,0 +1,512 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <b>HPACK header compression (RFC 7541) used by {@link Http2Transport}</b>
+ * 
+ * <p>
+ * The {@link Hpack.Encoder} indexes the headers in its dynamic table so that repeated headers of the requests sent on a connection are reduced to one byte, string literals are not Huffman encoded.
+ * The {@link Hpack.Decoder} supports the whole specification.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+final class Hpack {
+	
+	/**
+	 * Default size of the dynamic tables, as defined by HTTP/2
+	 */
+	static final int DEFAULT_TABLE_SIZE = 4096;
+	
+	/**
+	 * Overhead added to the size of each entry of a dynamic table
+	 */
+	private static final int ENTRY_OVERHEAD = 32;
+	
+	/**
+	 * The static table, indexed from 1
+	 */
+	private static final String[][] STATIC_TABLE = {
+		{ ":authority", "" },
+		{ ":method", "GET" },
+		{ ":method", "POST" },
+		{ ":path", "/" },
+		{ ":path", "/index.html" },
+		{ ":scheme", "http" },
+		{ ":scheme", "https" },
+		{ ":status", "200" },
+		{ ":status", "204" },
+		{ ":status", "206" },
+		{ ":status", "304" },
+		{ ":status", "400" },
+		{ ":status", "404" },
+		{ ":status", "500" },
+		{ "accept-charset", "" },
+		{ "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" },
+		{ "accept-ranges", "" },
+		{ "accept", "" },
+		{ "access-control-allow-origin", "" },
+		{ "age", "" },
+		{ "allow", "" },
+		{ "authorization", "" },
+		{ "cache-control", "" },
+		{ "content-disposition", "" },
+		{ "content-encoding", "" },
+		{ "content-language", "" },
+		{ "content-length", "" },
+		{ "content-location", "" },
+		{ "content-range", "" },
+		{ "content-type", "" },
+		{ "cookie", "" },
+		{ "date", "" },
+		{ "etag", "" },
+		{ "expect", "" },
+		{ "expires", "" },
+		{ "from", "" },
+		{ "host", "" },
+		{ "if-match", "" },
+		{ "if-modified-since", "" },
+		{ "if-none-match", "" },
+		{ "if-range", "" },
+		{ "if-unmodified-since", "" },
+		{ "last-modified", "" },
+		{ "link", "" },
+		{ "location", "" },
+		{ "max-forwards", "" },
+		{ "proxy-authenticate", "" },
+		{ "proxy-authorization", "" },
+		{ "range", "" },
+		{ "referer", "" },
+		{ "refresh", "" },
+		{ "retry-after", "" },
+		{ "server", "" },
+		{ "set-cookie", "" },
+		{ "strict-transport-security", "" },
+		{ "transfer-encoding", "" },
+		{ "user-agent", "" },
+		{ "vary", "" },
+		{ "via", "" },
+		{ "www-authenticate", "" }
+	};
+	
+	private static final int[] HUFFMAN_CODES = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+	};
+	private static final byte[] HUFFMAN_CODE_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+	};
+	
+	/**
+	 * Huffman decoding tree. Each node is a pair of children : a positive value is the index of a node, a negative value -(symbol + 1) is a leaf, 0 is no child
+	 */
+	private static final int[][] HUFFMAN_TREE = buildHuffmanTree();
+	
+	private Hpack() {
+	}
+	
+	/**
+	 * Builds {@link Hpack#HUFFMAN_TREE} from the code table
+	 * 
+	 * @return
+	 * 		The tree, node 0 being the root
+	 */
+	private static int[][] buildHuffmanTree() {
+		ArrayList<int[]> nodes = new ArrayList<int[]>();
+		nodes.add(new int[2]);
+		for(int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+			int node = 0;
+			for(int bit = HUFFMAN_CODE_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+				int branch = (HUFFMAN_CODES[symbol] >>> bit) & 1;
+				if(bit == 0)
+					nodes.get(node)[branch] = -(symbol + 1);
+				else {
+					if(nodes.get(node)[branch] == 0) {
+						nodes.add(new int[2]);
+						nodes.get(node)[branch] = nodes.size() - 1;
+					}
+					node = nodes.get(node)[branch];
+				}
+			}
+		}
+		return nodes.toArray(new int[nodes.size()][]);
+	}
+	
+	/**
+	 * Writes an integer with an N-bit prefix
+	 * 
+	 * @param out
+	 * 		The output
+	 * 
+	 * @param value
+	 * 		The integer
+	 * 
+	 * @param prefixBits
+	 * 		Number of bits of the prefix
+	 * 
+	 * @param flags
+	 * 		Bits of the first byte preceding the prefix
+	 */
+	private static void writeInteger(ByteArrayOutputStream out, int value, int prefixBits, int flags) {
+		int max = (1 << prefixBits) - 1;
+		if(value < max) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while(value >= 0x80) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	/**
+	 * Writes a string literal, without Huffman encoding
+	 * 
+	 * @param out
+	 * 		The output
+	 * 
+	 * @param value
+	 * 		The string
+	 */
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = getBytes(value);
+		writeInteger(out, bytes.length, 7, 0);
+		out.write(bytes, 0, bytes.length);
+	}
+	
+	private static byte[] getBytes(String value) {
+		try {
+			return value.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * <b>Dynamic table of an encoding or decoding context</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class DynamicTable {
+		
+		/**
+		 * Entries, the most recent first
+		 */
+		private final LinkedList<String[]> mEntries = new LinkedList<String[]>();
+		
+		private int mSize;
+		
+		private int mMaxSize = DEFAULT_TABLE_SIZE;
+		
+		public int length() {
+			return mEntries.size();
+		}
+		
+		public String[] get(int index) {
+			return mEntries.get(index);
+		}
+		
+		public void add(String name, String value) {
+			int size = entrySize(name, value);
+			if(size > mMaxSize) {
+				mEntries.clear();
+				mSize = 0;
+				return;
+			}
+			mEntries.addFirst(new String[] { name, value });
+			mSize += size;
+			evict();
+		}
+		
+		public void setMaxSize(int maxSize) {
+			mMaxSize = maxSize;
+			evict();
+		}
+		
+		private void evict() {
+			while(mSize > mMaxSize) {
+				String[] entry = mEntries.removeLast();
+				mSize -= entrySize(entry[0], entry[1]);
+			}
+		}
+		
+		private static int entrySize(String name, String value) {
+			return name.length() + value.length() + ENTRY_OVERHEAD;
+		}
+		
+	}
+	
+	/**
+	 * <b>Encoding context of the header blocks sent on a connection</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	static class Encoder {
+		
+		private final DynamicTable mTable = new DynamicTable();
+		
+		/**
+		 * New maximum size of the dynamic table, to signal at the beginning of the next header block. -1 if unchanged
+		 */
+		private int mPendingMaxSize = -1;
+		
+		/**
+		 * Applies the SETTINGS_HEADER_TABLE_SIZE of the peer. The table is never larger than {@link Hpack#DEFAULT_TABLE_SIZE}
+		 * 
+		 * @param maxSize
+		 * 		Maximum size allowed by the peer
+		 */
+		public void setMaxTableSize(int maxSize) {
+			maxSize = Math.min(maxSize, DEFAULT_TABLE_SIZE);
+			if(maxSize != mTable.mMaxSize) {
+				mTable.setMaxSize(maxSize);
+				mPendingMaxSize = maxSize;
+			}
+		}
+		
+		/**
+		 * Encodes a header block
+		 * 
+		 * @param headers
+		 * 		Headers as name and value pairs, names in lower case
+		 * 
+		 * @return
+		 * 		The header block
+		 */
+		public byte[] encode(List<String[]> headers) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if(mPendingMaxSize != -1) {
+				writeInteger(out, mPendingMaxSize, 5, 0x20);
+				mPendingMaxSize = -1;
+			}
+			for(String[] header : headers)
+				encode(out, header[0], header[1]);
+			return out.toByteArray();
+		}
+		
+		private void encode(ByteArrayOutputStream out, String name, String value) {
+			int nameIndex = 0;
+			for(int i = 1; i <= STATIC_TABLE.length + mTable.length(); i++) {
+				String[] entry = i <= STATIC_TABLE.length ? STATIC_TABLE[i - 1] : mTable.get(i - STATIC_TABLE.length - 1);
+				if(entry[0].equals(name)) {
+					if(entry[1].equals(value)) {
+						writeInteger(out, i, 7, 0x80);
+						return;
+					}
+					if(nameIndex == 0)
+						nameIndex = i;
+				}
+			}
+			boolean sensitive = name.equals("authorization") || name.equals("cookie") || name.equals("proxy-authorization");
+			if(sensitive)
+				writeInteger(out, nameIndex, 4, 0x10);
+			else
+				writeInteger(out, nameIndex, 6, 0x40);
+			if(nameIndex == 0)
+				writeString(out, name);
+			writeString(out, value);
+			if(!sensitive)
+				mTable.add(name, value);
+		}
+		
+	}
+	
+	/**
+	 * <b>Decoding context of the header blocks received on a connection</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	static class Decoder {
+		
+		private final DynamicTable mTable = new DynamicTable();
+		
+		private byte[] mBlock;
+		
+		private int mPosition;
+		
+		/**
+		 * Decodes a header block
+		 * 
+		 * @param block
+		 * 		The header block
+		 * 
+		 * @return
+		 * 		Headers as name and value pairs
+		 * 
+		 * @throws ProtocolException
+		 * 		If the header block is malformed
+		 */
+		public List<String[]> decode(byte[] block) throws ProtocolException {
+			mBlock = block;
+			mPosition = 0;
+			ArrayList<String[]> headers = new ArrayList<String[]>();
+			try {
+				while(mPosition < mBlock.length) {
+					int b = mBlock[mPosition] & 0xFF;
+					if((b & 0x80) != 0) {
+						headers.add(getEntry(readInteger(7)));
+					}
+					else if((b & 0x40) != 0) {
+						String[] header = readLiteral(6);
+						mTable.add(header[0], header[1]);
+						headers.add(header);
+					}
+					else if((b & 0x20) != 0) {
+						int maxSize = readInteger(5);
+						if(maxSize > DEFAULT_TABLE_SIZE)
+							throw new ProtocolException("Dynamic table size update too large");
+						mTable.setMaxSize(maxSize);
+					}
+					else {
+						headers.add(readLiteral(4));
+					}
+				}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new ProtocolException("Truncated header block");
+			}
+			return headers;
+		}
+		
+		private String[] getEntry(int index) throws ProtocolException {
+			if(index > 0 && index <= STATIC_TABLE.length)
+				return STATIC_TABLE[index - 1];
+			if(index > STATIC_TABLE.length && index <= STATIC_TABLE.length + mTable.length())
+				return mTable.get(index - STATIC_TABLE.length - 1);
+			throw new ProtocolException("Invalid header index " + index);
+		}
+		
+		private String[] readLiteral(int prefixBits) throws ProtocolException {
+			int nameIndex = readInteger(prefixBits);
+			String name = nameIndex == 0 ? readString() : getEntry(nameIndex)[0];
+			return new String[] { name, readString() };
+		}
+		
+		private int readInteger(int prefixBits) throws ProtocolException {
+			int max = (1 << prefixBits) - 1;
+			int value = mBlock[mPosition++] & max;
+			if(value < max)
+				return value;
+			int shift = 0;
+			int b;
+			do {
+				if(shift > 21)
+					throw new ProtocolException("Header integer overflow");
+				b = mBlock[mPosition++] & 0xFF;
+				value += (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			return value;
+		}
+		
+		private String readString() throws ProtocolException {
+			boolean huffman = (mBlock[mPosition] & 0x80) != 0;
+			int length = readInteger(7);
+			if(mPosition + length > mBlock.length)
+				throw new ProtocolException("Truncated header block");
+			int start = mPosition;
+			mPosition += length;
+			if(!huffman) {
+				try {
+					return new String(mBlock, start, length, "ISO-8859-1");
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return decodeHuffman(start, length);
+		}
+		
+		private String decodeHuffman(int start, int length) throws ProtocolException {
+			StringBuilder value = new StringBuilder(length * 8 / 5);
+			int node = 0;
+			int paddingBits = 0;
+			for(int i = start; i < start + length; i++) {
+				int b = mBlock[i] & 0xFF;
+				for(int bit = 7; bit >= 0; bit--) {
+					int branch = (b >>> bit) & 1;
+					int next = HUFFMAN_TREE[node][branch];
+					if(next < 0) {
+						value.append((char) (-next - 1));
+						node = 0;
+						paddingBits = 0;
+					}
+					else if(next == 0)
+						throw new ProtocolException("Invalid Huffman code");
+					else {
+						node = next;
+						paddingBits = branch == 1 ? paddingBits + 1 : 8;
+					}
+				}
+			}
+			/* The padding must be the most significant bits of EOS, i.e. less than 8 bits set to 1 */
+			if(node != 0 && paddingBits > 7)
+				throw new ProtocolException("Invalid Huffman padding");
+			return value.toString();
+		}
+		
+	}
+	
+}
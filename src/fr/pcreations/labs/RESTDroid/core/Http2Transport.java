@@ -0,0 +1,1308 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+
+import android.util.Log;
+import fr.pcreations.labs.RESTDroid.exceptions.ConnectionTimeoutException;
+
+/**
+ * <b>{@link Transport} multiplexing the requests to the same origin on one HTTP/2 connection</b>
+ * 
+ * <p>
+ * HTTP/2 is spoken with prior knowledge over plain TCP (h2c, RFC 7540 section 3.4) : the server must be known to support it, typically a local or internal server.
+ * Concurrent requests become streams of a single connection per origin, their headers are compressed with {@link Hpack}.
+ * https urls are executed by a fallback {@link Transport}, {@link UrlConnectionTransport} by default, since ALPN is not available on the supported platforms.
+ * </p>
+ * 
+ * <p>
+ * Response bodies are fully received before {@link Transport.Exchange#getResponseStream()} returns, in memory up to {@link CacheManager#getSpillThreshold()} and in a temporary file above,
+ * so {@link RESTRequest#setStreamingResponse(boolean)} does not let the {@link Parser} read them from the connection.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see Module#setTransport()
+ */
+public class Http2Transport implements AsyncTransport {
+	
+	/**
+	 * Client connection preface
+	 */
+	private static final byte[] CONNECTION_PREFACE = { 'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n', '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n' };
+	
+	private static final int FRAME_DATA = 0x0;
+	private static final int FRAME_HEADERS = 0x1;
+	private static final int FRAME_RST_STREAM = 0x3;
+	private static final int FRAME_SETTINGS = 0x4;
+	private static final int FRAME_PUSH_PROMISE = 0x5;
+	private static final int FRAME_PING = 0x6;
+	private static final int FRAME_GOAWAY = 0x7;
+	private static final int FRAME_WINDOW_UPDATE = 0x8;
+	private static final int FRAME_CONTINUATION = 0x9;
+	
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+	
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	
+	private static final int ERROR_PROTOCOL_ERROR = 0x1;
+	private static final int ERROR_CANCEL = 0x8;
+	
+	/**
+	 * Connection-specific headers, forbidden in HTTP/2
+	 */
+	private static final String[] CONNECTION_HEADERS = { "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host", "te" };
+	
+	/**
+	 * Initial flow control window and frame size defined by HTTP/2, until the peer's SETTINGS are received
+	 */
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	
+	/**
+	 * Largest frame accepted from the server, the default SETTINGS_MAX_FRAME_SIZE we advertise
+	 */
+	private static final int MAX_RECEIVED_FRAME_SIZE = 16384;
+	
+	/**
+	 * Connection timeout in milliseconds of {@link Http2Transport#preconnect(URI)}
+	 */
+	private static final int PRECONNECT_TIMEOUT = 10000;
+	
+	/**
+	 * Time in milliseconds after which a connection without streams is closed
+	 */
+	private static final long IDLE_CONNECTION_TIMEOUT = 30000L;
+	
+	/**
+	 * Period in milliseconds of the timeout checks
+	 */
+	private static final long TIMEOUT_CHECK_PERIOD = 250L;
+	
+	/**
+	 * {@link Transport} executing the exchanges this transport cannot handle
+	 */
+	private final Transport mFallbackTransport;
+	
+	/**
+	 * HashMap to store the connection of each origin
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : host and port</li>
+	 * <li><b>value</b> : the connection accepting new streams</li>
+	 * </ul>
+	 * </p>
+	 */
+	private final HashMap<String, Http2Connection> mConnections;
+	
+	/**
+	 * Timer checking the read timeouts of the streams and the idle connections, started with the first connection
+	 */
+	private Timer mTimer;
+	
+	/**
+	 * True once {@link Http2Transport#shutdown()} has been called
+	 */
+	private boolean mShutdown;
+	
+	/**
+	 * Constructor. https exchanges are executed by {@link UrlConnectionTransport}
+	 */
+	public Http2Transport() {
+		this(new UrlConnectionTransport());
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param fallbackTransport
+	 * 		{@link Transport} executing the exchanges this transport cannot handle
+	 */
+	public Http2Transport(Transport fallbackTransport) {
+		mFallbackTransport = fallbackTransport;
+		mConnections = new HashMap<String, Http2Connection>();
+	}
+	
+	/**
+	 * @see Transport#newExchange(HTTPVerb, URI)
+	 */
+	@Override
+	public Exchange newExchange(HTTPVerb verb, URI uri) throws IOException {
+		if(!"http".equalsIgnoreCase(uri.getScheme()))
+			return mFallbackTransport.newExchange(verb, uri);
+		if(null == uri.getHost())
+			throw new java.net.MalformedURLException("No host in " + uri);
+		return new Http2Exchange(verb, uri);
+	}
+	
+	/**
+	 * Opens the stream of the exchange, connecting to the origin first if needed. The calling thread is blocked while the connection is being established
+	 * 
+	 * @see AsyncTransport#executeAsync(Transport.Exchange, AsyncTransport.ExchangeCallback)
+	 */
+	@Override
+	public boolean executeAsync(Exchange exchange, ExchangeCallback callback) {
+		if(!(exchange instanceof Http2Exchange))
+			return false;
+		Http2Exchange e = (Http2Exchange) exchange;
+		e.mCallback = callback;
+		try {
+			start(e);
+		} catch (IOException ex) {
+			e.fail(ex);
+		}
+		return true;
+	}
+	
+	/**
+	 * Establishes the connection of the origin, the next requests to it open streams without waiting for the TCP handshake
+	 * 
+	 * @see Transport#preconnect(URI)
+	 */
+	@Override
+	public void preconnect(URI uri) throws IOException {
+		if(!"http".equalsIgnoreCase(uri.getScheme())) {
+			mFallbackTransport.preconnect(uri);
+			return;
+		}
+		Http2Exchange exchange = (Http2Exchange) newExchange(HTTPVerb.GET, uri);
+		Http2Connection connection = getConnection(exchange.mRoute);
+		try {
+			connection.connect(uri.getHost(), exchange.getPort(), PRECONNECT_TIMEOUT);
+		} catch (IOException e) {
+			removeConnection(connection);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Closes all the connections
+	 * 
+	 * @see Transport#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		ArrayList<Http2Connection> connections;
+		synchronized(this) {
+			mShutdown = true;
+			connections = new ArrayList<Http2Connection>(mConnections.values());
+			mConnections.clear();
+			if(null != mTimer)
+				mTimer.cancel();
+		}
+		for(Http2Connection connection : connections)
+			connection.close(new IOException("Transport has been shut down"));
+		mFallbackTransport.shutdown();
+	}
+	
+	/**
+	 * Opens the stream of an exchange on the connection of its origin
+	 * 
+	 * @param exchange
+	 * 		The exchange
+	 * 
+	 * @throws IOException
+	 * 		If the connection cannot be established
+	 */
+	private void start(Http2Exchange exchange) throws IOException {
+		exchange.prepare();
+		Http2Connection connection = getConnection(exchange.mRoute);
+		try {
+			connection.connect(exchange.mUri.getHost(), exchange.getPort(), exchange.mConnectTimeout);
+		} catch (IOException e) {
+			removeConnection(connection);
+			throw e;
+		}
+		connection.start(exchange);
+	}
+	
+	/**
+	 * Returns the connection of an origin, creating it if needed. The returned connection may not be established yet
+	 * 
+	 * @param route
+	 * 		Host and port of the origin
+	 * 
+	 * @return
+	 * 		The connection
+	 * 
+	 * @throws IOException
+	 * 		If the transport has been shut down
+	 */
+	private synchronized Http2Connection getConnection(String route) throws IOException {
+		if(mShutdown)
+			throw new IOException("Transport has been shut down");
+		Http2Connection connection = mConnections.get(route);
+		if(null == connection) {
+			connection = new Http2Connection(route);
+			mConnections.put(route, connection);
+		}
+		if(null == mTimer) {
+			mTimer = new Timer("RESTDroid-HTTP2-timeouts", true);
+			mTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					checkTimeouts();
+				}
+			}, TIMEOUT_CHECK_PERIOD, TIMEOUT_CHECK_PERIOD);
+		}
+		return connection;
+	}
+	
+	/**
+	 * Forgets a connection so that the next exchanges of its origin open a new one
+	 * 
+	 * @param connection
+	 * 		The connection, closed or going away
+	 */
+	private synchronized void removeConnection(Http2Connection connection) {
+		if(mConnections.get(connection.mRoute) == connection)
+			mConnections.remove(connection.mRoute);
+	}
+	
+	/**
+	 * Fails the streams in timeout and closes the idle connections
+	 */
+	private void checkTimeouts() {
+		ArrayList<Http2Connection> connections;
+		synchronized(this) {
+			connections = new ArrayList<Http2Connection>(mConnections.values());
+		}
+		long now = System.currentTimeMillis();
+		for(Http2Connection connection : connections)
+			connection.checkTimeouts(now);
+	}
+	
+	/**
+	 * <b>HTTP/2 connection to an origin, carrying concurrent streams</b>
+	 * 
+	 * <p>
+	 * Frames are written by the threads starting the exchanges, under the lock of the connection, and read by a dedicated thread which completes the exchanges.
+	 * </p>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private class Http2Connection implements Runnable {
+	
+		/**
+		 * Host and port of the origin
+		 */
+		private final String mRoute;
+	
+		private Socket mSocket;
+	
+		private DataInputStream mInput;
+	
+		private OutputStream mOutput;
+	
+		private final Hpack.Encoder mEncoder = new Hpack.Encoder();
+	
+		/**
+		 * Only used by the reading thread
+		 */
+		private final Hpack.Decoder mDecoder = new Hpack.Decoder();
+	
+		/**
+		 * Open streams by id
+		 */
+		private final HashMap<Integer, Http2Exchange> mStreams = new HashMap<Integer, Http2Exchange>();
+	
+		/**
+		 * Exchanges waiting for the number of streams to go under the limit of the server
+		 */
+		private final LinkedList<Http2Exchange> mPending = new LinkedList<Http2Exchange>();
+	
+		private int mNextStreamId = 1;
+	
+		private int mMaxConcurrentStreams = Integer.MAX_VALUE;
+	
+		private int mInitialWindowSize = DEFAULT_WINDOW_SIZE;
+	
+		private int mMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	
+		/**
+		 * Flow control window of the connection for the request bodies
+		 */
+		private long mSendWindow = DEFAULT_WINDOW_SIZE;
+	
+		/**
+		 * Time in milliseconds since when the connection has no stream
+		 */
+		private long mIdleSince = System.currentTimeMillis();
+	
+		/**
+		 * True once a GOAWAY has been received, no new stream can be opened
+		 */
+		private boolean mGoingAway;
+	
+		/**
+		 * The cause of the closing of the connection, null while it is open
+		 */
+		private IOException mClosedCause;
+	
+		/**
+		 * Constructor
+		 * 
+		 * @param route
+		 * 		Host and port of the origin
+		 */
+		public Http2Connection(String route) {
+			mRoute = route;
+		}
+	
+		/**
+		 * Establishes the connection if it is not yet, and sends the connection preface
+		 * 
+		 * @param host
+		 * 		Host of the origin, resolved through the {@link DnsCache}
+		 * 
+		 * @param port
+		 * 		Port of the origin
+		 * 
+		 * @param connectTimeout
+		 * 		Connection timeout in milliseconds
+		 * 
+		 * @throws IOException
+		 */
+		public synchronized void connect(String host, int port, int connectTimeout) throws IOException {
+			if(null != mClosedCause)
+				throw mClosedCause;
+			if(null != mSocket)
+				return;
+			InetSocketAddress address = new InetSocketAddress(DnsCache.lookup(host)[0], port);
+			Socket socket = new Socket();
+			try {
+				socket.connect(address, connectTimeout);
+			} catch (SocketTimeoutException e) {
+				socket.close();
+				throw new ConnectionTimeoutException(e.getMessage());
+			} catch (IOException e) {
+				socket.close();
+				DnsCache.invalidate(host);
+				throw e;
+			}
+			socket.setTcpNoDelay(true);
+			mSocket = socket;
+			mInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			mOutput = new BufferedOutputStream(socket.getOutputStream());
+			mOutput.write(CONNECTION_PREFACE);
+			writeFrame(FRAME_SETTINGS, 0, 0, new byte[] { 0, SETTINGS_ENABLE_PUSH, 0, 0, 0, 0 });
+			mOutput.flush();
+			Thread reader = new Thread(this, "RESTDroid-HTTP2 " + mRoute);
+			reader.setDaemon(true);
+			reader.start();
+		}
+	
+		/**
+		 * Opens the stream of an exchange, or queues it if the server does not accept more concurrent streams
+		 * 
+		 * @param exchange
+		 * 		The exchange
+		 * 
+		 * @throws IOException
+		 * 		If the connection is closed
+		 */
+		public synchronized void start(Http2Exchange exchange) throws IOException {
+			if(null != mClosedCause)
+				throw mClosedCause;
+			if(mGoingAway)
+				throw new IOException("Connection is going away");
+			exchange.mConnection = this;
+			if(mStreams.size() >= mMaxConcurrentStreams)
+				mPending.add(exchange);
+			else
+				open(exchange);
+		}
+	
+		/**
+		 * Sends the headers and the body of an exchange on a new stream
+		 * 
+		 * @param exchange
+		 * 		The exchange
+		 * 
+		 * @throws IOException
+		 */
+		private void open(Http2Exchange exchange) throws IOException {
+			exchange.mStreamId = mNextStreamId;
+			mNextStreamId += 2;
+			exchange.mSendWindow = mInitialWindowSize;
+			exchange.touch();
+			mStreams.put(exchange.mStreamId, exchange);
+			byte[] block = mEncoder.encode(exchange.getRequestHeaders());
+			int flags = null == exchange.mBody ? FLAG_END_STREAM : 0;
+			int offset = 0;
+			do {
+				int length = Math.min(block.length - offset, mMaxFrameSize);
+				boolean last = offset + length == block.length;
+				writeFrame(offset == 0 ? FRAME_HEADERS : FRAME_CONTINUATION, (offset == 0 ? flags : 0) | (last ? FLAG_END_HEADERS : 0), exchange.mStreamId, block, offset, length);
+				offset += length;
+			} while(offset < block.length);
+			if(null != exchange.mBody)
+				sendData(exchange);
+			mOutput.flush();
+		}
+	
+		/**
+		 * Sends as much of the request body as the flow control windows allow. A transferable body is read frame by frame from its source
+		 * 
+		 * @param exchange
+		 * 		The exchange
+		 * 
+		 * @throws IOException
+		 */
+		private void sendData(Http2Exchange exchange) throws IOException {
+			long bodyLength = exchange.mBodyLength;
+			while(exchange.mBodyOffset < bodyLength || !exchange.mBodySent) {
+				int length = (int) Math.min(Math.min(bodyLength - exchange.mBodyOffset, mMaxFrameSize), Math.min(mSendWindow, exchange.mSendWindow));
+				if(length <= 0 && exchange.mBodyOffset < bodyLength)
+					return;
+				boolean last = exchange.mBodyOffset + length == bodyLength;
+				if(null != exchange.mRequestBody)
+					writeFrame(FRAME_DATA, last ? FLAG_END_STREAM : 0, exchange.mStreamId, exchange.mRequestBody, (int) exchange.mBodyOffset, length);
+				else
+					writeFrame(FRAME_DATA, last ? FLAG_END_STREAM : 0, exchange.mStreamId, exchange.readBody(length), 0, length);
+				exchange.mBodyOffset += length;
+				mSendWindow -= length;
+				exchange.mSendWindow -= length;
+				exchange.mBodySent = last;
+			}
+		}
+	
+		/**
+		 * Resumes the request bodies blocked by flow control
+		 * 
+		 * @throws IOException
+		 */
+		private void resumeData() throws IOException {
+			for(Http2Exchange exchange : mStreams.values()) {
+				if(null != exchange.mBody && !exchange.mBodySent)
+					sendData(exchange);
+			}
+		}
+	
+		/**
+		 * Opens the pending streams while the server accepts them
+		 */
+		private void openPending() {
+			while(!mPending.isEmpty() && mStreams.size() < mMaxConcurrentStreams && !mGoingAway && null == mClosedCause) {
+				Http2Exchange exchange = mPending.removeFirst();
+				try {
+					open(exchange);
+				} catch (IOException e) {
+					mStreams.remove(exchange.mStreamId);
+					exchange.fail(e);
+				}
+			}
+		}
+	
+		private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+			writeFrame(type, flags, streamId, payload, 0, payload.length);
+		}
+	
+		private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+			mOutput.write(length >>> 16);
+			mOutput.write(length >>> 8);
+			mOutput.write(length);
+			mOutput.write(type);
+			mOutput.write(flags);
+			mOutput.write(streamId >>> 24);
+			mOutput.write(streamId >>> 16);
+			mOutput.write(streamId >>> 8);
+			mOutput.write(streamId);
+			mOutput.write(payload, offset, length);
+		}
+	
+		private void writeWindowUpdate(int streamId, int increment) throws IOException {
+			writeFrame(FRAME_WINDOW_UPDATE, 0, streamId, new byte[] { (byte) (increment >>> 24), (byte) (increment >>> 16), (byte) (increment >>> 8), (byte) increment });
+		}
+	
+		private void writeRstStream(int streamId, int errorCode) throws IOException {
+			writeFrame(FRAME_RST_STREAM, 0, streamId, new byte[] { (byte) (errorCode >>> 24), (byte) (errorCode >>> 16), (byte) (errorCode >>> 8), (byte) errorCode });
+		}
+	
+		/**
+		 * Cancels the stream of an exchange
+		 * 
+		 * @param exchange
+		 * 		The exchange
+		 * 
+		 * @param cause
+		 * 		The cause of the cancellation, given to the exchange
+		 */
+		public void cancel(Http2Exchange exchange, IOException cause) {
+			synchronized(this) {
+				if(mPending.remove(exchange)) {
+					exchange.fail(cause);
+					return;
+				}
+				if(mStreams.remove(exchange.mStreamId) != exchange)
+					return;
+				try {
+					writeRstStream(exchange.mStreamId, ERROR_CANCEL);
+					mOutput.flush();
+				} catch (IOException e) {
+					// The connection is failing, the reading thread closes it
+				}
+				onStreamClosed();
+			}
+			exchange.fail(cause);
+		}
+	
+		/**
+		 * Called when a stream is closed, under the lock of the connection
+		 */
+		private void onStreamClosed() {
+			openPending();
+			if(mStreams.isEmpty()) {
+				mIdleSince = System.currentTimeMillis();
+				if(mGoingAway)
+					close(new IOException("Connection has gone away"));
+			}
+		}
+	
+		/**
+		 * Fails the streams in timeout and closes the connection if it has been idle for too long
+		 * 
+		 * @param now
+		 * 		Current time in milliseconds
+		 */
+		public void checkTimeouts(long now) {
+			ArrayList<Http2Exchange> expired = new ArrayList<Http2Exchange>();
+			boolean idle;
+			synchronized(this) {
+				for(Http2Exchange exchange : mStreams.values()) {
+					if(exchange.mAborted || (exchange.mReadTimeout > 0 && now - exchange.mLastActivity > exchange.mReadTimeout))
+						expired.add(exchange);
+				}
+				for(Http2Exchange exchange : mPending) {
+					if(exchange.mAborted)
+						expired.add(exchange);
+				}
+				idle = mStreams.isEmpty() && mPending.isEmpty() && now - mIdleSince > IDLE_CONNECTION_TIMEOUT;
+			}
+			for(Http2Exchange exchange : expired)
+				cancel(exchange, exchange.mAborted ? new IOException("Exchange aborted") : new SocketTimeoutException("Read timed out"));
+			if(idle) {
+				synchronized(this) {
+					try {
+						writeFrame(FRAME_GOAWAY, 0, 0, new byte[8]);
+						mOutput.flush();
+					} catch (IOException e) {
+						// The connection is closed anyway
+					}
+				}
+				close(new IOException("Idle connection closed"));
+			}
+		}
+	
+		/**
+		 * Closes the connection and fails its streams
+		 * 
+		 * @param cause
+		 * 		The cause of the closing
+		 */
+		public void close(IOException cause) {
+			ArrayList<Http2Exchange> failed;
+			synchronized(this) {
+				if(null != mClosedCause)
+					return;
+				mClosedCause = cause;
+				failed = new ArrayList<Http2Exchange>(mStreams.values());
+				failed.addAll(mPending);
+				mStreams.clear();
+				mPending.clear();
+				try {
+					if(null != mSocket)
+						mSocket.close();
+				} catch (IOException e) {
+					// Nothing to do, the connection is discarded
+				}
+			}
+			removeConnection(this);
+			for(Http2Exchange exchange : failed)
+				exchange.fail(cause);
+		}
+	
+		/**
+		 * Body of the reading thread
+		 */
+		@Override
+		public void run() {
+			try {
+				while(true)
+					readFrame();
+			} catch (IOException e) {
+				close(e);
+			} catch (RuntimeException e) {
+				Log.e(RestService.TAG, "HTTP/2 connection failed", e);
+				close(new ProtocolException(e.toString()));
+			}
+		}
+	
+		/**
+		 * Reads and handles a frame
+		 * 
+		 * @throws IOException
+		 */
+		private void readFrame() throws IOException {
+			int length = (mInput.readUnsignedByte() << 16) | (mInput.readUnsignedByte() << 8) | mInput.readUnsignedByte();
+			int type = mInput.readUnsignedByte();
+			int flags = mInput.readUnsignedByte();
+			int streamId = mInput.readInt() & 0x7FFFFFFF;
+			if(length > MAX_RECEIVED_FRAME_SIZE)
+				throw connectionError("Frame too large : " + length);
+			byte[] payload = new byte[length];
+			mInput.readFully(payload);
+			switch(type) {
+				case FRAME_DATA:
+					onData(flags, streamId, payload);
+					break;
+				case FRAME_HEADERS:
+					onHeaders(flags, streamId, payload);
+					break;
+				case FRAME_RST_STREAM:
+					onRstStream(streamId, payload);
+					break;
+				case FRAME_SETTINGS:
+					if((flags & FLAG_ACK) == 0)
+						onSettings(payload);
+					break;
+				case FRAME_PUSH_PROMISE:
+					throw connectionError("Unexpected PUSH_PROMISE, server push is disabled");
+				case FRAME_PING:
+					if((flags & FLAG_ACK) == 0) {
+						synchronized(this) {
+							writeFrame(FRAME_PING, FLAG_ACK, 0, payload);
+							mOutput.flush();
+						}
+					}
+					break;
+				case FRAME_GOAWAY:
+					onGoAway(payload);
+					break;
+				case FRAME_WINDOW_UPDATE:
+					onWindowUpdate(streamId, payload);
+					break;
+				case FRAME_CONTINUATION:
+					throw connectionError("Unexpected CONTINUATION frame");
+				default:
+					/* Unknown frame types must be ignored */
+					break;
+			}
+		}
+	
+		/**
+		 * Sends a GOAWAY frame and returns the exception closing the connection
+		 * 
+		 * @param message
+		 * 		Description of the error
+		 * 
+		 * @return
+		 * 		The exception to throw
+		 */
+		private ProtocolException connectionError(String message) {
+			synchronized(this) {
+				try {
+					byte[] payload = new byte[8];
+					int lastStreamId = mNextStreamId - 2;
+					payload[0] = (byte) (lastStreamId >>> 24);
+					payload[1] = (byte) (lastStreamId >>> 16);
+					payload[2] = (byte) (lastStreamId >>> 8);
+					payload[3] = (byte) lastStreamId;
+					payload[7] = ERROR_PROTOCOL_ERROR;
+					writeFrame(FRAME_GOAWAY, 0, 0, payload);
+					mOutput.flush();
+				} catch (IOException e) {
+					// The connection is closed anyway
+				}
+			}
+			return new ProtocolException(message);
+		}
+	
+		/**
+		 * Returns the payload of a frame without its padding
+		 */
+		private byte[] removePadding(int flags, byte[] payload, int skip) throws ProtocolException {
+			int padding = 0;
+			int offset = 0;
+			if((flags & FLAG_PADDED) != 0) {
+				if(payload.length == 0)
+					throw connectionError("Invalid padding");
+				padding = payload[0] & 0xFF;
+				offset = 1;
+			}
+			offset += skip;
+			if(offset + padding > payload.length)
+				throw connectionError("Invalid padding");
+			byte[] data = new byte[payload.length - offset - padding];
+			System.arraycopy(payload, offset, data, 0, data.length);
+			return data;
+		}
+	
+		private void onData(int flags, int streamId, byte[] payload) throws IOException {
+			byte[] data = removePadding(flags, payload, 0);
+			Http2Exchange exchange;
+			synchronized(this) {
+				exchange = mStreams.get(streamId);
+				/* The body is buffered, in memory or on disk, as soon as it is received, so the windows are restored immediately */
+				if(payload.length > 0) {
+					writeWindowUpdate(0, payload.length);
+					if(null != exchange && (flags & FLAG_END_STREAM) == 0)
+						writeWindowUpdate(streamId, payload.length);
+					mOutput.flush();
+				}
+			}
+			if(null == exchange)
+				return;
+			exchange.touch();
+			exchange.mResponseBody.write(data, 0, data.length);
+			if((flags & FLAG_END_STREAM) != 0)
+				complete(exchange);
+		}
+	
+		private void onHeaders(int flags, int streamId, byte[] payload) throws IOException {
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			byte[] fragment = removePadding(flags, payload, (flags & FLAG_PRIORITY) != 0 ? 5 : 0);
+			block.write(fragment, 0, fragment.length);
+			boolean endHeaders = (flags & FLAG_END_HEADERS) != 0;
+			while(!endHeaders) {
+				int length = (mInput.readUnsignedByte() << 16) | (mInput.readUnsignedByte() << 8) | mInput.readUnsignedByte();
+				int type = mInput.readUnsignedByte();
+				int continuationFlags = mInput.readUnsignedByte();
+				int continuationStreamId = mInput.readInt() & 0x7FFFFFFF;
+				if(type != FRAME_CONTINUATION || continuationStreamId != streamId || length > MAX_RECEIVED_FRAME_SIZE)
+					throw connectionError("Expected CONTINUATION frame");
+				byte[] continuation = new byte[length];
+				mInput.readFully(continuation);
+				block.write(continuation, 0, length);
+				endHeaders = (continuationFlags & FLAG_END_HEADERS) != 0;
+			}
+			/* The block is decoded even for an unknown stream to keep the decoding context in sync */
+			List<String[]> headers = mDecoder.decode(block.toByteArray());
+			Http2Exchange exchange;
+			synchronized(this) {
+				exchange = mStreams.get(streamId);
+			}
+			if(null == exchange)
+				return;
+			exchange.touch();
+			if(null == exchange.mResponseHeaders) {
+				int status = 0;
+				HashMap<String, String> responseHeaders = new HashMap<String, String>();
+				for(String[] header : headers) {
+					if(header[0].equals(":status")) {
+						try {
+							status = Integer.parseInt(header[1]);
+						} catch (NumberFormatException e) {
+							throw connectionError("Malformed :status " + header[1]);
+						}
+					}
+					else if(!responseHeaders.containsKey(header[0]))
+						responseHeaders.put(header[0], header[1]);
+				}
+				/* Interim responses are skipped, the final one follows */
+				if(status >= 200) {
+					exchange.mStatusCode = status;
+					exchange.mResponseHeaders = responseHeaders;
+				}
+			}
+			/* Otherwise these are trailers, ignored */
+			if((flags & FLAG_END_STREAM) != 0)
+				complete(exchange);
+		}
+	
+		private void onRstStream(int streamId, byte[] payload) throws IOException {
+			if(payload.length != 4)
+				throw connectionError("Malformed RST_STREAM");
+			int errorCode = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+			Http2Exchange exchange;
+			synchronized(this) {
+				exchange = mStreams.remove(streamId);
+				if(null != exchange)
+					onStreamClosed();
+			}
+			if(null != exchange)
+				exchange.fail(new IOException("Stream reset by the server, error code " + errorCode));
+		}
+	
+		private void onSettings(byte[] payload) throws IOException {
+			if(payload.length % 6 != 0)
+				throw connectionError("Malformed SETTINGS");
+			synchronized(this) {
+				for(int i = 0; i < payload.length; i += 6) {
+					int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+					int value = ((payload[i + 2] & 0xFF) << 24) | ((payload[i + 3] & 0xFF) << 16) | ((payload[i + 4] & 0xFF) << 8) | (payload[i + 5] & 0xFF);
+					switch(id) {
+						case SETTINGS_HEADER_TABLE_SIZE:
+							mEncoder.setMaxTableSize(value);
+							break;
+						case SETTINGS_MAX_CONCURRENT_STREAMS:
+							mMaxConcurrentStreams = value;
+							break;
+						case SETTINGS_INITIAL_WINDOW_SIZE:
+							if(value < 0)
+								throw connectionError("Invalid initial window size");
+							for(Http2Exchange exchange : mStreams.values())
+								exchange.mSendWindow += value - mInitialWindowSize;
+							mInitialWindowSize = value;
+							break;
+						case SETTINGS_MAX_FRAME_SIZE:
+							mMaxFrameSize = value;
+							break;
+					}
+				}
+				writeFrame(FRAME_SETTINGS, FLAG_ACK, 0, new byte[0]);
+				resumeData();
+				openPending();
+				mOutput.flush();
+			}
+		}
+	
+		private void onGoAway(byte[] payload) throws IOException {
+			if(payload.length < 8)
+				throw connectionError("Malformed GOAWAY");
+			int lastStreamId = (((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF)) & 0x7FFFFFFF;
+			ArrayList<Http2Exchange> refused = new ArrayList<Http2Exchange>();
+			synchronized(this) {
+				mGoingAway = true;
+				for(Iterator<Http2Exchange> it = mStreams.values().iterator(); it.hasNext();) {
+					Http2Exchange exchange = it.next();
+					if(exchange.mStreamId > lastStreamId) {
+						refused.add(exchange);
+						it.remove();
+					}
+				}
+				refused.addAll(mPending);
+				mPending.clear();
+			}
+			removeConnection(this);
+			/* Streams above the last stream id have not been processed by the server, they are restarted on a new connection */
+			for(Http2Exchange exchange : refused) {
+				try {
+					start(exchange);
+				} catch (IOException e) {
+					exchange.fail(e);
+				}
+			}
+			synchronized(this) {
+				if(mStreams.isEmpty())
+					close(new IOException("Connection has gone away"));
+			}
+		}
+	
+		private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+			if(payload.length != 4)
+				throw connectionError("Malformed WINDOW_UPDATE");
+			int increment = (((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF)) & 0x7FFFFFFF;
+			synchronized(this) {
+				if(streamId == 0)
+					mSendWindow += increment;
+				else {
+					Http2Exchange exchange = mStreams.get(streamId);
+					if(null == exchange)
+						return;
+					exchange.mSendWindow += increment;
+				}
+				resumeData();
+				mOutput.flush();
+			}
+		}
+	
+		/**
+		 * Completes the exchange of a stream closed by the server
+		 * 
+		 * @param exchange
+		 * 		The exchange
+		 */
+		private void complete(Http2Exchange exchange) {
+			synchronized(this) {
+				if(mStreams.remove(exchange.mStreamId) != exchange)
+					return;
+				onStreamClosed();
+			}
+			if(null == exchange.mResponseHeaders)
+				exchange.fail(new ProtocolException("Stream closed without response headers"));
+			else
+				exchange.succeed();
+		}
+	
+	}
+	
+	/**
+	 * <b>{@link Transport.Exchange} executed as a stream of an {@link Http2Connection}</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private class Http2Exchange implements Exchange {
+	
+		private final HTTPVerb mVerb;
+	
+		private final URI mUri;
+	
+		/**
+		 * Host and port of the request, used to share the connections
+		 */
+		private final String mRoute;
+	
+		/**
+		 * Request headers, as name and value pairs
+		 */
+		private final ArrayList<String[]> mHeaders;
+	
+		private RequestBody mBody;
+	
+		private int mConnectTimeout;
+	
+		private int mReadTimeout;
+	
+		/**
+		 * Serialized request body, null if the request has no body or if the body is transferable
+		 * 
+		 * @see RequestBody#isTransferable()
+		 */
+		private byte[] mRequestBody;
+	
+		private long mBodyLength;
+	
+		private long mBodyOffset;
+	
+		private boolean mBodySent;
+	
+		private Http2Connection mConnection;
+	
+		private int mStreamId;
+	
+		/**
+		 * Flow control window of the stream for the request body
+		 */
+		private long mSendWindow;
+	
+		/**
+		 * Time in milliseconds of the last frame of the stream, for the read timeout
+		 */
+		private volatile long mLastActivity;
+	
+		private volatile boolean mAborted;
+	
+		private ExchangeCallback mCallback;
+	
+		private CountDownLatch mLatch;
+	
+		private int mStatusCode;
+	
+		/**
+		 * Response headers. Names are in lower case
+		 */
+		private HashMap<String, String> mResponseHeaders;
+	
+		/**
+		 * Response body, in buffers of the {@link BufferPool} or in a temporary file once it is larger than {@link CacheManager#getSpillThreshold()}
+		 */
+		private ResultStreamBuffer mResponseBody;
+	
+		private IOException mFailure;
+	
+		/**
+		 * True once the exchange is finished, successfully or not
+		 */
+		private boolean mFinished;
+	
+		/**
+		 * Constructor
+		 * 
+		 * @param verb
+		 * 		The {@link HTTPVerb} of the request
+		 * 
+		 * @param uri
+		 * 		The request uri, with an http scheme
+		 */
+		public Http2Exchange(HTTPVerb verb, URI uri) {
+			mVerb = verb;
+			mUri = uri;
+			mRoute = uri.getHost() + ":" + getPort();
+			mHeaders = new ArrayList<String[]>();
+		}
+	
+		@Override
+		public void addHeader(String name, String value) {
+			mHeaders.add(new String[] { name.toLowerCase(Locale.US), value });
+		}
+	
+		@Override
+		public void setHeader(String name, String value) {
+			String lowerCaseName = name.toLowerCase(Locale.US);
+			for(Iterator<String[]> it = mHeaders.iterator(); it.hasNext();) {
+				if(it.next()[0].equals(lowerCaseName))
+					it.remove();
+			}
+			addHeader(name, value);
+		}
+	
+		@Override
+		public void setBody(RequestBody body) {
+			mBody = body;
+		}
+	
+		@Override
+		public void setTimeouts(int connectTimeout, int readTimeout) {
+			mConnectTimeout = connectTimeout;
+			mReadTimeout = readTimeout;
+		}
+	
+		/**
+		 * Blocks until the stream of the exchange is closed
+		 * 
+		 * @see Transport.Exchange#execute()
+		 */
+		@Override
+		public int execute() throws IOException {
+			mLatch = new CountDownLatch(1);
+			start(this);
+			try {
+				mLatch.await();
+			} catch (InterruptedException e) {
+				abort();
+				throw new InterruptedIOException("Interrupted while waiting for the response");
+			}
+			if(null != mFailure)
+				throw mFailure;
+			return mStatusCode;
+		}
+	
+		@Override
+		public String getResponseHeader(String name) {
+			return null != mResponseHeaders ? mResponseHeaders.get(name.toLowerCase(Locale.US)) : null;
+		}
+	
+		@Override
+		public InputStream getResponseStream() throws IOException {
+			if(null == mResponseBody)
+				return null;
+			return mResponseBody.openStream();
+		}
+	
+		@Override
+		public void abort() {
+			mAborted = true;
+			Http2Connection connection = mConnection;
+			if(null != connection)
+				connection.cancel(this, new IOException("Exchange aborted"));
+		}
+	
+		@Override
+		public void release() {
+			if(null != mResponseBody)
+				mResponseBody.delete();
+			mResponseBody = null;
+		}
+	
+		/**
+		 * Reads the next bytes of a transferable request body
+		 * 
+		 * @param length
+		 * 		Number of bytes to read
+		 * 
+		 * @return
+		 * 		The bytes following {@link Http2Exchange#mBodyOffset}
+		 * 
+		 * @throws IOException
+		 */
+		private byte[] readBody(int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			WritableByteChannel channel = new ByteBufferChannel(buffer);
+			while(buffer.hasRemaining()) {
+				if(mBody.transferTo(channel, mBodyOffset + buffer.position(), buffer.remaining()) <= 0)
+					throw new EOFException("Request body is shorter than its length");
+			}
+			return buffer.array();
+		}
+	
+		/**
+		 * Serializes the request body and resets the response, before the exchange is (re)started
+		 * 
+		 * @throws IOException
+		 */
+		private void prepare() throws IOException {
+			if(null != mBody && mBody.isTransferable())
+				mBodyLength = mBody.getContentLength();
+			else if(null != mBody && null == mRequestBody) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				mBody.writeTo(out);
+				mRequestBody = out.toByteArray();
+				mBodyLength = mRequestBody.length;
+			}
+			mBodyOffset = 0;
+			mBodySent = false;
+			mStatusCode = 0;
+			mResponseHeaders = null;
+			if(null != mResponseBody)
+				mResponseBody.delete();
+			mResponseBody = new ResultStreamBuffer();
+		}
+	
+		/**
+		 * Builds the header list of the request, pseudo-headers first
+		 * 
+		 * @return
+		 * 		Headers as name and value pairs
+		 */
+		private List<String[]> getRequestHeaders() {
+			ArrayList<String[]> headers = new ArrayList<String[]>();
+			String path = null != mUri.getRawPath() && mUri.getRawPath().length() > 0 ? mUri.getRawPath() : "/";
+			if(null != mUri.getRawQuery())
+				path += "?" + mUri.getRawQuery();
+			headers.add(new String[] { ":method", mVerb.name() });
+			headers.add(new String[] { ":scheme", "http" });
+			headers.add(new String[] { ":authority", mUri.getPort() != -1 ? mUri.getHost() + ":" + mUri.getPort() : mUri.getHost() });
+			headers.add(new String[] { ":path", path });
+			boolean hasContentType = false;
+			for(String[] header : mHeaders) {
+				if(isConnectionHeader(header[0]) || header[0].equals("content-length"))
+					continue;
+				hasContentType |= header[0].equals("content-type");
+				headers.add(header);
+			}
+			if(null != mBody) {
+				if(!hasContentType)
+					headers.add(new String[] { "content-type", mBody.getContentType() });
+				headers.add(new String[] { "content-length", String.valueOf(mBodyLength) });
+			}
+			return headers;
+		}
+	
+		private boolean isConnectionHeader(String name) {
+			for(String header : CONNECTION_HEADERS) {
+				if(header.equals(name))
+					return true;
+			}
+			return false;
+		}
+	
+		private int getPort() {
+			return mUri.getPort() != -1 ? mUri.getPort() : 80;
+		}
+	
+		private void touch() {
+			mLastActivity = System.currentTimeMillis();
+		}
+	
+		/**
+		 * Fires the completion of the exchange
+		 */
+		private void succeed() {
+			synchronized(this) {
+				if(mFinished)
+					return;
+				mFinished = true;
+			}
+			if(null != mLatch)
+				mLatch.countDown();
+			else if(null != mCallback) {
+				try {
+					mCallback.onResponse(this, mStatusCode);
+				} catch (RuntimeException e) {
+					Log.e(RestService.TAG, "Exchange callback failed", e);
+				}
+			}
+		}
+	
+		/**
+		 * Fires the failure of the exchange
+		 * 
+		 * @param e
+		 * 		The cause of the failure
+		 */
+		private void fail(IOException e) {
+			synchronized(this) {
+				if(mFinished)
+					return;
+				mFinished = true;
+			}
+			mFailure = e;
+			if(null != mLatch)
+				mLatch.countDown();
+			else if(null != mCallback) {
+				try {
+					mCallback.onFailure(this, e);
+				} catch (RuntimeException ex) {
+					Log.e(RestService.TAG, "Exchange callback failed", ex);
+				}
+			}
+		}
+	
+	}
+	
+	/**
+	 * <b>WritableByteChannel filling a ByteBuffer, used to read a transferable request body into DATA frames</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class ByteBufferChannel implements WritableByteChannel {
+	
+		private final ByteBuffer mBuffer;
+	
+		public ByteBufferChannel(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+	
+		@Override
+		public int write(ByteBuffer src) {
+			int count = Math.min(src.remaining(), mBuffer.remaining());
+			ByteBuffer slice = src.duplicate();
+			slice.limit(slice.position() + count);
+			mBuffer.put(slice);
+			src.position(src.position() + count);
+			return count;
+		}
+	
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+	
+		@Override
+		public void close() {
+		}
+	
+	}
+	
+}
@@ -1,53 +1,58 @@
 package fr.pcreations.labs.RESTDroid.core;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.net.UnknownServiceException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.UUID;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.conn.ConnectTimeoutException;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.protocol.HttpContext;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import android.util.Log;
+import fr.pcreations.labs.RESTDroid.core.Transport.Exchange;
+import fr.pcreations.labs.RESTDroid.exceptions.ConnectionTimeoutException;
 
 
 /**
  * <b>Holder class to handle HTTP request</b>
  * 
+ * <p>
+ * Requests are executed through a {@link Transport}, {@link ApacheTransport} by default. An {@link AsyncTransport} does not hold a worker thread while the request is on the network.
+ * </p>
+ * 
+ * <p>
+ * Identical GET requests in flight at the same time, from any {@link WebService}, share a single exchange : see {@link HttpRequestHandler#get(RESTRequest, ProcessorCallback)}.
+ * </p>
+ * 
+ * <p>
+ * A handler can execute many requests in parallel : each request carries its own {@link ProcessorCallback}, given when it is started, and no state of a request is kept once it is finished.
+ * </p>
+ * 
  * @author Pierre Criulanscy
  * 
- * @version 0.8
- *
+ * @version 0.9
+ * 
  */
 public class HttpRequestHandler {
-
+	
 	/**
 	 * Constant use to store response status code
 	 */
@@ -59,69 +64,213 @@ public class HttpRequestHandler {
 	public static final String RESPONSE_KEY = "com.pcreations.restclient.HttpRequestHandler.RESPONSE";
 	private static final int URI_SYNTAX_EXCEPTION = 1;
 	private static final int CLIENT_PROTOCOL_EXCEPTION = 2;
-	private static final int IO_EXCEPTION = 3;
+	static final int IO_EXCEPTION = 3;
 	private static final int UNKNOWN_HOST_EXCEPTION = 4;
 	private static final int MALFORMED_URL_EXCEPTION = 5;
 	private static final int UNKNOWN_SERVICE_EXCEPTION = 6;
 	private static final int CONNECT_TIMEOUT_EXCEPTION = 7;
 	private static final int SOCKET_TIMEOUT_EXCEPTION = 8;
+	
+	/**
+	 * Result code of a request dropped because its deadline has passed
+	 * 
+	 * @see RESTRequest#isExpired()
+	 * 
+	 * @since 0.9
+	 */
+	public static final int DEADLINE_EXCEEDED = 9;
+	
+	/**
+	 * Result code of a request cancelled with {@link WebService#cancel(RESTRequest)}
+	 * 
+	 * @see HttpRequestHandler#cancel(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	public static final int CANCELLED = 10;
+	
+	/**
+	 * Result code of a request rejected because the queue of {@link RequestDispatcher} was full
+	 * 
+	 * @see RequestDispatcher#setRejectionPolicy(RejectionPolicy)
+	 * 
+	 * @since 0.9
+	 */
+	public static final int REJECTED = 11;
+	
+	/**
+	 * Result code of a GET request answered with 304 Not Modified whose cache entry cannot be delivered. The entry is dropped so that the next attempt fetches the whole response
+	 * 
+	 * @see CacheManager#revalidateRequest(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	public static final int REVALIDATION_FAILED = 12;
 	private static final int TIMEOUT_CONNECTION = 10000;
 	private static final int TIMEOUT_SOCKET = 10000;
 	
 	/**
-	 * Processor callback. This callback is fired when the request is finished
+	 * Content codings accepted from the server. Responses are decompressed before being handed to the {@link Parser}
+	 * 
+	 * @see HttpRequestHandler#decodeContent(InputStream, String)
+	 */
+	private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+	
+	/**
+	 * Processor callback fired when a request started without its own callback is finished
 	 * 
 	 * @see ProcessorCallback
+	 * @see HttpRequestHandler#setProcessorCallback(ProcessorCallback)
 	 */
-	private ProcessorCallback mProcessorCallback;
+	private volatile ProcessorCallback mProcessorCallback;
 	
 	/**
-	 * HashMap to store {@link HTTPContainer} corresponding to {@link RESTRequest}
+	 * Map to store {@link Transport.Exchange} corresponding to {@link RESTRequest} in flight. An entry is removed when its request is finished
 	 * 
 	 * <p>
 	 * <ul>
 	 * <li><b>key</b> : the ID of the request</li>
-	 * <li><b>value</b> : the {@link HTTPContainer} instance</li>
+	 * <li><b>value</b> : the {@link Transport.Exchange} instance</li>
 	 * </ul>
 	 * </p>
 	 */
-	private HashMap<UUID, HTTPContainer> httpRequests;
+	private final ConcurrentHashMap<UUID, Exchange> httpRequests;
 	
 	/**
-	 * Constructor
+	 * HashMap to store the GET requests in flight, shared by all the handlers
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : the coalescing key of the request, see {@link HttpRequestHandler#getCoalescingKey(RESTRequest)}</li>
+	 * <li><b>value</b> : the {@link InFlightGet} executing it</li>
+	 * </ul>
+	 * </p>
+	 * 
+	 * @since 0.9
+	 */
+	private static final HashMap<String, InFlightGet> inFlightGets = new HashMap<String, InFlightGet>();
+	
+	/**
+	 * HashMap to store the {@link InFlightGet} led by each request, guarded by {@link HttpRequestHandler#inFlightGets}
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : the ID of the request executing the exchange</li>
+	 * <li><b>value</b> : the {@link InFlightGet}</li>
+	 * </ul>
+	 * </p>
+	 * 
+	 * @since 0.9
+	 */
+	private static final HashMap<UUID, InFlightGet> inFlightGetsByLeader = new HashMap<UUID, InFlightGet>();
+	
+	/**
+	 * IDs of the cancelled requests which have not reported their result yet, shared by all the handlers since the request seen by {@link RestService} is a copy of the one cancelled by {@link WebService}
+	 * 
+	 * @see HttpRequestHandler#cancel(RESTRequest)
+	 * @see HttpRequestHandler#isCancelled(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	private static final ConcurrentHashMap<UUID, Boolean> cancelledRequests = new ConcurrentHashMap<UUID, Boolean>();
+	
+	/**
+	 * Timer aborting the exchanges whose request deadline has passed and sending the hedged requests, shared by all the handlers. Created when first needed
+	 * 
+	 * @see HttpRequestHandler#getTimer()
+	 * 
+	 * @since 0.9
+	 */
+	private static Timer timer;
+	
+	/**
+	 * Policy hedging the GET requests, null if they are not hedged
+	 * 
+	 * @see HttpRequestHandler#setHedgingPolicy(HedgingPolicy)
+	 * 
+	 * @since 0.9
+	 */
+	private volatile HedgingPolicy mHedgingPolicy;
+	
+	/**
+	 * {@link Transport} executing the requests
+	 * 
+	 * @see HttpRequestHandler#setTransport(Transport)
+	 */
+	private volatile Transport mTransport;
+	
+	/**
+	 * {@link RequestDispatcher} scheduling the requests, null to use {@link WebService#getRequestDispatcher()}
+	 * 
+	 * @see HttpRequestHandler#setRequestDispatcher(RequestDispatcher)
+	 * 
+	 * @since 0.9
+	 */
+	private volatile RequestDispatcher mRequestDispatcher;
+	
+	/**
+	 * Constructor. Requests are executed with {@link ApacheTransport}, created with the first request unless another {@link Transport} is set before
 	 */
 	public HttpRequestHandler() {
-		httpRequests = new HashMap<UUID, HTTPContainer>();
+		this(null);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param transport
+	 * 		The {@link Transport} executing the requests, null for an {@link ApacheTransport} created with the first request
+	 */
+	public HttpRequestHandler(Transport transport) {
+		httpRequests = new ConcurrentHashMap<UUID, Exchange>();
+		mTransport = transport;
 	}
 	
 	/**
-	 * Prepares {@link HTTPContainer} and executes a HTTP GET request
+	 * Prepares {@link Transport.Exchange} and executes a HTTP GET request. The request is finished with the callback set by {@link HttpRequestHandler#setProcessorCallback(ProcessorCallback)}
 	 * 
 	 * @param r
 	 * 		Instance of {@link RESTRequest}
 	 * 
-	 * @see HttpRequestHandler#processRequest(RESTRequest)
+	 * @see HttpRequestHandler#get(RESTRequest, ProcessorCallback)
 	 */
 	public void get(RESTRequest<? extends Resource> r) {
-		try {
-			httpRequests.put(r.getID(), new HTTPContainer(new HttpGet(), new URI(r.getUrl()), r.getHeaders()));
-			processRequest(r);
-		} catch (URISyntaxException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			try {
-				r.setResultStream(null);
-			} catch (IOException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
-			} finally {
-				mProcessorCallback.callAction(URI_SYNTAX_EXCEPTION, r);
+		get(r, mProcessorCallback);
+	}
+	
+	/**
+	 * Prepares {@link Transport.Exchange} and executes a HTTP GET request. If an identical GET request is already in flight, no exchange is created : the request receives a copy of the other request's response and its own callback
+	 * 
+	 * @param r
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param callback
+	 * 		The {@link ProcessorCallback} fired when the request is finished
+	 * 
+	 * @see HttpRequestHandler#processRequest(RESTRequest, Exchange, RequestBody, ProcessorCallback)
+	 * @see HttpRequestHandler#getCoalescingKey(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	public void get(RESTRequest<? extends Resource> r, ProcessorCallback callback) {
+		String key = getCoalescingKey(r);
+		if(null != key) {
+			synchronized(inFlightGets) {
+				InFlightGet inFlightGet = inFlightGets.get(key);
+				if(null != inFlightGet) {
+					inFlightGet.mFollowers.add(new Follower(r, callback, this));
+					return;
+				}
+				inFlightGet = new InFlightGet(key);
+				inFlightGets.put(key, inFlightGet);
+				inFlightGetsByLeader.put(r.getID(), inFlightGet);
 			}
 		}
+		prepareRequest(HTTPVerb.GET, r, null, callback);
 	}
 	
 	/**
-	 * Prepares {@link HTTPContainer} and executes a HTTP POST request
+	 * Prepares {@link Transport.Exchange} and executes a HTTP POST request. The request is finished with the callback set by {@link HttpRequestHandler#setProcessorCallback(ProcessorCallback)}
 	 * 
 	 * @param r
 	 * 		Instance of {@link RESTRequest}
@@ -129,28 +278,34 @@ public class HttpRequestHandler {
 	 * @param holder
 	 * 		InputStream holding post data
 	 * 
-	 * @see HttpRequestHandler#processRequest(RESTRequest, InputStream)
+	 * @see HttpRequestHandler#post(RESTRequest, RequestBody, ProcessorCallback)
 	 */
 	public void post(RESTRequest<? extends Resource> r, InputStream holder) {
-		try {
-			httpRequests.put(r.getID(), new HTTPContainer(new HttpPost(r.getUrl()), new URI(r.getUrl()), r.getHeaders()));
-			processRequest(r, holder);
-		} catch (URISyntaxException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			try {
-				r.setResultStream(null);
-			} catch (IOException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
-			} finally {
-				mProcessorCallback.callAction(URI_SYNTAX_EXCEPTION, r);
-			}
-		}
+		post(r, null != holder ? new InputStreamRequestBody(holder, RequestBody.CONTENT_TYPE_JSON) : null, mProcessorCallback);
+	}
+	
+	/**
+	 * Prepares {@link Transport.Exchange} and executes a HTTP POST request
+	 * 
+	 * @param r
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param body
+	 * 		The {@link RequestBody} to send, may be null
+	 * 
+	 * @param callback
+	 * 		The {@link ProcessorCallback} fired when the request is finished
+	 * 
+	 * @see HttpRequestHandler#processRequest(RESTRequest, Exchange, RequestBody, ProcessorCallback)
+	 * 
+	 * @since 0.9
+	 */
+	public void post(RESTRequest<? extends Resource> r, RequestBody body, ProcessorCallback callback) {
+		prepareRequest(HTTPVerb.POST, r, body, callback);
 	}
 	
 	/**
-	 * Prepares {@link HTTPContainer} and executes a HTTP PUT request
+	 * Prepares {@link Transport.Exchange} and executes a HTTP PUT request. The request is finished with the callback set by {@link HttpRequestHandler#setProcessorCallback(ProcessorCallback)}
 	 * 
 	 * @param r
 	 * 		Instance of {@link RESTRequest}
@@ -158,355 +313,1327 @@ public class HttpRequestHandler {
 	 * @param holder
 	 * 		InputStream holding post data
 	 * 
-	 * @see HttpRequestHandler#processRequest(RESTRequest, InputStream)
+	 * @see HttpRequestHandler#put(RESTRequest, RequestBody, ProcessorCallback)
 	 */
 	public void put(RESTRequest<? extends Resource> r, InputStream holder) {
-		try {
-			httpRequests.put(r.getID(), new HTTPContainer(new HttpPut(r.getUrl()), new URI(r.getUrl()), r.getHeaders()));
-			processRequest(r, holder);
-		} catch (URISyntaxException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			try {
-				r.setResultStream(null);
-			} catch (IOException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
-			} finally {
-				mProcessorCallback.callAction(URI_SYNTAX_EXCEPTION, r);
-			}
-		}
+		put(r, null != holder ? new InputStreamRequestBody(holder, RequestBody.CONTENT_TYPE_JSON) : null, mProcessorCallback);
 	}
 	
 	/**
-	 * Prepares {@link HTTPContainer} and executes a HTTP DELETE request
+	 * Prepares {@link Transport.Exchange} and executes a HTTP PUT request
 	 * 
 	 * @param r
 	 * 		Instance of {@link RESTRequest}
 	 * 
-	 * @see HttpRequestHandler#processRequest(RESTRequest)
+	 * @param body
+	 * 		The {@link RequestBody} to send, may be null
+	 * 
+	 * @param callback
+	 * 		The {@link ProcessorCallback} fired when the request is finished
+	 * 
+	 * @see HttpRequestHandler#processRequest(RESTRequest, Exchange, RequestBody, ProcessorCallback)
+	 * 
+	 * @since 0.9
 	 */
-	public void delete(RESTRequest<? extends Resource> r) {
-		try {
-			httpRequests.put(r.getID(), new HTTPContainer(new HttpDelete(r.getUrl()), new URI(r.getUrl()), r.getHeaders()));
-			processRequest(r);
-		} catch (URISyntaxException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			try {
-				r.setResultStream(null);
-			} catch (IOException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
-			} finally {
-				mProcessorCallback.callAction(URI_SYNTAX_EXCEPTION, r);
-			}
-		}
+	public void put(RESTRequest<? extends Resource> r, RequestBody body, ProcessorCallback callback) {
+		prepareRequest(HTTPVerb.PUT, r, body, callback);
 	}
 	
-	
 	/**
-	 * Launch request in a worker thread and fires {@link ProcessorCallback}
+	 * Prepares {@link Transport.Exchange} and executes a HTTP DELETE request. The request is finished with the callback set by {@link HttpRequestHandler#setProcessorCallback(ProcessorCallback)}
 	 * 
-	 * @param request
+	 * @param r
 	 * 		Instance of {@link RESTRequest}
 	 * 
-	 * @param holder
-	 * 		InputStream holding post data
+	 * @see HttpRequestHandler#delete(RESTRequest, ProcessorCallback)
 	 */
-	private void processRequest(final RESTRequest<? extends Resource> request, final InputStream holder) {
-		WebService.getThreadExecutor().execute(new Runnable() {
-	        public void run() {
-	    		HTTPContainer currentHttpContainer = httpRequests.get(request.getID());
-	    		HttpResponse response = null;
-	    		HttpEntity responseEntity = null;
-	    		int statusCode = 0;
-	    		InputStream IS = null;
-	    		try {
-	    			response = currentHttpContainer.execute(holder);
-	    			responseEntity = response.getEntity();
-	    			StatusLine responseStatus = response.getStatusLine();
-	    			statusCode                = responseStatus != null ? responseStatus.getStatusCode() : 0;
-	    			IS = responseEntity.getContent();
-	    			request.setResultStream(IS);
-	    		} catch (ClientProtocolException e) {
-	    			// TODO Auto-generated catch block
-	    			statusCode = CLIENT_PROTOCOL_EXCEPTION;
-	    			e.printStackTrace();
-	    		} catch (IOException e) {
-	    			// TODO Auto-generated catch block
-	    			if(e instanceof UnknownHostException)
-	    				statusCode = UNKNOWN_HOST_EXCEPTION;
-	    			else if(e instanceof MalformedURLException)
-	    				statusCode = MALFORMED_URL_EXCEPTION;
-	    			else if(e instanceof UnknownServiceException)
-	    				statusCode = UNKNOWN_SERVICE_EXCEPTION;
-	    			else if(e instanceof ConnectTimeoutException)
-	    				statusCode = CONNECT_TIMEOUT_EXCEPTION;
-	    			else if(e instanceof SocketTimeoutException)
-	    				statusCode = SOCKET_TIMEOUT_EXCEPTION;
-	    			else
-	    				statusCode = IO_EXCEPTION;
-	    			Log.e("debug", e.getStackTrace().toString());
-	    		} finally {
-	    			try {
-	    				if(null != responseEntity)
-	    					responseEntity.consumeContent();
-	    			} catch (IOException e) {
-	    				// TODO Auto-generated catch block
-	    				e.printStackTrace();
-	    			}
-	    		}
-	    		mProcessorCallback.callAction(statusCode, request);
-	        }
-	    });
-	}
-	
-	/**
-	 * @see HttpRequestHandler#processRequest(RESTRequest, InputStream)
+	public void delete(RESTRequest<? extends Resource> r) {
+		delete(r, mProcessorCallback);
+	}
+	
+	/**
+	 * Prepares {@link Transport.Exchange} and executes a HTTP DELETE request
 	 * 
-	 * @param request
+	 * @param r
 	 * 		Instance of {@link RESTRequest}
 	 * 
+	 * @param callback
+	 * 		The {@link ProcessorCallback} fired when the request is finished
+	 * 
+	 * @see HttpRequestHandler#processRequest(RESTRequest, Exchange, RequestBody, ProcessorCallback)
+	 * 
+	 * @since 0.9
 	 */
-	private void processRequest(final RESTRequest<? extends Resource> request) {
-		WebService.getThreadExecutor().execute(new Runnable() {
-	        public void run() {
-	    		HTTPContainer currentHttpContainer = httpRequests.get(request.getID());
-	    		HttpResponse response = null;
-	    		HttpEntity responseEntity = null;
-	    		int statusCode = 0;
-	    		InputStream IS = null;
-	    		
-	    		try {
-	    			response = currentHttpContainer.execute();
-	    			responseEntity = response.getEntity();
-	    			StatusLine responseStatus = response.getStatusLine();
-	    			statusCode                = responseStatus != null ? responseStatus.getStatusCode() : 0;
-	    			IS = responseEntity.getContent();
-	    			request.setResultStream(IS);
-	    			//Log.e(RestService.TAG, "IS RESPONSE SERVER = " + inputStreamToString(IS));
-	    		} catch (ClientProtocolException e) {
-	    			// TODO Auto-generated catch block
-	    			statusCode = CLIENT_PROTOCOL_EXCEPTION;
-	    			//e.printStackTrace();
-	    		} catch (IOException e) {
-	    			// TODO Auto-generated catch block
-	    			if(e instanceof UnknownHostException)
-	    				statusCode = UNKNOWN_HOST_EXCEPTION;
-	    			else if(e instanceof MalformedURLException)
-	    				statusCode = MALFORMED_URL_EXCEPTION;
-	    			else if(e instanceof UnknownServiceException)
-	    				statusCode = UNKNOWN_SERVICE_EXCEPTION;
-	    			else if(e instanceof ConnectTimeoutException)
-	    				statusCode = CONNECT_TIMEOUT_EXCEPTION;
-	    			else if(e instanceof SocketTimeoutException)
-	    				statusCode = SOCKET_TIMEOUT_EXCEPTION;
-	    			else
-	    				statusCode = IO_EXCEPTION;
-	    			//e.printStackTrace();
-	    		} finally {
-		    		mProcessorCallback.callAction(statusCode, request);
-	    			try {
-	    				if(null != responseEntity)
-	    					responseEntity.consumeContent();
-	    			} catch (IOException e) {
-	    				// TODO Auto-generated catch block
-	    				e.printStackTrace();
-	    			}
-	    		}
-	        }
-	    });
+	public void delete(RESTRequest<? extends Resource> r, ProcessorCallback callback) {
+		prepareRequest(HTTPVerb.DELETE, r, null, callback);
 	}
 	
 	/**
-	 * <b>Binder callback fires when the request is finished</b>
+	 * Cancels a request : its queued tasks are taken out of the {@link RequestDispatcher} and its exchange is aborted, which closes the connection and frees the worker thread.
+	 * The request then finishes with {@link HttpRequestHandler#CANCELLED}. A GET request whose response is shared by identical requests is not aborted, only its own result is dropped
 	 * 
-	 * @author Pierre Criulanscy
-	 *
-	 * @version 0.7.2
+	 * @param r
+	 * 		The {@link RESTRequest} to cancel
+	 * 
+	 * @see HttpRequestHandler#isCancelled(RESTRequest)
+	 * 
+	 * @since 0.9
 	 */
-	public interface ProcessorCallback {
-		
-		/**
-		 * Method to handle the callback
-		 * 
-		 * @param statusCode
-		 * 		The status code of the request
-		 * 
-		 * @param request
-		 * 		Instance of the current {@link RESTRequest}
-		 * 
-		 */
-		abstract public void callAction(int statusCode, RESTRequest<? extends Resource> request);
+	public void cancel(RESTRequest<? extends Resource> r) {
+		cancelledRequests.put(r.getID(), Boolean.TRUE);
+		boolean shared;
+		synchronized(inFlightGets) {
+			InFlightGet inFlightGet = inFlightGetsByLeader.get(r.getID());
+			shared = null != inFlightGet && !inFlightGet.mFollowers.isEmpty();
+		}
+		Exchange exchange = httpRequests.get(r.getID());
+		if(null != exchange && !shared) {
+			Log.i(RestService.TAG, "Request " + r.getID() + " cancelled, aborting its exchange");
+			exchange.abort();
+		}
+		getRequestDispatcher().cancel(r.getID());
 	}
 	
 	/**
-	 * Set the processor callback
+	 * Checks if a request has been cancelled
 	 * 
-	 * @param callback
-	 * 		@see ProcessorCallback
+	 * @param r
+	 * 		Instance of {@link RESTRequest}, or a copy of it
 	 * 
-	 * @see HttpRequestHandler#mProcessorCallback
+	 * @return
+	 * 		True if the request has been cancelled and has not reported its result yet
+	 * 
+	 * @since 0.9
 	 */
-	public void setProcessorCallback(ProcessorCallback callback) {
-		mProcessorCallback = callback;
+	public static boolean isCancelled(RESTRequest<? extends Resource> r) {
+		return cancelledRequests.containsKey(r.getID());
 	}
 	
+	/**
+	 * Forgets a cancelled request once its result has been reported to {@link WebService}
+	 * 
+	 * @param requestId
+	 * 		The ID of the request
+	 * 
+	 * @since 0.9
+	 */
+	static void forgetCancelled(UUID requestId) {
+		cancelledRequests.remove(requestId);
+	}
 	
 	/**
-	 * <b>Holder inner class holding http client, context and other http stuff</b>
+	 * Resolves the host of an url and opens a connection to it from a worker thread, so that the first request to this host does not pay the connection setup
 	 * 
-	 * @author Pierre Criulanscy
+	 * @param url
+	 * 		Url of the origin, like https://api.example.com
+	 * 
+	 * @see Transport#preconnect(URI)
 	 * 
-	 * @version 0.7.2.1
+	 * @since 0.9
 	 */
-	private class HTTPContainer {
-		
-		/**
-		 * Actual HttpClient
-		 * 
-		 * @see HttpClient
-		 */
-		private HttpClient mHttpClient;
-		
-		/**
-		 * Actual HttpClient
-		 * 
-		 * @see HttpClient
-		 */
-		private HttpContext mHttpContext;
-		
-		/**
-		 * Actual HttpRequestBase
-		 * 
-		 * @see HttpRequestBase
-		 */
-		private HttpRequestBase mRequest;
-		
-		/**
-		 * Actual HttpParams
-		 * 
-		 * @see HttpParams
-		 */
-		private HttpParams mHttpParams;
-		
-		/**
-		 * Constructor. Defines a {@link BasicHttpContext}, {@link BasicHttpContext} and {@link DefaultHttpClient}
-		 * 
-		 * @param request
-		 * 		Instance of {@link HttpRequestBase}
-		 * 
-		 * @param uri
-		 * 		Uri to retrieve
-		 * 
-		 * @param headers
-		 * 		List of {@link SerializableHeader}
-		 * 
-		 * @see HTTPContainer#mHttpClient
-		 * @see HTTPContainer#mHttpContext
-		 * @see HTTPContainer#mHttpParams
-		 * @see HTTPContainer#mRequest
-		 */
-		public HTTPContainer(HttpRequestBase request, URI uri, List<SerializableHeader> headers) {
-			mHttpParams = new BasicHttpParams();
-			mHttpContext = new BasicHttpContext();
-			HttpConnectionParams.setConnectionTimeout(mHttpParams, TIMEOUT_CONNECTION);
-			HttpConnectionParams.setSoTimeout(mHttpParams, TIMEOUT_SOCKET);
-			mHttpClient = new DefaultHttpClient(mHttpParams);
-			mRequest = request;
-			mRequest.setURI(uri);
-			setHeaders(headers);
-		}
-
-		/**
-		 * Add header to {@link HTTPContainer#mRequest}
-		 * 
-		 * @param headers
-		 * 		List of {@link SerializableHeader}
-		 */
-		private void setHeaders(List<SerializableHeader> headers) {
-			if(null != headers) {
-				for(SerializableHeader h : headers) {
-					mRequest.addHeader(h.getName(), h.getValue());
+	public void preconnect(final String url) {
+		getRequestDispatcher().getExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					getTransport().preconnect(new URI(url));
+				} catch (URISyntaxException e) {
+					Log.w(RestService.TAG, "Cannot preconnect to " + url, e);
+				} catch (IOException e) {
+					Log.w(RestService.TAG, "Cannot preconnect to " + url, e);
 				}
 			}
+		});
+	}
+	
+	/**
+	 * Creates the {@link Transport.Exchange} of the request, adds its headers and executes it. Fires {@link ProcessorCallback} with an error code if the exchange cannot be created, or with {@link HttpRequestHandler#DEADLINE_EXCEEDED} if the request has expired
+	 * 
+	 * @param verb
+	 * 		The {@link HTTPVerb} of the request
+	 * 
+	 * @param r
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param body
+	 * 		{@link RequestBody} holding post data, may be null
+	 * 
+	 * @param callback
+	 * 		The {@link ProcessorCallback} fired when the request is finished
+	 */
+	private void prepareRequest(HTTPVerb verb, RESTRequest<? extends Resource> r, RequestBody body, ProcessorCallback callback) {
+		if(r.isExpired()) {
+			fireCallback(DEADLINE_EXCEEDED, r, callback);
+			return;
 		}
-		
-		/**
-		 * Executes the request
-		 * 
-		 * @return
-		 * 		Instance of {@link HttpResponse}
-		 * 
-		 * @throws ClientProtocolException
-		 * @throws IOException
-		 */
-		public HttpResponse execute() throws ClientProtocolException, IOException {
-			if(mRequest instanceof HttpGet || mRequest instanceof HttpDelete)
-				return mHttpClient.execute(mRequest, mHttpContext);
-			return null;
-		}
-
-		/**
-		 * Executes the request with data. Add header to manager JSON. (TODO change this)
-		 * 
-		 * @param holder
-		 * 		Data to send
-		 * 
-		 * @return
-		 * 		Instance of {@link HttpResponse}
-		 * 
-		 * @throws ClientProtocolException
-		 * @throws IOException
-		 */
-		public HttpResponse execute(InputStream holder) throws ClientProtocolException, IOException {
-			if(mRequest instanceof HttpPost || mRequest instanceof HttpPut) {
-				mRequest.setHeader("Accept", "application/json");
-				mRequest.setHeader("Content-type", "application/json");
-				String str = inputStreamToString(holder);
-				StringEntity se = new StringEntity(str, HTTP.UTF_8);
-				if(mRequest instanceof HttpPost) {
-					((HttpPost) mRequest).setEntity(se);
-				}
-				else
-					((HttpPut) mRequest).setEntity(se);
-				return mHttpClient.execute(mRequest, mHttpContext);
+		try {
+			Exchange exchange = createExchange(verb, r);
+			if(null != body && r.isCompressRequestBody()) {
+				body = new GzipRequestBody(body);
+				exchange.setHeader("Content-Encoding", "gzip");
 			}
-			return null;
-		}
-		
-		private String inputStreamToString(InputStream is) {
-	        BufferedReader bufferedReader;
-			try {
-				bufferedReader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-				StringBuilder inputStringBuilder = new StringBuilder();
-		        String line;
-				try {
-					line = bufferedReader.readLine();
-					while(line != null){
-			            inputStringBuilder.append(line);inputStringBuilder.append('\n');
-			            try {
-							line = bufferedReader.readLine();
-						} catch (IOException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-			        }
-					return inputStringBuilder.toString();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-		        
-			} catch (UnsupportedEncodingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			httpRequests.put(r.getID(), exchange);
+			if(isCancelled(r)) {
+				/* Cancelled while the exchange was created, before cancel() could abort it */
+				fireCallback(CANCELLED, r, callback);
+				return;
 			}
-	        
-	        return null;
+			processRequest(r, exchange, body, callback);
+		} catch (URISyntaxException e) {
+			Log.e(RestService.TAG, "Invalid url for request " + r.getID(), e);
+			fireCallback(URI_SYNTAX_EXCEPTION, r, callback);
+		} catch (IOException e) {
+			Log.e(RestService.TAG, "Cannot prepare request " + r.getID(), e);
+			fireCallback(getErrorCode(r, e), r, callback);
 		}
-		
+	}
+	
+	/**
+	 * Creates a {@link Transport.Exchange} for the request with its headers and timeouts
+	 * 
+	 * @param verb
+	 * 		The {@link HTTPVerb} of the request
+	 * 
+	 * @param r
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @return
+	 * 		The exchange, ready to be executed
+	 * 
+	 * @throws URISyntaxException
+	 * @throws IOException
+	 * 
+	 * @since 0.9
+	 */
+	private Exchange createExchange(HTTPVerb verb, RESTRequest<? extends Resource> r) throws URISyntaxException, IOException {
+		Exchange exchange = getTransport().newExchange(verb, new URI(r.getUrl()));
+		setHeaders(exchange, r.getHeaders());
+		if(verb == HTTPVerb.GET) {
+			PartialDownload download = r.isStreamingResponse() ? null : PartialDownload.find(r);
+			if(null != download)
+				setHeaders(exchange, download.getResumeHeaders());
+			else
+				setHeaders(exchange, CacheManager.getConditionalHeaders(r));
+		}
+		if(!hasHeader(r, "Accept-Encoding"))
+			exchange.setHeader("Accept-Encoding", ACCEPTED_ENCODINGS);
+		if(verb == HTTPVerb.POST || verb == HTTPVerb.PUT)
+			exchange.setHeader("Accept", "application/json");
+		exchange.setTimeouts(getTimeout(r, r.getConnectTimeout() > 0 ? r.getConnectTimeout() : TIMEOUT_CONNECTION), getTimeout(r, r.getReadTimeout() > 0 ? r.getReadTimeout() : TIMEOUT_SOCKET));
+		return exchange;
+	}
+	
+	/**
+	 * Add headers to {@link Transport.Exchange}
+	 * 
+	 * @param exchange
+	 * 		Instance of {@link Transport.Exchange}
+	 * 
+	 * @param headers
+	 * 		List of {@link SerializableHeader}
+	 */
+	private void setHeaders(Exchange exchange, List<SerializableHeader> headers) {
+		if(null != headers) {
+			for(SerializableHeader h : headers) {
+				exchange.addHeader(h.getName(), h.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Checks if the request defines a header
+	 * 
+	 * @param r
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param name
+	 * 		Header's name, case insensitive
+	 * 
+	 * @return
+	 * 		True if the request defines the header, false otherwise
+	 */
+	private boolean hasHeader(RESTRequest<? extends Resource> r, String name) {
+		if(null != r.getHeaders()) {
+			for(SerializableHeader h : r.getHeaders()) {
+				if(name.equalsIgnoreCase(h.getName()))
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Executes the exchange of the request and fires {@link ProcessorCallback} from a worker thread. The exchange is queued in the {@link RequestDispatcher}, with an {@link AsyncTransport} it runs on the transport I/O thread once started.
+	 * The exchange is aborted when the request deadline passes, and a request which expires while it is queued does not take a worker thread to be executed.
+	 * GET requests are raced against a second exchange if a {@link HedgingPolicy} is set
+	 * 
+	 * @param request
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param currentExchange
+	 * 		The {@link Transport.Exchange} of the request
+	 * 
+	 * @param body
+	 * 		{@link RequestBody} holding post data, streamed to the connection. May be null
+	 * 
+	 * @param callback
+	 * 		The {@link ProcessorCallback} fired when the request is finished
+	 */
+	private void processRequest(final RESTRequest<? extends Resource> request, Exchange currentExchange, RequestBody body, final ProcessorCallback callback) {
+		if(null != body)
+			currentExchange.setBody(body);
+		final TimerTask deadlineTask = scheduleDeadline(request, currentExchange);
+		HedgingPolicy hedgingPolicy = mHedgingPolicy;
+		if(null != hedgingPolicy && request.getVerb() == HTTPVerb.GET) {
+			new HedgedGet(request, currentExchange, deadlineTask, hedgingPolicy, callback).start();
+			return;
+		}
+		startExchange(request, currentExchange, new AsyncTransport.ExchangeCallback() {
+			
+			@Override
+			public void onResponse(Exchange exchange, int statusCode) {
+				handleResponse(request, exchange, statusCode, deadlineTask, callback);
+			}
+			
+			@Override
+			public void onFailure(Exchange exchange, IOException e) {
+				handleFailure(request, exchange, e, deadlineTask, callback);
+			}
+		});
+	}
+	
+	/**
+	 * Executes an exchange and calls back from a worker thread of the {@link RequestDispatcher}, whether the {@link Transport} is asynchronous or not.
+	 * The exchange is started by the dispatcher and holds the slot of its host until its response has been processed, so that the limits, priorities and queue bound of the dispatcher apply to an {@link AsyncTransport} as well.
+	 * The latency of the exchange is reported to the dispatcher for its {@link AdaptiveConcurrencyLimit}. If the dispatcher rejects the request the callback receives a failure
+	 * 
+	 * @param request
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param exchange
+	 * 		The {@link Transport.Exchange} to execute
+	 * 
+	 * @param callback
+	 * 		Callback receiving the response or the failure
+	 * 
+	 * @since 0.9
+	 */
+	private void startExchange(final RESTRequest<? extends Resource> request, final Exchange exchange, final AsyncTransport.ExchangeCallback callback) {
+		getRequestDispatcher().execute(request, new ExchangeTask(request, exchange, callback), new Runnable() {
+			public void run() {
+				callback.onFailure(exchange, new RequestRejectedException());
+			}
+		});
+	}
+	
+	/**
+	 * Reports the latency of an exchange to the {@link RequestDispatcher}. A timeout, an expired deadline or a 429 or 503 response are reported as drops,
+	 * other failures like aborted exchanges say nothing about the load of the host and are not reported
+	 * 
+	 * @param request
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param startTime
+	 * 		Time in milliseconds when the exchange has been started
+	 * 
+	 * @param statusCode
+	 * 		The HTTP status code of the response, ignored if the exchange failed
+	 * 
+	 * @param e
+	 * 		The failure of the exchange, null if a response has been received
+	 */
+	private void recordSample(RESTRequest<? extends Resource> request, long startTime, int statusCode, IOException e) {
+		if(isCancelled(request))
+			return;
+		boolean dropped;
+		if(null != e) {
+			int errorCode = getErrorCode(request, e);
+			if(errorCode != CONNECT_TIMEOUT_EXCEPTION && errorCode != SOCKET_TIMEOUT_EXCEPTION && errorCode != DEADLINE_EXCEEDED)
+				return;
+			dropped = true;
+		}
+		else
+			dropped = statusCode == 429 || statusCode == HttpURLConnection.HTTP_UNAVAILABLE;
+		getRequestDispatcher().recordSample(RequestDispatcher.getHost(request.getUrl()), System.currentTimeMillis() - startTime, dropped);
+	}
+	
+	/**
+	 * Hands the response of an executed exchange to the request and fires {@link ProcessorCallback}. The callback is fired before the exchange is released so that a streamed response can still be read
+	 * 
+	 * @param request
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param exchange
+	 * 		The executed {@link Transport.Exchange}
+	 * 
+	 * @param statusCode
+	 * 		The response status code
+	 * 
+	 * @param deadlineTask
+	 * 		The task aborting the exchange at the request deadline, may be null
+	 * 
+	 * @param callback
+	 * 		The {@link ProcessorCallback} of the request
+	 */
+	private void handleResponse(RESTRequest<? extends Resource> request, Exchange exchange, int statusCode, TimerTask deadlineTask, ProcessorCallback callback) {
+		try {
+			request.setCacheValidators(exchange.getResponseHeader("ETag"), exchange.getResponseHeader("Last-Modified"));
+			PartialDownload download = null;
+			if(request.getVerb() == HTTPVerb.GET && !request.isStreamingResponse())
+				download = PartialDownload.spool(request, statusCode, exchange);
+			if(null != download) {
+				/* The Parser receives the assembled body, as for a complete response */
+				try {
+					InputStream IS = decodeContent(download.open(), download.getContentEncoding());
+					try {
+						request.setResultStream(IS);
+					} finally {
+						IS.close();
+					}
+				} finally {
+					download.delete();
+				}
+				statusCode = HttpURLConnection.HTTP_OK;
+			}
+			else {
+				InputStream IS = decodeContent(exchange.getResponseStream(), exchange.getResponseHeader("Content-Encoding"));
+				if(request.isStreamingResponse())
+					request.setLiveResultStream(IS);
+				else if(null != IS) {
+					try {
+						request.setResultStream(IS);
+					} finally {
+						IS.close();
+					}
+				}
+				else
+					request.setResultStream(null);
+			}
+		} catch (IOException e) {
+			statusCode = getErrorCode(request, e);
+			Log.e(RestService.TAG, "Request " + request.getID() + " failed with code " + statusCode, e);
+		} finally {
+			try {
+				fireCallback(statusCode, request, callback);
+			} finally {
+				if(null != deadlineTask)
+					deadlineTask.cancel();
+				exchange.release();
+			}
+		}
+	}
+	
+	/**
+	 * Fires {@link ProcessorCallback} with the result code of a failed exchange
+	 * 
+	 * @param request
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param exchange
+	 * 		The failed {@link Transport.Exchange}
+	 * 
+	 * @param e
+	 * 		The cause of the failure
+	 * 
+	 * @param deadlineTask
+	 * 		The task aborting the exchange at the request deadline, may be null
+	 * 
+	 * @param callback
+	 * 		The {@link ProcessorCallback} of the request
+	 */
+	private void handleFailure(RESTRequest<? extends Resource> request, Exchange exchange, IOException e, TimerTask deadlineTask, ProcessorCallback callback) {
+		if(null != deadlineTask)
+			deadlineTask.cancel();
+		int statusCode = getErrorCode(request, e);
+		Log.e(RestService.TAG, "Request " + request.getID() + " failed with code " + statusCode, e);
+		try {
+			fireCallback(statusCode, request, callback);
+		} finally {
+			exchange.release();
+		}
+	}
+	
+	/**
+	 * Forgets a finished request and fires its {@link ProcessorCallback}. If other requests were waiting for the same GET request, they receive a copy of its response first,
+	 * each one from a worker thread of the {@link RequestDispatcher} of its own handler. If the request has been rejected, cancelled or has passed its deadline, the result concerns this request only :
+	 * the waiting requests are sent again instead, the first one leading the others
+	 * 
+	 * @param statusCode
+	 * 		The response status code or the result code of the failure
+	 * 
+	 * @param request
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param callback
+	 * 		The {@link ProcessorCallback} of the request
+	 */
+	private void fireCallback(final int statusCode, final RESTRequest<? extends Resource> request, ProcessorCallback callback) {
+		httpRequests.remove(request.getID());
+		InFlightGet inFlightGet;
+		synchronized(inFlightGets) {
+			inFlightGet = inFlightGetsByLeader.remove(request.getID());
+			if(null != inFlightGet)
+				inFlightGets.remove(inFlightGet.mKey);
+		}
+		if(null != inFlightGet && (statusCode == REJECTED || statusCode == CANCELLED || statusCode == DEADLINE_EXCEEDED)) {
+			for(Follower f : inFlightGet.mFollowers)
+				f.mHandler.get(f.mRequest, f.mCallback);
+		}
+		else if(null != inFlightGet) {
+			for(Follower f : inFlightGet.mFollowers) {
+				final RESTRequest<? extends Resource> follower = f.mRequest;
+				final ProcessorCallback followerCallback = f.mCallback;
+				int followerStatusCode = statusCode;
+				try {
+					follower.setCacheValidators(request.getETag(), request.getLastModified());
+					InputStream resultStream = request.getResultStream();
+					try {
+						follower.setResultStream(resultStream);
+					} finally {
+						if(null != resultStream)
+							resultStream.close();
+					}
+				} catch (IOException e) {
+					followerStatusCode = IO_EXCEPTION;
+					Log.e(RestService.TAG, "Request " + follower.getID() + " failed with code " + followerStatusCode, e);
+				}
+				final int result = followerStatusCode;
+				f.mHandler.getRequestDispatcher().execute(follower, new Runnable() {
+					public void run() {
+						followerCallback.callAction(result, follower);
+					}
+				});
+			}
+		}
+		callback.callAction(statusCode, request);
+	}
+	
+	/**
+	 * Schedules the abort of an exchange at the deadline of its request. If identical GET requests wait for the response of the exchange, it is aborted at the latest deadline among them instead
+	 * 
+	 * @param request
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param exchange
+	 * 		The {@link Transport.Exchange} of the request
+	 * 
+	 * @return
+	 * 		The scheduled task, to cancel once the request is finished, or null if the request has no deadline
+	 * 
+	 * @since 0.9
+	 */
+	private static TimerTask scheduleDeadline(final RESTRequest<? extends Resource> request, final Exchange exchange) {
+		if(request.getDeadline() == 0)
+			return null;
+		DeadlineTask task = new DeadlineTask(request, exchange);
+		getTimer().schedule(task, request.getRemainingTime());
+		return task;
+	}
+	
+	/**
+	 * Returns the latest deadline among a request and the identical GET requests waiting for its response
+	 * 
+	 * @param request
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @return
+	 * 		The latest deadline in milliseconds, 0 if one of these requests has no deadline
+	 * 
+	 * @since 0.9
+	 */
+	private static long getSharedDeadline(RESTRequest<? extends Resource> request) {
+		long deadline = request.getDeadline();
+		synchronized(inFlightGets) {
+			InFlightGet inFlightGet = inFlightGetsByLeader.get(request.getID());
+			if(null != inFlightGet) {
+				for(Follower f : inFlightGet.mFollowers) {
+					if(f.mRequest.getDeadline() == 0)
+						return 0;
+					deadline = Math.max(deadline, f.mRequest.getDeadline());
+				}
+			}
+		}
+		return deadline;
+	}
+	
+	/**
+	 * Returns the timer shared by all the handlers, creating it if needed
+	 * 
+	 * @return
+	 * 		{@link HttpRequestHandler#timer}
+	 * 
+	 * @since 0.9
+	 */
+	private static synchronized Timer getTimer() {
+		if(null == timer)
+			timer = new Timer("RESTDroid-timers", true);
+		return timer;
+	}
+	
+	/**
+	 * Shortens a network timeout so that it does not run past the deadline of the request
+	 * 
+	 * @param r
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param timeout
+	 * 		The timeout in milliseconds
+	 * 
+	 * @return
+	 * 		The timeout, or the time left before the deadline if it is shorter
+	 * 
+	 * @since 0.9
+	 */
+	private static int getTimeout(RESTRequest<? extends Resource> r, int timeout) {
+		return (int) Math.max(1, Math.min(timeout, r.getRemainingTime()));
+	}
+	
+	/**
+	 * Returns the key identifying identical GET requests : the canonical url and the headers of the request. Requests in streaming mode are never coalesced since their response can be read only once
+	 * 
+	 * @param r
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @return
+	 * 		The coalescing key, or null if the request must not be coalesced
+	 */
+	private static String getCoalescingKey(RESTRequest<? extends Resource> r) {
+		if(r.isStreamingResponse())
+			return null;
+		StringBuilder key = new StringBuilder("GET ");
+		try {
+			URI uri = new URI(r.getUrl()).normalize();
+			if(null == uri.getScheme() || null == uri.getHost())
+				return null;
+			String scheme = uri.getScheme().toLowerCase(Locale.US);
+			int port = uri.getPort();
+			if((scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443))
+				port = -1;
+			key.append(scheme).append("://").append(uri.getHost().toLowerCase(Locale.US));
+			if(port != -1)
+				key.append(':').append(port);
+			key.append(null != uri.getRawPath() && uri.getRawPath().length() > 0 ? uri.getRawPath() : "/");
+			if(null != uri.getRawQuery())
+				key.append('?').append(uri.getRawQuery());
+		} catch (URISyntaxException e) {
+			return null;
+		}
+		if(null != r.getHeaders()) {
+			List<String> headers = new ArrayList<String>();
+			for(SerializableHeader h : r.getHeaders())
+				headers.add(h.getName().toLowerCase(Locale.US) + ":" + h.getValue());
+			Collections.sort(headers);
+			for(String header : headers)
+				key.append('\n').append(header);
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * Wraps the response body in a streaming decompressor according to its Content-Encoding. Deflate bodies are accepted with or without zlib header
+	 * 
+	 * @param is
+	 * 		The response body, may be null
+	 * 
+	 * @param contentEncoding
+	 * 		Value of the Content-Encoding response header, may be null
+	 * 
+	 * @return
+	 * 		The decompressed response body
+	 * 
+	 * @throws IOException
+	 */
+	private static InputStream decodeContent(InputStream is, String contentEncoding) throws IOException {
+		if(null == is || null == contentEncoding)
+			return is;
+		String encoding = contentEncoding.trim().toLowerCase(Locale.US);
+		if(!encoding.equals("gzip") && !encoding.equals("x-gzip") && !encoding.equals("deflate"))
+			return is;
+		BufferedInputStream bis = new BufferedInputStream(is);
+		bis.mark(2);
+		int b0 = bis.read();
+		int b1 = bis.read();
+		bis.reset();
+		if(b1 == -1) { //Empty body, e.g. 204 or 304
+			bis.close();
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		try {
+			if(encoding.equals("deflate")) {
+				boolean zlibWrapped = (b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0;
+				return new InflaterInputStream(bis, new Inflater(!zlibWrapped));
+			}
+			return new GZIPInputStream(bis);
+		} catch (EOFException e) {
+			bis.close();
+			return new ByteArrayInputStream(new byte[0]);
+		}
+	}
+	
+	/**
+	 * Returns the result code of a failed request : {@link HttpRequestHandler#CANCELLED} or {@link HttpRequestHandler#DEADLINE_EXCEEDED} if its exchange has been aborted for these reasons, the code of the exception otherwise
+	 * 
+	 * @param request
+	 * 		Instance of {@link RESTRequest}
+	 * 
+	 * @param e
+	 * 		The exception
+	 * 
+	 * @return
+	 * 		The result code of the failed request
+	 * 
+	 * @since 0.9
+	 */
+	private int getErrorCode(RESTRequest<? extends Resource> request, IOException e) {
+		if(isCancelled(request))
+			return CANCELLED;
+		if(e instanceof RequestRejectedException)
+			return REJECTED;
+		if(request.isExpired())
+			return DEADLINE_EXCEEDED;
+		return getErrorCode(e);
+	}
+	
+	/**
+	 * Maps an IOException thrown by a {@link Transport} to a result code
+	 * 
+	 * @param e
+	 * 		The exception
+	 * 
+	 * @return
+	 * 		The result code of the failed request
+	 */
+	private int getErrorCode(IOException e) {
+		if(e instanceof ProtocolException)
+			return CLIENT_PROTOCOL_EXCEPTION;
+		if(e instanceof UnknownHostException)
+			return UNKNOWN_HOST_EXCEPTION;
+		if(e instanceof MalformedURLException)
+			return MALFORMED_URL_EXCEPTION;
+		if(e instanceof UnknownServiceException)
+			return UNKNOWN_SERVICE_EXCEPTION;
+		if(e instanceof ConnectionTimeoutException)
+			return CONNECT_TIMEOUT_EXCEPTION;
+		if(e instanceof SocketTimeoutException)
+			return SOCKET_TIMEOUT_EXCEPTION;
+		return IO_EXCEPTION;
+	}
+	
+	/**
+	 * <b>Task of the {@link RequestDispatcher} executing an exchange</b>
+	 * 
+	 * <p>
+	 * With an {@link AsyncTransport} the task returns as soon as the exchange is started and the {@link RequestDispatcher.Slot} of the host is kept until the callback has processed the response on a worker thread.
+	 * Otherwise the exchange and the callback run on the worker thread of the task.
+	 * </p>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private class ExchangeTask implements RequestDispatcher.SlotTask {
+		
+		private final RESTRequest<? extends Resource> mRequest;
+		
+		private final Exchange mExchange;
+		
+		/**
+		 * Callback receiving the response or the failure
+		 */
+		private final AsyncTransport.ExchangeCallback mCallback;
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param request
+		 * 		Instance of {@link RESTRequest}
+		 * 
+		 * @param exchange
+		 * 		The {@link Transport.Exchange} to execute
+		 * 
+		 * @param callback
+		 * 		Callback receiving the response or the failure
+		 */
+		public ExchangeTask(RESTRequest<? extends Resource> request, Exchange exchange, AsyncTransport.ExchangeCallback callback) {
+			mRequest = request;
+			mExchange = exchange;
+			mCallback = callback;
+		}
+		
+		@Override
+		public void run(final RequestDispatcher.Slot slot) {
+			int statusCode;
+			long startTime = 0;
+			try {
+				if(mRequest.isExpired())
+					throw new IOException("Deadline exceeded before execution");
+				if(isCancelled(mRequest))
+					throw new IOException("Request cancelled before execution");
+				startTime = System.currentTimeMillis();
+				if(getTransport() instanceof AsyncTransport && executeAsync(slot, startTime))
+					return;
+				statusCode = mExchange.execute();
+			} catch (IOException e) {
+				if(startTime != 0)
+					recordSample(mRequest, startTime, 0, e);
+				try {
+					mCallback.onFailure(mExchange, e);
+				} finally {
+					slot.release();
+				}
+				return;
+			}
+			recordSample(mRequest, startTime, statusCode, null);
+			try {
+				mCallback.onResponse(mExchange, statusCode);
+			} finally {
+				slot.release();
+			}
+		}
+		
+		/**
+		 * Starts the exchange on the {@link AsyncTransport}. The callback is run by {@link RequestDispatcher.Slot#releaseAfter(Runnable)}
+		 * 
+		 * @param slot
+		 * 		The {@link RequestDispatcher.Slot} of the request
+		 * 
+		 * @param startTime
+		 * 		Time in milliseconds when the exchange is started
+		 * 
+		 * @return
+		 * 		True if the exchange has been started, false if the transport cannot execute it asynchronously
+		 */
+		private boolean executeAsync(final RequestDispatcher.Slot slot, final long startTime) {
+			return ((AsyncTransport) getTransport()).executeAsync(mExchange, new AsyncTransport.ExchangeCallback() {
+				
+				@Override
+				public void onResponse(Exchange e, final int statusCode) {
+					recordSample(mRequest, startTime, statusCode, null);
+					slot.releaseAfter(new Runnable() {
+						public void run() {
+							mCallback.onResponse(mExchange, statusCode);
+						}
+					});
+				}
+				
+				@Override
+				public void onFailure(Exchange e, final IOException ioe) {
+					recordSample(mRequest, startTime, 0, ioe);
+					slot.releaseAfter(new Runnable() {
+						public void run() {
+							mCallback.onFailure(mExchange, ioe);
+						}
+					});
+				}
+			});
+		}
+		
+	}
+	
+	/**
+	 * <b>IOException reported to a request rejected by {@link RequestDispatcher} because its queue was full</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class RequestRejectedException extends IOException {
+		
+		private static final long serialVersionUID = 4418946017320355128L;
+		
+		public RequestRejectedException() {
+			super("Request rejected, the dispatcher queue is full");
+		}
+		
+	}
+	
+	/**
+	 * <b>Task aborting an exchange at the deadline of its request</b>
+	 * 
+	 * <p>
+	 * If identical GET requests wait for the response of the exchange, the abort is put off until the latest deadline among them, or forever if one of them has no deadline
+	 * </p>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class DeadlineTask extends TimerTask {
+		
+		private final RESTRequest<? extends Resource> mRequest;
+		
+		private final Exchange mExchange;
+		
+		/**
+		 * Task scheduled at the shared deadline, guarded by this task
+		 */
+		private DeadlineTask mNext;
+		
+		/**
+		 * True once this task has been cancelled, guarded by this task
+		 */
+		private boolean mCancelled;
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param request
+		 * 		Instance of {@link RESTRequest}
+		 * 
+		 * @param exchange
+		 * 		The {@link Transport.Exchange} of the request
+		 */
+		public DeadlineTask(RESTRequest<? extends Resource> request, Exchange exchange) {
+			mRequest = request;
+			mExchange = exchange;
+		}
+		
+		@Override
+		public void run() {
+			long deadline = getSharedDeadline(mRequest);
+			if(deadline == 0) {
+				Log.i(RestService.TAG, "Deadline of request " + mRequest.getID() + " passed, its exchange is shared by requests without deadline");
+				return;
+			}
+			long remainingTime = deadline - System.currentTimeMillis();
+			if(remainingTime > 0) {
+				synchronized(this) {
+					if(mCancelled)
+						return;
+					mNext = new DeadlineTask(mRequest, mExchange);
+					getTimer().schedule(mNext, remainingTime);
+				}
+				return;
+			}
+			Log.w(RestService.TAG, "Request " + mRequest.getID() + " aborted, its deadline has passed");
+			mExchange.abort();
+		}
+		
+		@Override
+		public boolean cancel() {
+			synchronized(this) {
+				mCancelled = true;
+				if(null != mNext)
+					mNext.cancel();
+			}
+			return super.cancel();
+		}
+		
+	}
+	
+	/**
+	 * <b>GET request in flight and the identical requests waiting for its response</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class InFlightGet {
+		
+		/**
+		 * Coalescing key of the request
+		 */
+		private final String mKey;
+		
+		/**
+		 * Requests waiting for the response of the request executing the exchange
+		 */
+		private final ArrayList<Follower> mFollowers;
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param key
+		 * 		Coalescing key of the request
+		 */
+		public InFlightGet(String key) {
+			mKey = key;
+			mFollowers = new ArrayList<Follower>();
+		}
+		
+	}
+	
+	/**
+	 * <b>Request waiting for the response of an identical GET request, possibly sent by another handler</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class Follower {
+		
+		private final RESTRequest<? extends Resource> mRequest;
+		
+		/**
+		 * The {@link ProcessorCallback} of the request
+		 */
+		private final ProcessorCallback mCallback;
+		
+		/**
+		 * The handler which received the request, whose {@link RequestDispatcher} delivers its result
+		 */
+		private final HttpRequestHandler mHandler;
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param request
+		 * 		The waiting {@link RESTRequest}
+		 * 
+		 * @param callback
+		 * 		The {@link ProcessorCallback} of the request
+		 * 
+		 * @param handler
+		 * 		The handler which received the request
+		 */
+		public Follower(RESTRequest<? extends Resource> request, ProcessorCallback callback, HttpRequestHandler handler) {
+			mRequest = request;
+			mCallback = callback;
+			mHandler = handler;
+		}
+		
+	}
+	
+	/**
+	 * <b>GET request raced against a second identical exchange when its response is late</b>
+	 * 
+	 * <p>
+	 * The first exchange to receive a response wins, the other one is aborted. A failure is reported only when no exchange is left running, or when the request deadline has passed or the request is cancelled.
+	 * </p>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 * 
+	 * @see HedgingPolicy
+	 */
+	private class HedgedGet implements AsyncTransport.ExchangeCallback {
+		
+		private final RESTRequest<? extends Resource> mRequest;
+		
+		/**
+		 * Host of the request, see {@link RequestDispatcher#getHost(String)}
+		 */
+		private final String mHost;
+		
+		private final HedgingPolicy mPolicy;
+		
+		private final ProcessorCallback mCallback;
+		
+		/**
+		 * Task aborting the first exchange at the request deadline, may be null
+		 */
+		private final TimerTask mDeadlineTask;
+		
+		/**
+		 * The first exchange
+		 */
+		private final Exchange mPrimary;
+		
+		/**
+		 * The second exchange, null until the request is hedged
+		 */
+		private Exchange mHedge;
+		
+		/**
+		 * Task sending {@link HedgedGet#mHedge}, null if the request is not hedged
+		 */
+		private TimerTask mHedgeTask;
+		
+		private long mPrimaryStartTime;
+		
+		private long mHedgeStartTime;
+		
+		/**
+		 * Number of exchanges still running
+		 */
+		private int mRunning;
+		
+		/**
+		 * True once the winner is known
+		 */
+		private boolean mDone;
+		
+		/**
+		 * Failure of the first exchange to fail, reported if the other one is abandoned
+		 */
+		private IOException mFailure;
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param request
+		 * 		The GET {@link RESTRequest}
+		 * 
+		 * @param primary
+		 * 		The first exchange of the request, not executed yet
+		 * 
+		 * @param deadlineTask
+		 * 		Task aborting the first exchange at the request deadline, may be null
+		 * 
+		 * @param policy
+		 * 		The {@link HedgingPolicy}
+		 * 
+		 * @param callback
+		 * 		The {@link ProcessorCallback} of the request
+		 */
+		public HedgedGet(RESTRequest<? extends Resource> request, Exchange primary, TimerTask deadlineTask, HedgingPolicy policy, ProcessorCallback callback) {
+			mRequest = request;
+			mHost = RequestDispatcher.getHost(request.getUrl());
+			mPrimary = primary;
+			mDeadlineTask = deadlineTask;
+			mPolicy = policy;
+			mCallback = callback;
+		}
+		
+		/**
+		 * Executes the first exchange and schedules the second one after the latency percentile of the host
+		 */
+		public void start() {
+			long hedgeDelay = mPolicy.onRequest(mHost);
+			synchronized(this) {
+				mRunning = 1;
+				mPrimaryStartTime = System.currentTimeMillis();
+				if(hedgeDelay >= 0) {
+					mHedgeTask = new TimerTask() {
+						public void run() {
+							hedge();
+						}
+					};
+					getTimer().schedule(mHedgeTask, Math.max(1, hedgeDelay));
+				}
+			}
+			startExchange(mRequest, mPrimary, this);
+		}
+		
+		/**
+		 * Executes the second exchange if the first one has not received its response yet and the budget allows it.
+		 * Runs on the timer thread : the hedge is abandoned if the queue of the {@link RequestDispatcher} is full, it never runs on this thread nor takes the place of another request
+		 */
+		private void hedge() {
+			final Exchange hedge;
+			synchronized(this) {
+				if(mDone || mRequest.isExpired() || isCancelled(mRequest) || !mPolicy.acquireHedge())
+					return;
+				try {
+					hedge = createExchange(HTTPVerb.GET, mRequest);
+				} catch (Exception e) {
+					Log.w(RestService.TAG, "Cannot hedge request " + mRequest.getID(), e);
+					mPolicy.releaseHedge();
+					return;
+				}
+				mHedge = hedge;
+				mHedgeStartTime = System.currentTimeMillis();
+				mRunning++;
+			}
+			Log.i(RestService.TAG, "Request " + mRequest.getID() + " hedged after " + (mHedgeStartTime - mPrimaryStartTime) + " ms");
+			getRequestDispatcher().executeOptional(mRequest, new ExchangeTask(mRequest, hedge, this), new Runnable() {
+				public void run() {
+					abandonHedge(hedge);
+				}
+			});
+		}
+		
+		/**
+		 * Gives up the second exchange rejected by the {@link RequestDispatcher} and gives its hedge back to the budget. If the first one has already failed its failure is reported
+		 * 
+		 * @param hedge
+		 * 		The second exchange, not executed
+		 */
+		private void abandonHedge(Exchange hedge) {
+			IOException failure;
+			Log.i(RestService.TAG, "Hedge of request " + mRequest.getID() + " abandoned, the dispatcher queue is full");
+			mPolicy.releaseHedge();
+			synchronized(this) {
+				mRunning--;
+				mHedge = null;
+				if(mDone || mRunning > 0) {
+					hedge.release();
+					return;
+				}
+				mDone = true;
+				failure = mFailure;
+			}
+			handleFailure(mRequest, hedge, failure, mDeadlineTask, mCallback);
+		}
+		
+		@Override
+		public void onResponse(Exchange exchange, int statusCode) {
+			Exchange loser = null;
+			boolean won;
+			synchronized(this) {
+				mRunning--;
+				won = !mDone;
+				if(won) {
+					mDone = true;
+					if(null != mHedgeTask)
+						mHedgeTask.cancel();
+					mPolicy.recordLatency(mHost, System.currentTimeMillis() - (exchange == mPrimary ? mPrimaryStartTime : mHedgeStartTime));
+					if(mRunning > 0)
+						loser = exchange == mPrimary ? mHedge : mPrimary;
+				}
+			}
+			if(!won) {
+				exchange.release();
+				return;
+			}
+			if(null != loser)
+				loser.abort();
+			handleResponse(mRequest, exchange, statusCode, mDeadlineTask, mCallback);
+		}
+		
+		@Override
+		public void onFailure(Exchange exchange, IOException e) {
+			Exchange other = null;
+			boolean last;
+			synchronized(this) {
+				mRunning--;
+				/* Waits for the other exchange unless it has already won, the deadline has passed or the request is cancelled */
+				last = !mDone && (mRunning == 0 || mRequest.isExpired() || isCancelled(mRequest));
+				if(last) {
+					mDone = true;
+					if(null != mHedgeTask)
+						mHedgeTask.cancel();
+					if(mRunning > 0)
+						other = exchange == mPrimary ? mHedge : mPrimary;
+				}
+				else if(null == mFailure)
+					mFailure = e;
+			}
+			if(!last) {
+				exchange.release();
+				return;
+			}
+			if(null != other)
+				other.abort();
+			handleFailure(mRequest, exchange, e, mDeadlineTask, mCallback);
+		}
+		
+	}
+	
+	/**
+	 * <b>Binder callback fires when the request is finished</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.7.2
+	 */
+	public interface ProcessorCallback {
+	
+		/**
+		 * Method to handle the callback
+		 * 
+		 * @param statusCode
+		 * 		The status code of the request
+		 * 
+		 * @param request
+		 * 		Instance of the current {@link RESTRequest}
+		 * 
+		 */
+		abstract public void callAction(int statusCode, RESTRequest<? extends Resource> request);
+	}
+	
+	/**
+	 * Set the processor callback of the requests started without their own callback. The callback of a request is taken when the request is started, so changing it does not affect the requests in flight
+	 * 
+	 * @param callback
+	 * 		@see ProcessorCallback
+	 * 
+	 * @see HttpRequestHandler#mProcessorCallback
+	 */
+	public void setProcessorCallback(ProcessorCallback callback) {
+		mProcessorCallback = callback;
+	}
+	
+	/**
+	 * Getter for {@link HttpRequestHandler#mTransport}
+	 * 
+	 * @return
+	 * 		The {@link Transport} executing the requests, an {@link ApacheTransport} created on first call if none has been set
+	 * 
+	 * @since 0.9
+	 */
+	public Transport getTransport() {
+		Transport transport = mTransport;
+		if(null == transport) {
+			synchronized(this) {
+				if(null == mTransport)
+					mTransport = new ApacheTransport();
+				transport = mTransport;
+			}
+		}
+		return transport;
+	}
+	
+	/**
+	 * Setter for {@link HttpRequestHandler#mTransport}. The previous {@link Transport} is shut down
+	 * 
+	 * @param transport
+	 * 		The {@link Transport} executing the requests
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized void setTransport(Transport transport) {
+		if(null != mTransport && mTransport != transport)
+			mTransport.shutdown();
+		mTransport = transport;
+	}
+	
+	/**
+	 * Getter for {@link HttpRequestHandler#mHedgingPolicy}
+	 * 
+	 * @return
+	 * 		The {@link HedgingPolicy} of the GET requests, or null
+	 * 
+	 * @since 0.9
+	 */
+	public HedgingPolicy getHedgingPolicy() {
+		return mHedgingPolicy;
+	}
+	
+	/**
+	 * Setter for {@link HttpRequestHandler#mHedgingPolicy}
+	 * 
+	 * @param hedgingPolicy
+	 * 		The {@link HedgingPolicy} of the GET requests, null to disable hedging
+	 * 
+	 * @since 0.9
+	 */
+	public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+		mHedgingPolicy = hedgingPolicy;
+	}
+	
+	/**
+	 * Getter for {@link HttpRequestHandler#mRequestDispatcher}
+	 * 
+	 * @return
+	 * 		The {@link RequestDispatcher} of this handler, or the one of {@link WebService#getRequestDispatcher()} if none has been set
+	 * 
+	 * @since 0.9
+	 */
+	public RequestDispatcher getRequestDispatcher() {
+		RequestDispatcher requestDispatcher = mRequestDispatcher;
+		return null != requestDispatcher ? requestDispatcher : WebService.getRequestDispatcher();
+	}
+	
+	/**
+	 * Setter for {@link HttpRequestHandler#mRequestDispatcher}. Must be called before the first request
+	 * 
+	 * @param requestDispatcher
+	 * 		The {@link RequestDispatcher} scheduling the requests of this handler, null to use the shared one
+	 * 
+	 * @since 0.9
+	 */
+	public void setRequestDispatcher(RequestDispatcher requestDispatcher) {
+		mRequestDispatcher = requestDispatcher;
+	}
+	
+	/**
+	 * Shuts down the {@link Transport}. This handler must not be used afterwards
+	 */
+	public void shutdown() {
+		Transport transport = mTransport;
+		if(null != transport)
+			transport.shutdown();
 	}
 	
 }
@@ -0,0 +1,124 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <b>{@link RequestBody} streaming an InputStream, typically the result of {@link Parser#parseToInputStream(Resource)}</b>
+ * 
+ * <p>
+ * The length of in-memory and file streams is known and sent as Content-Length, other streams are sent chunked.
+ * The stream is not serializable : use a {@link FileRequestBody} to attach a file to a {@link RESTRequest}.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public class InputStreamRequestBody extends RequestBody {
+
+	private static final long serialVersionUID = -6092475283347190574L;
+
+	/**
+	 * The stream to send
+	 */
+	private transient InputStream mInputStream;
+	
+	/**
+	 * Length of {@link InputStreamRequestBody#mInputStream} or -1 if unknown
+	 */
+	private long mContentLength;
+	
+	/**
+	 * Constructor. The length of the stream is guessed from its type
+	 * 
+	 * @param inputStream
+	 * 		The stream to send
+	 * 
+	 * @param contentType
+	 * 		The content type of the body
+	 */
+	public InputStreamRequestBody(InputStream inputStream, String contentType) {
+		this(inputStream, contentType, guessLength(inputStream));
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param inputStream
+	 * 		The stream to send
+	 * 
+	 * @param contentType
+	 * 		The content type of the body
+	 * 
+	 * @param contentLength
+	 * 		The length of the stream or -1 if unknown
+	 */
+	public InputStreamRequestBody(InputStream inputStream, String contentType, long contentLength) {
+		super(contentType);
+		mInputStream = inputStream;
+		mContentLength = contentLength;
+	}
+	
+	/**
+	 * The stream is transient, it is lost once the body is serialized
+	 * 
+	 * @see RequestBody#isSerializable()
+	 */
+	@Override
+	public boolean isSerializable() {
+		return false;
+	}
+	
+	/**
+	 * Returns the length of the stream when it can be known without reading it
+	 * 
+	 * @param is
+	 * 		The stream
+	 * 
+	 * @return
+	 * 		The length of the stream or -1 if unknown
+	 */
+	private static long guessLength(InputStream is) {
+		try {
+			if(is instanceof ByteArrayInputStream)
+				return is.available();
+			if(is instanceof FileInputStream) {
+				FileInputStream fis = (FileInputStream) is;
+				return fis.getChannel().size() - fis.getChannel().position();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return -1;
+	}
+	
+	/**
+	 * @see RequestBody#getContentLength()
+	 */
+	@Override
+	public long getContentLength() {
+		return mContentLength;
+	}
+	
+	/**
+	 * @see RequestBody#writeTo(OutputStream)
+	 */
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] buffer = BufferPool.acquire();
+		try {
+			int read;
+			while((read = mInputStream.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+			out.flush();
+		} finally {
+			BufferPool.release(buffer);
+			mInputStream.close();
+		}
+	}
+	
+}
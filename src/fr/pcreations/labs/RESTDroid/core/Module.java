@@ -28,11 +28,17 @@ abstract public class Module {
 	 * @see Module#setProcessor()
 	 * @see Module#setParserFactory()
 	 * @see Module#setPersistableFactory()
+	 * @see Module#setTransport()
+	 * @see Module#setHedgingPolicy()
+	 * @see Module#setRequestDispatcher()
 	 */
 	public void init() {
 		mProcessor = setProcessor();
 		mProcessor.setParserFactory(setParserFactory());
 		mProcessor.setPersistableFactory(setPersistableFactory());
+		mProcessor.setTransport(setTransport());
+		mProcessor.setHedgingPolicy(setHedgingPolicy());
+		mProcessor.setRequestDispatcher(setRequestDispatcher());
 	}
 	
 	/**
@@ -60,6 +66,59 @@ abstract public class Module {
 	 * 		Instance of {@link PersistableFactory}
 	 */
 	abstract public PersistableFactory setPersistableFactory();
+	
+	/**
+	 * Return the {@link Transport} you want for this module. Override it to choose another HTTP stack, {@link ApacheTransport} is used by default
+	 * 
+	 * @return
+	 * 		Instance of {@link Transport}
+	 * 
+	 * @see ApacheTransport
+	 * @see UrlConnectionTransport
+	 * @see NioTransport
+	 * @see Http2Transport
+	 * 
+	 * @since 0.9
+	 */
+	public Transport setTransport() {
+		return new ApacheTransport();
+	}
+
+	/**
+	 * Return the {@link HedgingPolicy} you want for this module. Override it to hedge the GET requests, they are not hedged by default
+	 * 
+	 * @return
+	 * 		Instance of {@link HedgingPolicy}, or null
+	 * 
+	 * @see HedgingPolicy
+	 * 
+	 * @since 0.9
+	 */
+	public HedgingPolicy setHedgingPolicy() {
+		return null;
+	}
+
+	/**
+	 * Return the {@link RequestDispatcher} you want for this module. Override it to run the requests of this module on their own thread pool, isolated from the other modules :
+	 * <pre>
+	 * public RequestDispatcher setRequestDispatcher() {
+	 * 	RequestDispatcher dispatcher = new RequestDispatcher("analytics", 2, 2, Process.THREAD_PRIORITY_BACKGROUND);
+	 * 	dispatcher.setMaxQueueSize(50);
+	 * 	return dispatcher;
+	 * }
+	 * </pre>
+	 * The dispatcher shared by all modules, {@link WebService#getRequestDispatcher()}, is used by default
+	 * 
+	 * @return
+	 * 		Instance of {@link RequestDispatcher}, or null to use the shared one
+	 * 
+	 * @see RequestDispatcher#RequestDispatcher(String, int, int, int)
+	 * 
+	 * @since 0.9
+	 */
+	public RequestDispatcher setRequestDispatcher() {
+		return null;
+	}
 
 	/**
 	 * Getter for {@link Processor} field
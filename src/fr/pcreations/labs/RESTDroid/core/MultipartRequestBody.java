@@ -0,0 +1,335 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * <b>multipart/form-data {@link RequestBody} mixing JSON parts and files</b>
+ * 
+ * <p>
+ * Text and JSON parts are held in memory, file parts are streamed from the disk as a {@link FileRequestBody}. The length of the body is known so it is sent with a Content-Length header.
+ * </p>
+ * 
+ * <p>
+ * A part created with {@link MultipartRequestBody#addResourcePart(String)} receives the JSON representation of the request's {@link Resource}, as returned by {@link Processor#prePostRequest(RESTRequest)} or {@link Processor#prePutRequest(RESTRequest)}.
+ * The resource therefore goes through {@link Processor#mirrorServerState(RESTRequest)} as for a JSON request :
+ * <pre>
+ * MultipartRequestBody body = new MultipartRequestBody();
+ * body.addResourcePart("metadata");
+ * body.addFilePart("photo", photoFile, "image/jpeg");
+ * request.setRequestBody(body);
+ * </pre>
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see RESTRequest#setRequestBody(RequestBody)
+ */
+public class MultipartRequestBody extends RequestBody {
+	
+	private static final long serialVersionUID = 7530916234855160482L;
+	
+	private static final String CRLF = "\r\n";
+	
+	/**
+	 * Boundary between the parts
+	 */
+	private final String mBoundary;
+	
+	/**
+	 * The parts, in order
+	 */
+	private final ArrayList<Part> mParts;
+	
+	/**
+	 * Constructor
+	 */
+	public MultipartRequestBody() {
+		this("RESTDroid" + UUID.randomUUID().toString().replace("-", ""));
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param boundary
+	 * 		Boundary between the parts
+	 */
+	private MultipartRequestBody(String boundary) {
+		super("multipart/form-data; boundary=" + boundary);
+		mBoundary = boundary;
+		mParts = new ArrayList<Part>();
+	}
+	
+	/**
+	 * Adds a text field
+	 * 
+	 * @param name
+	 * 		Name of the field
+	 * 
+	 * @param value
+	 * 		Value of the field
+	 * 
+	 * @return
+	 * 		This body
+	 */
+	public MultipartRequestBody addPart(String name, String value) {
+		mParts.add(new Part(getHeaders(name, null, "text/plain; charset=UTF-8"), getBytes(value), null));
+		return this;
+	}
+	
+	/**
+	 * Adds a JSON part
+	 * 
+	 * @param name
+	 * 		Name of the part
+	 * 
+	 * @param json
+	 * 		The JSON document
+	 * 
+	 * @return
+	 * 		This body
+	 */
+	public MultipartRequestBody addJsonPart(String name, String json) {
+		mParts.add(new Part(getHeaders(name, null, CONTENT_TYPE_JSON), getBytes(json), null));
+		return this;
+	}
+	
+	/**
+	 * Adds a part receiving the JSON representation of the request's {@link Resource} when the request is processed
+	 * 
+	 * @param name
+	 * 		Name of the part
+	 * 
+	 * @return
+	 * 		This body
+	 * 
+	 * @see MultipartRequestBody#setResourcePart(InputStream)
+	 */
+	public MultipartRequestBody addResourcePart(String name) {
+		Part part = new Part(getHeaders(name, null, CONTENT_TYPE_JSON), null, null);
+		part.mResource = true;
+		mParts.add(part);
+		return this;
+	}
+	
+	/**
+	 * Adds a file part. The file is read only when the body is sent
+	 * 
+	 * @param name
+	 * 		Name of the part
+	 * 
+	 * @param file
+	 * 		The file to send, its name is sent as file name
+	 * 
+	 * @param contentType
+	 * 		The content type of the file
+	 * 
+	 * @return
+	 * 		This body
+	 */
+	public MultipartRequestBody addFilePart(String name, File file, String contentType) {
+		mParts.add(new Part(getHeaders(name, file.getName(), contentType), null, new FileRequestBody(file, contentType)));
+		return this;
+	}
+	
+	/**
+	 * Sets the content of the parts added with {@link MultipartRequestBody#addResourcePart(String)}. Called by {@link Processor} with the result of the pre request hooks
+	 * 
+	 * @param json
+	 * 		The JSON representation of the resource, may be null. The stream is closed
+	 * 
+	 * @throws IOException
+	 */
+	void setResourcePart(InputStream json) throws IOException {
+		byte[] content = new byte[0];
+		if(null != json) {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = BufferPool.acquire();
+				try {
+					int read;
+					while((read = json.read(buffer)) != -1)
+						out.write(buffer, 0, read);
+				} finally {
+					BufferPool.release(buffer);
+				}
+				content = out.toByteArray();
+			} finally {
+				json.close();
+			}
+		}
+		for(Part part : mParts) {
+			if(part.mResource)
+				part.mContent = content;
+		}
+	}
+	
+	/**
+	 * @see RequestBody#getContentLength()
+	 */
+	@Override
+	public long getContentLength() {
+		long length = 0;
+		for(Object segment : getSegments())
+			length += segment instanceof byte[] ? ((byte[]) segment).length : ((FileRequestBody) segment).getContentLength();
+		return length;
+	}
+	
+	/**
+	 * @see RequestBody#writeTo(OutputStream)
+	 */
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		for(Object segment : getSegments()) {
+			if(segment instanceof byte[])
+				out.write((byte[]) segment);
+			else
+				((FileRequestBody) segment).writeTo(out);
+		}
+		out.flush();
+	}
+	
+	/**
+	 * @see RequestBody#isTransferable()
+	 */
+	@Override
+	public boolean isTransferable() {
+		return true;
+	}
+	
+	/**
+	 * @see RequestBody#transferTo(WritableByteChannel, long, long)
+	 */
+	@Override
+	public long transferTo(WritableByteChannel channel, long position, long count) throws IOException {
+		long start = 0;
+		for(Object segment : getSegments()) {
+			long length = segment instanceof byte[] ? ((byte[]) segment).length : ((FileRequestBody) segment).getContentLength();
+			if(position < start + length) {
+				long offset = position - start;
+				long n = Math.min(count, length - offset);
+				if(segment instanceof byte[])
+					return channel.write(ByteBuffer.wrap((byte[]) segment, (int) offset, (int) n));
+				return ((FileRequestBody) segment).transferTo(channel, offset, n);
+			}
+			start += length;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Returns the body as a list of segments : byte arrays for boundaries, headers and in-memory parts, {@link FileRequestBody} for files
+	 * 
+	 * @return
+	 * 		The segments, in order
+	 */
+	private ArrayList<Object> getSegments() {
+		ArrayList<Object> segments = new ArrayList<Object>();
+		for(Part part : mParts) {
+			segments.add(getBytes("--" + mBoundary + CRLF));
+			segments.add(part.mHeaders);
+			if(null != part.mFile)
+				segments.add(part.mFile);
+			else if(null != part.mContent)
+				segments.add(part.mContent);
+			segments.add(getBytes(CRLF));
+		}
+		segments.add(getBytes("--" + mBoundary + "--" + CRLF));
+		return segments;
+	}
+	
+	/**
+	 * Builds the headers of a part
+	 * 
+	 * @param name
+	 * 		Name of the part
+	 * 
+	 * @param fileName
+	 * 		File name, may be null
+	 * 
+	 * @param contentType
+	 * 		Content type of the part
+	 * 
+	 * @return
+	 * 		The headers followed by the blank line
+	 */
+	private static byte[] getHeaders(String name, String fileName, String contentType) {
+		StringBuilder headers = new StringBuilder("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+		if(null != fileName)
+			headers.append("; filename=\"").append(escape(fileName)).append('"');
+		headers.append(CRLF).append("Content-Type: ").append(contentType).append(CRLF).append(CRLF);
+		return getBytes(headers.toString());
+	}
+	
+	/**
+	 * Escapes a name of the Content-Disposition header
+	 * 
+	 * @param name
+	 * 		The name
+	 * 
+	 * @return
+	 * 		The name with quotes and line breaks percent-encoded
+	 */
+	private static String escape(String name) {
+		return name.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+	}
+	
+	private static byte[] getBytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * <b>Part of the body</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class Part implements Serializable {
+	
+		private static final long serialVersionUID = -2908412846370146185L;
+	
+		/**
+		 * Headers of the part followed by the blank line
+		 */
+		private final byte[] mHeaders;
+	
+		/**
+		 * Content of an in-memory part
+		 */
+		private byte[] mContent;
+	
+		/**
+		 * Content of a file part
+		 */
+		private final FileRequestBody mFile;
+	
+		/**
+		 * True if the part holds the JSON representation of the request's resource
+		 */
+		private boolean mResource;
+	
+		public Part(byte[] headers, byte[] content, FileRequestBody file) {
+			mHeaders = headers;
+			mContent = content;
+			mFile = file;
+		}
+	
+	}
+	
+}
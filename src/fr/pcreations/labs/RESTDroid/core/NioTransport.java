@@ -0,0 +1,1205 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import android.util.Log;
+import fr.pcreations.labs.RESTDroid.exceptions.ConnectionTimeoutException;
+
+/**
+ * <b>Event-driven {@link Transport} multiplexing plain HTTP/1.1 exchanges on a single I/O thread</b>
+ * 
+ * <p>
+ * Exchanges are run by a selector thread, so hundreds of small requests in flight do not need hundreds of blocked threads : the {@link WebService} worker threads are only used to process the responses.
+ * Keep-alive connections are reused per host and closed after {@link NioTransport#IDLE_CONNECTION_TIMEOUT}.
+ * </p>
+ * 
+ * <p>
+ * Limitations :
+ * <ul>
+ * <li>https urls are executed by a blocking fallback {@link Transport}, {@link UrlConnectionTransport} by default</li>
+ * <li>request bodies are buffered in memory before being sent, prefer a blocking {@link Transport} for large uploads</li>
+ * <li>response bodies are fully received before {@link Transport.Exchange#getResponseStream()} returns, in memory up to {@link CacheManager#getSpillThreshold()} and in a temporary file above,
+ * so {@link RESTRequest#setStreamingResponse(boolean)} does not let the {@link Parser} read them from the connection</li>
+ * <li>host names are resolved by the thread starting the exchange, through the {@link DnsCache}</li>
+ * </ul>
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see Module#setTransport()
+ */
+public class NioTransport implements AsyncTransport {
+	
+	/**
+	 * Maximum number of connections opened at the same time
+	 */
+	private static final int MAX_CONNECTIONS = 64;
+	
+	/**
+	 * Maximum number of connections opened to the same host at the same time. Other exchanges wait for a free connection
+	 */
+	private static final int MAX_CONNECTIONS_PER_HOST = 6;
+	
+	/**
+	 * Time in milliseconds after which an idle keep-alive connection is closed
+	 */
+	private static final long IDLE_CONNECTION_TIMEOUT = 30000L;
+	
+	/**
+	 * Maximum time in milliseconds the I/O thread blocks in the selector, i.e. the resolution of timeouts
+	 */
+	private static final long SELECT_TIMEOUT = 250L;
+	
+	/**
+	 * Size of the read buffer of the I/O thread
+	 */
+	private static final int BUFFER_SIZE = 8192;
+	
+	/**
+	 * Connection timeout in milliseconds of the connections opened by {@link NioTransport#preconnect(URI)}
+	 */
+	private static final int PRECONNECT_TIMEOUT = 10000;
+	
+	/**
+	 * Maximum length of a status line, header line or chunk size line
+	 */
+	private static final int MAX_LINE_LENGTH = 8192;
+	
+	/**
+	 * {@link Transport} executing the exchanges this transport cannot handle
+	 */
+	private final Transport mFallbackTransport;
+	
+	/**
+	 * Exchanges started by other threads, waiting to be picked up by the I/O thread
+	 */
+	private final ConcurrentLinkedQueue<NioExchange> mSubmitted;
+	
+	/**
+	 * Exchanges waiting for a connection. Only used by the I/O thread
+	 */
+	private final LinkedList<NioExchange> mWaiting;
+	
+	/**
+	 * Idle keep-alive connections per route. Only used by the I/O thread
+	 */
+	private final HashMap<String, LinkedList<Connection>> mIdleConnections;
+	
+	/**
+	 * Number of open connections per route. Only used by the I/O thread
+	 */
+	private final HashMap<String, Integer> mOpenConnections;
+	
+	/**
+	 * Total number of open connections. Only used by the I/O thread
+	 */
+	private int mOpenConnectionCount;
+	
+	/**
+	 * Selector of the I/O thread, opened with the thread
+	 */
+	private Selector mSelector;
+	
+	/**
+	 * The I/O thread, started by the first exchange
+	 */
+	private Thread mIoThread;
+	
+	/**
+	 * True once {@link NioTransport#shutdown()} has been called
+	 */
+	private volatile boolean mShutdown;
+	
+	/**
+	 * Constructor. https exchanges are executed by {@link UrlConnectionTransport}
+	 */
+	public NioTransport() {
+		this(new UrlConnectionTransport());
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param fallbackTransport
+	 * 		{@link Transport} executing the exchanges this transport cannot handle
+	 */
+	public NioTransport(Transport fallbackTransport) {
+		mFallbackTransport = fallbackTransport;
+		mSubmitted = new ConcurrentLinkedQueue<NioExchange>();
+		mWaiting = new LinkedList<NioExchange>();
+		mIdleConnections = new HashMap<String, LinkedList<Connection>>();
+		mOpenConnections = new HashMap<String, Integer>();
+	}
+	
+	/**
+	 * @see Transport#newExchange(HTTPVerb, URI)
+	 */
+	@Override
+	public Exchange newExchange(HTTPVerb verb, URI uri) throws IOException {
+		if(!"http".equalsIgnoreCase(uri.getScheme()))
+			return mFallbackTransport.newExchange(verb, uri);
+		if(null == uri.getHost())
+			throw new java.net.MalformedURLException("No host in " + uri);
+		return new NioExchange(verb, uri);
+	}
+	
+	/**
+	 * @see AsyncTransport#executeAsync(Transport.Exchange, AsyncTransport.ExchangeCallback)
+	 */
+	@Override
+	public boolean executeAsync(Exchange exchange, ExchangeCallback callback) {
+		if(!(exchange instanceof NioExchange))
+			return false;
+		NioExchange e = (NioExchange) exchange;
+		e.mCallback = callback;
+		try {
+			e.prepare();
+			submit(e);
+		} catch (IOException ex) {
+			e.fail(ex);
+		}
+		return true;
+	}
+	
+	/**
+	 * Opens a keep-alive connection to the origin, unless one is already idle, and returns without waiting for it to be established
+	 * 
+	 * @see Transport#preconnect(URI)
+	 */
+	@Override
+	public void preconnect(URI uri) throws IOException {
+		if(!"http".equalsIgnoreCase(uri.getScheme())) {
+			mFallbackTransport.preconnect(uri);
+			return;
+		}
+		NioExchange exchange = (NioExchange) newExchange(HTTPVerb.GET, uri);
+		exchange.mPreconnect = true;
+		exchange.setTimeouts(PRECONNECT_TIMEOUT, 0);
+		exchange.prepare();
+		submit(exchange);
+	}
+	
+	/**
+	 * @see Transport#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		synchronized(this) {
+			mShutdown = true;
+			if(null != mSelector)
+				mSelector.wakeup();
+		}
+		mFallbackTransport.shutdown();
+	}
+	
+	/**
+	 * Hands a prepared exchange to the I/O thread, starting it if needed
+	 * 
+	 * @param exchange
+	 * 		The exchange to run
+	 * 
+	 * @throws IOException
+	 * 		If the transport has been shut down or the selector cannot be opened
+	 */
+	private synchronized void submit(NioExchange exchange) throws IOException {
+		if(mShutdown)
+			throw new IOException("Transport has been shut down");
+		if(null == mIoThread) {
+			mSelector = Selector.open();
+			mIoThread = new Thread(new Runnable() {
+				public void run() {
+					loop();
+				}
+			}, "RESTDroid-NIO");
+			mIoThread.setDaemon(true);
+			mIoThread.start();
+		}
+		mSubmitted.add(exchange);
+		mSelector.wakeup();
+	}
+	
+	/**
+	 * Body of the I/O thread
+	 */
+	private void loop() {
+		try {
+			while(!mShutdown) {
+				mSelector.select(SELECT_TIMEOUT);
+				NioExchange submitted;
+				while(null != (submitted = mSubmitted.poll()))
+					mWaiting.add(submitted);
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					handleKey(key);
+				}
+				long now = System.currentTimeMillis();
+				checkConnections(now);
+				startWaitingExchanges(now);
+			}
+		} catch (IOException e) {
+			Log.e(RestService.TAG, "NIO transport stopped", e);
+		} catch (ClosedSelectorException e) {
+			Log.e(RestService.TAG, "NIO transport stopped", e);
+		} finally {
+			closeAll();
+		}
+	}
+	
+	/**
+	 * Handles the ready operations of a connection
+	 * 
+	 * @param key
+	 * 		Selected key of the connection
+	 */
+	private void handleKey(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		try {
+			if(!key.isValid())
+				return;
+			if(key.isConnectable())
+				connection.finishConnect();
+			else if(key.isWritable())
+				connection.write();
+			else if(key.isReadable())
+				connection.read();
+		} catch (IOException e) {
+			failConnection(connection, e);
+		}
+	}
+	
+	/**
+	 * Fails the exchanges in timeout or aborted, and closes the expired idle connections
+	 * 
+	 * @param now
+	 * 		Current time in milliseconds
+	 */
+	private void checkConnections(long now) {
+		ArrayList<Connection> connections = new ArrayList<Connection>();
+		for(SelectionKey key : mSelector.keys()) {
+			if(key.attachment() instanceof Connection)
+				connections.add((Connection) key.attachment());
+		}
+		for(Connection connection : connections) {
+			NioExchange exchange = connection.mExchange;
+			if(null == exchange) {
+				if(!connection.mChannel.isConnected()) {
+					/* Opened by preconnect() */
+					if(connection.mDeadline > 0 && now > connection.mDeadline)
+						closeConnection(connection);
+				}
+				else if(now - connection.mIdleSince > IDLE_CONNECTION_TIMEOUT)
+					closeConnection(connection);
+			}
+			else if(exchange.mAborted)
+				failConnection(connection, new IOException("Exchange aborted"));
+			else if(connection.mDeadline > 0 && now > connection.mDeadline) {
+				if(connection.mChannel.isConnected())
+					failConnection(connection, new SocketTimeoutException("Read timed out"));
+				else
+					failConnection(connection, new ConnectionTimeoutException("Connect timed out"));
+			}
+		}
+	}
+	
+	/**
+	 * Gives a connection to the waiting exchanges, in order, while the connection limits allow it
+	 * 
+	 * @param now
+	 * 		Current time in milliseconds
+	 */
+	private void startWaitingExchanges(long now) {
+		for(Iterator<NioExchange> it = mWaiting.iterator(); it.hasNext();) {
+			NioExchange exchange = it.next();
+			if(exchange.mAborted) {
+				it.remove();
+				exchange.fail(new IOException("Exchange aborted"));
+				continue;
+			}
+			if(exchange.mPreconnect) {
+				it.remove();
+				if(!mIdleConnections.containsKey(exchange.mRoute) && mOpenConnectionCount < MAX_CONNECTIONS && getOpenConnectionCount(exchange.mRoute) < MAX_CONNECTIONS_PER_HOST) {
+					try {
+						Connection connection = openConnection(exchange, now);
+						if(connection.mChannel.isConnected())
+							connection.idle();
+					} catch (IOException e) {
+						Log.w(RestService.TAG, "Preconnect to " + exchange.mRoute + " failed", e);
+					}
+				}
+				continue;
+			}
+			Connection connection = pollIdleConnection(exchange.mRoute);
+			if(null == connection) {
+				if(mOpenConnectionCount >= MAX_CONNECTIONS || getOpenConnectionCount(exchange.mRoute) >= MAX_CONNECTIONS_PER_HOST)
+					continue;
+				try {
+					connection = openConnection(exchange, now);
+				} catch (IOException e) {
+					it.remove();
+					exchange.fail(e);
+					continue;
+				}
+			}
+			it.remove();
+			connection.start(exchange, now);
+		}
+	}
+	
+	/**
+	 * Opens a non-blocking connection to the address of an exchange
+	 * 
+	 * @param exchange
+	 * 		The exchange
+	 * 
+	 * @param now
+	 * 		Current time in milliseconds
+	 * 
+	 * @return
+	 * 		The new connection, connecting
+	 * 
+	 * @throws IOException
+	 */
+	private Connection openConnection(NioExchange exchange, long now) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			Connection connection = new Connection(exchange.mRoute, channel);
+			boolean connected = channel.connect(exchange.mAddress);
+			connection.mKey = channel.register(mSelector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, connection);
+			connection.mDeadline = connected || exchange.mConnectTimeout <= 0 ? 0 : now + exchange.mConnectTimeout;
+			mOpenConnections.put(exchange.mRoute, getOpenConnectionCount(exchange.mRoute) + 1);
+			mOpenConnectionCount++;
+			return connection;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns an idle keep-alive connection of a route
+	 * 
+	 * @param route
+	 * 		Host and port
+	 * 
+	 * @return
+	 * 		The most recently used idle connection, or null if there is none
+	 */
+	private Connection pollIdleConnection(String route) {
+		LinkedList<Connection> idle = mIdleConnections.get(route);
+		if(null == idle)
+			return null;
+		Connection connection = idle.removeLast();
+		if(idle.isEmpty())
+			mIdleConnections.remove(route);
+		return connection;
+	}
+	
+	/**
+	 * Returns the number of open connections of a route
+	 * 
+	 * @param route
+	 * 		Host and port
+	 * 
+	 * @return
+	 * 		Number of open connections, idle ones included
+	 */
+	private int getOpenConnectionCount(String route) {
+		Integer count = mOpenConnections.get(route);
+		return null != count ? count : 0;
+	}
+	
+	/**
+	 * Closes a connection and fails its exchange. An exchange which has not received anything on a reused connection is retried once on a new connection, the server may have closed it while it was idle
+	 * 
+	 * @param connection
+	 * 		The connection
+	 * 
+	 * @param e
+	 * 		The cause of the failure
+	 */
+	private void failConnection(Connection connection, IOException e) {
+		NioExchange exchange = connection.mExchange;
+		connection.mExchange = null;
+		closeConnection(connection);
+		if(null == exchange)
+			return;
+		if(connection.mReused && !exchange.mResponseStarted && !exchange.mRetried && !exchange.mAborted) {
+			exchange.mRetried = true;
+			exchange.reset();
+			mWaiting.addFirst(exchange);
+		}
+		else
+			exchange.fail(e);
+	}
+	
+	/**
+	 * Closes a connection and frees its slot
+	 * 
+	 * @param connection
+	 * 		The connection
+	 */
+	private void closeConnection(Connection connection) {
+		if(connection.mClosed)
+			return;
+		connection.mClosed = true;
+		connection.mKey.cancel();
+		try {
+			connection.mChannel.close();
+		} catch (IOException e) {
+			// Nothing to do, the connection is discarded
+		}
+		LinkedList<Connection> idle = mIdleConnections.get(connection.mRoute);
+		if(null != idle && idle.remove(connection) && idle.isEmpty())
+			mIdleConnections.remove(connection.mRoute);
+		int count = getOpenConnectionCount(connection.mRoute) - 1;
+		if(count > 0)
+			mOpenConnections.put(connection.mRoute, count);
+		else
+			mOpenConnections.remove(connection.mRoute);
+		mOpenConnectionCount--;
+	}
+	
+	/**
+	 * Called once the I/O thread is stopped : closes the connections and fails the pending exchanges
+	 */
+	private void closeAll() {
+		try {
+			for(SelectionKey key : mSelector.keys()) {
+				if(key.attachment() instanceof Connection)
+					failConnection((Connection) key.attachment(), new IOException("Transport has been shut down"));
+			}
+			mSelector.close();
+		} catch (IOException e) {
+			// Nothing to do, the transport is stopped
+		} catch (ClosedSelectorException e) {
+			// Nothing to do, the transport is stopped
+		}
+		synchronized(this) {
+			mShutdown = true;
+		}
+		NioExchange exchange;
+		while(null != (exchange = mSubmitted.poll()))
+			mWaiting.add(exchange);
+		while(!mWaiting.isEmpty())
+			mWaiting.removeFirst().fail(new IOException("Transport has been shut down"));
+	}
+	
+	/**
+	 * <b>Non-blocking HTTP/1.1 connection, owned by the I/O thread</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private class Connection {
+	
+		/**
+		 * Host and port of the connection
+		 */
+		private final String mRoute;
+	
+		/**
+		 * The channel
+		 */
+		private final SocketChannel mChannel;
+	
+		/**
+		 * Registration of {@link Connection#mChannel} in the selector
+		 */
+		private SelectionKey mKey;
+	
+		/**
+		 * The running exchange, null if the connection is idle
+		 */
+		private NioExchange mExchange;
+	
+		/**
+		 * Time in milliseconds after which the running exchange is in timeout, 0 for none
+		 */
+		private long mDeadline;
+	
+		/**
+		 * Time in milliseconds since when the connection is idle
+		 */
+		private long mIdleSince;
+	
+		/**
+		 * True if the connection has already carried an exchange
+		 */
+		private boolean mReused;
+	
+		/**
+		 * True once the connection is closed
+		 */
+		private boolean mClosed;
+	
+		/**
+		 * Constructor
+		 * 
+		 * @param route
+		 * 		Host and port of the connection
+		 * 
+		 * @param channel
+		 * 		The channel, connecting
+		 */
+		public Connection(String route, SocketChannel channel) {
+			mRoute = route;
+			mChannel = channel;
+		}
+	
+		/**
+		 * Starts an exchange on this connection. The request is sent as soon as the connection is established
+		 * 
+		 * @param exchange
+		 * 		The exchange
+		 * 
+		 * @param now
+		 * 		Current time in milliseconds
+		 */
+		public void start(NioExchange exchange, long now) {
+			mExchange = exchange;
+			if(mChannel.isConnected()) {
+				mKey.interestOps(SelectionKey.OP_WRITE);
+				mDeadline = exchange.mReadTimeout > 0 ? now + exchange.mReadTimeout : 0;
+			}
+		}
+	
+		/**
+		 * Completes the connection establishment
+		 * 
+		 * @throws IOException
+		 */
+		public void finishConnect() throws IOException {
+			if(mChannel.finishConnect()) {
+				if(null == mExchange) {
+					/* Opened by preconnect(), the connection waits for an exchange in the idle pool */
+					idle();
+					return;
+				}
+				mKey.interestOps(SelectionKey.OP_WRITE);
+				mDeadline = mExchange.mReadTimeout > 0 ? System.currentTimeMillis() + mExchange.mReadTimeout : 0;
+			}
+		}
+	
+		/**
+		 * Sends the pending request bytes
+		 * 
+		 * @throws IOException
+		 */
+		public void write() throws IOException {
+			NioExchange exchange = mExchange;
+			if(exchange.mRequest.hasRemaining())
+				mChannel.write(exchange.mRequest);
+			if(!exchange.mRequest.hasRemaining() && null != exchange.mTransferredBody && exchange.mBodyPosition < exchange.mBodyLength)
+				exchange.mBodyPosition += exchange.mTransferredBody.transferTo(mChannel, exchange.mBodyPosition, exchange.mBodyLength - exchange.mBodyPosition);
+			if(!exchange.mRequest.hasRemaining() && (null == exchange.mTransferredBody || exchange.mBodyPosition >= exchange.mBodyLength))
+				mKey.interestOps(SelectionKey.OP_READ);
+			touch();
+		}
+	
+		/**
+		 * Reads the available response bytes, and completes the exchange once the whole response has been received
+		 * 
+		 * @throws IOException
+		 */
+		public void read() throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			int read = mChannel.read(buffer);
+			if(null == mExchange) {
+				/* Idle connection closed by the server, or unexpected bytes */
+				closeConnection(this);
+				return;
+			}
+			if(read == -1) {
+				if(!mExchange.onEndOfStream())
+					throw new EOFException("Connection closed before the end of the response");
+				complete(false);
+				return;
+			}
+			touch();
+			if(mExchange.onBytes(buffer.array(), 0, read))
+				complete(mExchange.mKeepAlive);
+		}
+	
+		/**
+		 * Pushes back the read timeout of the running exchange
+		 */
+		private void touch() {
+			mDeadline = mExchange.mReadTimeout > 0 ? System.currentTimeMillis() + mExchange.mReadTimeout : 0;
+		}
+	
+		/**
+		 * Completes the running exchange, and gives the connection back to the idle pool if it can be reused
+		 * 
+		 * @param keepAlive
+		 * 		True if the connection can be reused
+		 */
+		private void complete(boolean keepAlive) {
+			NioExchange exchange = mExchange;
+			mExchange = null;
+			mDeadline = 0;
+			if(keepAlive) {
+				mReused = true;
+				idle();
+			}
+			else
+				closeConnection(this);
+			exchange.succeed();
+		}
+		
+		/**
+		 * Puts the connection in the idle pool of its route
+		 */
+		private void idle() {
+			mDeadline = 0;
+			mIdleSince = System.currentTimeMillis();
+			mKey.interestOps(SelectionKey.OP_READ);
+			LinkedList<Connection> idle = mIdleConnections.get(mRoute);
+			if(null == idle) {
+				idle = new LinkedList<Connection>();
+				mIdleConnections.put(mRoute, idle);
+			}
+			idle.add(this);
+		}
+	
+	}
+	
+	/**
+	 * <b>{@link Transport.Exchange} executed by the I/O thread</b>
+	 * 
+	 * <p>
+	 * The response is parsed incrementally as bytes arrive : status line, headers, then a body delimited by Content-Length, chunked transfer coding or the end of the connection.
+	 * </p>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private class NioExchange implements Exchange {
+	
+		private static final int STATE_HEADERS = 0;
+		private static final int STATE_FIXED_BODY = 1;
+		private static final int STATE_CHUNK_SIZE = 2;
+		private static final int STATE_CHUNK_DATA = 3;
+		private static final int STATE_CHUNK_END = 4;
+		private static final int STATE_TRAILERS = 5;
+		private static final int STATE_BODY_UNTIL_CLOSE = 6;
+		private static final int STATE_DONE = 7;
+	
+		/**
+		 * The {@link HTTPVerb} of the request
+		 */
+		private final HTTPVerb mVerb;
+	
+		/**
+		 * The request uri
+		 */
+		private final URI mUri;
+	
+		/**
+		 * Host and port of the request, used to group connections
+		 */
+		private final String mRoute;
+	
+		/**
+		 * Request headers, as name and value pairs
+		 */
+		private final ArrayList<String[]> mHeaders;
+	
+		/**
+		 * Body to send, may be null
+		 */
+		private RequestBody mBody;
+	
+		private int mConnectTimeout;
+		private int mReadTimeout;
+	
+		/**
+		 * Resolved address of the host
+		 */
+		private InetSocketAddress mAddress;
+	
+		/**
+		 * Serialized request, written by the I/O thread. Holds only the head of the request if the body is transferred
+		 */
+		private ByteBuffer mRequest;
+	
+		/**
+		 * Transferable body written after {@link NioExchange#mRequest} straight from its source to the socket, null if the body is serialized in {@link NioExchange#mRequest}
+		 * 
+		 * @see RequestBody#isTransferable()
+		 */
+		private RequestBody mTransferredBody;
+	
+		private long mBodyLength;
+	
+		/**
+		 * Number of bytes of {@link NioExchange#mTransferredBody} already written
+		 */
+		private long mBodyPosition;
+	
+		/**
+		 * Callback of an asynchronous execution
+		 */
+		private ExchangeCallback mCallback;
+	
+		/**
+		 * Latch of a blocking execution
+		 */
+		private CountDownLatch mLatch;
+	
+		private volatile boolean mAborted;
+		private boolean mRetried;
+		
+		/**
+		 * True if the exchange only asks the I/O thread to open a connection, see {@link NioTransport#preconnect(URI)}
+		 */
+		private boolean mPreconnect;
+	
+		/**
+		 * Parsing state, one of the STATE_ constants
+		 */
+		private int mState;
+	
+		/**
+		 * Current line being parsed
+		 */
+		private ByteArrayOutputStream mLine;
+	
+		/**
+		 * Remaining bytes of the fixed length body or of the current chunk
+		 */
+		private long mRemaining;
+	
+		private boolean mResponseStarted;
+		private boolean mKeepAlive;
+		private int mStatusCode;
+	
+		/**
+		 * Response headers. Names are stored in lower case
+		 */
+		private HashMap<String, String> mResponseHeaders;
+	
+		/**
+		 * Response body, in buffers of the {@link BufferPool} or in a temporary file once it is larger than {@link CacheManager#getSpillThreshold()}
+		 */
+		private ResultStreamBuffer mResponseBody;
+	
+		/**
+		 * The failure of the exchange, if any
+		 */
+		private IOException mFailure;
+	
+		/**
+		 * Constructor
+		 * 
+		 * @param verb
+		 * 		The {@link HTTPVerb} of the request
+		 * 
+		 * @param uri
+		 * 		The request uri, with an http scheme
+		 */
+		public NioExchange(HTTPVerb verb, URI uri) {
+			mVerb = verb;
+			mUri = uri;
+			mRoute = uri.getHost() + ":" + getPort();
+			mHeaders = new ArrayList<String[]>();
+		}
+	
+		@Override
+		public void addHeader(String name, String value) {
+			mHeaders.add(new String[] { name, value });
+		}
+	
+		@Override
+		public void setHeader(String name, String value) {
+			for(Iterator<String[]> it = mHeaders.iterator(); it.hasNext();) {
+				if(it.next()[0].equalsIgnoreCase(name))
+					it.remove();
+			}
+			addHeader(name, value);
+		}
+	
+		@Override
+		public void setBody(RequestBody body) {
+			mBody = body;
+		}
+	
+		@Override
+		public void setTimeouts(int connectTimeout, int readTimeout) {
+			mConnectTimeout = connectTimeout;
+			mReadTimeout = readTimeout;
+		}
+	
+		/**
+		 * Blocks until the asynchronous execution of the exchange is finished
+		 * 
+		 * @see Transport.Exchange#execute()
+		 */
+		@Override
+		public int execute() throws IOException {
+			mLatch = new CountDownLatch(1);
+			prepare();
+			submit(this);
+			try {
+				mLatch.await();
+			} catch (InterruptedException e) {
+				abort();
+				throw new InterruptedIOException("Interrupted while waiting for the response");
+			}
+			if(null != mFailure)
+				throw mFailure;
+			return mStatusCode;
+		}
+	
+		@Override
+		public String getResponseHeader(String name) {
+			return null != mResponseHeaders ? mResponseHeaders.get(name.toLowerCase(Locale.US)) : null;
+		}
+	
+		@Override
+		public InputStream getResponseStream() throws IOException {
+			if(null == mResponseBody)
+				return null;
+			return mResponseBody.openStream();
+		}
+	
+		@Override
+		public void abort() {
+			mAborted = true;
+			synchronized(NioTransport.this) {
+				if(null != mSelector)
+					mSelector.wakeup();
+			}
+		}
+	
+		@Override
+		public void release() {
+			/* The connection has already been given back to the pool, only the buffered body remains */
+			if(null != mResponseBody)
+				mResponseBody.delete();
+			mResponseBody = null;
+		}
+	
+		/**
+		 * Resolves the host and serializes the request. Called by the thread starting the exchange. A transferable body is not serialized, it is written from its source by the I/O thread
+		 * 
+		 * @throws IOException
+		 */
+		private void prepare() throws IOException {
+			mAddress = new InetSocketAddress(DnsCache.lookup(mUri.getHost())[0], getPort());
+			byte[] body = null;
+			mTransferredBody = null;
+			if(null != mBody && mBody.isTransferable()) {
+				mTransferredBody = mBody;
+				mBodyLength = mBody.getContentLength();
+			}
+			else if(null != mBody) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				mBody.writeTo(out);
+				body = out.toByteArray();
+			}
+			StringBuilder head = new StringBuilder();
+			String path = null != mUri.getRawPath() && mUri.getRawPath().length() > 0 ? mUri.getRawPath() : "/";
+			if(null != mUri.getRawQuery())
+				path += "?" + mUri.getRawQuery();
+			head.append(mVerb.name()).append(' ').append(path).append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(mUri.getHost());
+			if(mUri.getPort() != -1)
+				head.append(':').append(mUri.getPort());
+			head.append("\r\n");
+			boolean hasContentType = false;
+			for(String[] header : mHeaders) {
+				if(header[0].equalsIgnoreCase("Host") || header[0].equalsIgnoreCase("Content-Length") || header[0].equalsIgnoreCase("Transfer-Encoding"))
+					continue;
+				hasContentType |= header[0].equalsIgnoreCase("Content-Type");
+				head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+			}
+			if(null != mBody) {
+				if(!hasContentType)
+					head.append("Content-Type: ").append(mBody.getContentType()).append("\r\n");
+				head.append("Content-Length: ").append(null != body ? body.length : mBodyLength).append("\r\n");
+			}
+			else if(mVerb == HTTPVerb.POST || mVerb == HTTPVerb.PUT)
+				head.append("Content-Length: 0\r\n");
+			head.append("\r\n");
+			byte[] headBytes = head.toString().getBytes("ISO-8859-1");
+			mRequest = ByteBuffer.allocate(headBytes.length + (null != body ? body.length : 0));
+			mRequest.put(headBytes);
+			if(null != body)
+				mRequest.put(body);
+			mRequest.flip();
+			reset();
+		}
+	
+		/**
+		 * Resets the response parsing, before the exchange is (re)started
+		 */
+		private void reset() {
+			mRequest.rewind();
+			mBodyPosition = 0;
+			mState = STATE_HEADERS;
+			mLine = new ByteArrayOutputStream();
+			mResponseStarted = false;
+			mKeepAlive = true;
+			mStatusCode = 0;
+			mResponseHeaders = null;
+			if(null != mResponseBody)
+				mResponseBody.delete();
+			mResponseBody = new ResultStreamBuffer();
+		}
+	
+		/**
+		 * Returns the port of the request
+		 * 
+		 * @return
+		 * 		The port of the uri, or 80
+		 */
+		private int getPort() {
+			return mUri.getPort() != -1 ? mUri.getPort() : 80;
+		}
+	
+		/**
+		 * Parses received bytes
+		 * 
+		 * @param b
+		 * 		The buffer
+		 * 
+		 * @param off
+		 * 		Offset of the first byte
+		 * 
+		 * @param len
+		 * 		Number of bytes
+		 * 
+		 * @return
+		 * 		True if the response is complete
+		 * 
+		 * @throws IOException
+		 * 		If the response is malformed
+		 */
+		private boolean onBytes(byte[] b, int off, int len) throws IOException {
+			mResponseStarted = true;
+			int i = off;
+			int end = off + len;
+			while(i < end && mState != STATE_DONE) {
+				switch(mState) {
+					case STATE_FIXED_BODY:
+					case STATE_CHUNK_DATA:
+						int n = (int) Math.min(mRemaining, end - i);
+						mResponseBody.write(b, i, n);
+						i += n;
+						mRemaining -= n;
+						if(mRemaining == 0)
+							mState = mState == STATE_FIXED_BODY ? STATE_DONE : STATE_CHUNK_END;
+						break;
+					case STATE_BODY_UNTIL_CLOSE:
+						mResponseBody.write(b, i, end - i);
+						i = end;
+						break;
+					default:
+						byte c = b[i++];
+						if(c == '\n') {
+							String line = new String(mLine.toByteArray(), "ISO-8859-1");
+							if(line.endsWith("\r"))
+								line = line.substring(0, line.length() - 1);
+							mLine.reset();
+							onLine(line);
+						}
+						else {
+							mLine.write(c);
+							if(mLine.size() > MAX_LINE_LENGTH)
+								throw new ProtocolException("Response line too long");
+						}
+				}
+			}
+			/* Pipelining is not used, bytes after the response mean the connection is out of sync */
+			if(i < end)
+				mKeepAlive = false;
+			return mState == STATE_DONE;
+		}
+	
+		/**
+		 * Parses a line of the response head, a chunk size or a trailer
+		 * 
+		 * @param line
+		 * 		The line, without its end of line
+		 * 
+		 * @throws IOException
+		 * 		If the line is malformed
+		 */
+		private void onLine(String line) throws IOException {
+			switch(mState) {
+				case STATE_HEADERS:
+					if(null == mResponseHeaders) {
+						if(line.length() == 0)
+							return;
+						parseStatusLine(line);
+					}
+					else if(line.length() == 0)
+						onHeadersEnd();
+					else {
+						int colon = line.indexOf(':');
+						if(colon <= 0)
+							throw new ProtocolException("Malformed header : " + line);
+						String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+						if(!mResponseHeaders.containsKey(name))
+							mResponseHeaders.put(name, line.substring(colon + 1).trim());
+					}
+					break;
+				case STATE_CHUNK_SIZE:
+					int semicolon = line.indexOf(';');
+					String size = (semicolon != -1 ? line.substring(0, semicolon) : line).trim();
+					try {
+						mRemaining = Long.parseLong(size, 16);
+					} catch (NumberFormatException e) {
+						throw new ProtocolException("Malformed chunk size : " + line);
+					}
+					mState = mRemaining > 0 ? STATE_CHUNK_DATA : STATE_TRAILERS;
+					break;
+				case STATE_CHUNK_END:
+					mState = STATE_CHUNK_SIZE;
+					break;
+				case STATE_TRAILERS:
+					if(line.length() == 0)
+						mState = STATE_DONE;
+					break;
+			}
+		}
+	
+		/**
+		 * Parses the status line of the response
+		 * 
+		 * @param line
+		 * 		The status line
+		 * 
+		 * @throws ProtocolException
+		 * 		If the line is malformed
+		 */
+		private void parseStatusLine(String line) throws ProtocolException {
+			String[] parts = line.split(" ", 3);
+			if(parts.length < 2 || !parts[0].startsWith("HTTP/"))
+				throw new ProtocolException("Malformed status line : " + line);
+			try {
+				mStatusCode = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException e) {
+				throw new ProtocolException("Malformed status line : " + line);
+			}
+			mKeepAlive = !parts[0].equals("HTTP/1.0");
+			mResponseHeaders = new HashMap<String, String>();
+		}
+	
+		/**
+		 * Chooses how the body is delimited once the response head has been received
+		 */
+		private void onHeadersEnd() {
+			if(mStatusCode >= 100 && mStatusCode < 200) {
+				/* Interim response, the final one follows */
+				mResponseHeaders = null;
+				return;
+			}
+			String connection = getResponseHeader("Connection");
+			if(null != connection) {
+				if(connection.equalsIgnoreCase("close"))
+					mKeepAlive = false;
+				else if(connection.equalsIgnoreCase("keep-alive"))
+					mKeepAlive = true;
+			}
+			String transferEncoding = getResponseHeader("Transfer-Encoding");
+			String contentLength = getResponseHeader("Content-Length");
+			if(mStatusCode == 204 || mStatusCode == 304)
+				mState = STATE_DONE;
+			else if(null != transferEncoding && transferEncoding.toLowerCase(Locale.US).contains("chunked"))
+				mState = STATE_CHUNK_SIZE;
+			else if(null != contentLength) {
+				try {
+					mRemaining = Long.parseLong(contentLength);
+				} catch (NumberFormatException e) {
+					mRemaining = -1;
+				}
+				if(mRemaining > 0)
+					mState = STATE_FIXED_BODY;
+				else if(mRemaining == 0)
+					mState = STATE_DONE;
+				else {
+					mState = STATE_BODY_UNTIL_CLOSE;
+					mKeepAlive = false;
+				}
+			}
+			else {
+				mState = STATE_BODY_UNTIL_CLOSE;
+				mKeepAlive = false;
+			}
+		}
+	
+		/**
+		 * Called when the server closes the connection
+		 * 
+		 * @return
+		 * 		True if the end of the connection completes the response
+		 */
+		private boolean onEndOfStream() {
+			return mState == STATE_BODY_UNTIL_CLOSE || mState == STATE_DONE;
+		}
+	
+		/**
+		 * Fires the completion of the exchange
+		 */
+		private void succeed() {
+			if(null != mLatch)
+				mLatch.countDown();
+			else if(null != mCallback) {
+				try {
+					mCallback.onResponse(this, mStatusCode);
+				} catch (RuntimeException e) {
+					Log.e(RestService.TAG, "Exchange callback failed", e);
+				}
+			}
+		}
+	
+		/**
+		 * Fires the failure of the exchange
+		 * 
+		 * @param e
+		 * 		The cause of the failure
+		 */
+		private void fail(IOException e) {
+			mFailure = e;
+			if(null != mLatch)
+				mLatch.countDown();
+			else if(null != mCallback) {
+				try {
+					mCallback.onFailure(this, e);
+				} catch (RuntimeException ex) {
+					Log.e(RestService.TAG, "Exchange callback failed", ex);
+				}
+			}
+		}
+	
+	}
+	
+}
@@ -0,0 +1,461 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import fr.pcreations.labs.RESTDroid.core.Transport.Exchange;
+
+/**
+ * <b>Body of a large GET response spooled in {@link CacheManager#getCacheDir()} so that an interrupted download can be resumed</b>
+ * 
+ * <p>
+ * The bytes are written to the spool file as they are received. A response of unknown length is kept in memory until {@link PartialDownload#MIN_SPOOLED_LENGTH} bytes have arrived, so that small responses never touch the disk. If the transfer fails, the next attempt of the request (see {@link FailBehaviorManager}) asks only for the missing bytes with Range and If-Range headers.
+ * If the resource has changed in the meantime the server answers with the whole body and the download restarts from the beginning.
+ * Only responses with a strong validator (a strong ETag or a Last-Modified date) can be resumed.
+ * </p>
+ * 
+ * <p>
+ * The spool file is named after a SHA-1 digest of the url. A single request at a time spools a given url : the others receive their response as usual, without resuming.
+ * </p>
+ * 
+ * <p>
+ * The received bytes survive a failure only with a {@link Transport} streaming the response, like {@link ApacheTransport} or {@link UrlConnectionTransport}.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+class PartialDownload {
+	
+	/**
+	 * Minimum Content-Length of a response to be spooled. Responses of unknown length are spooled once they have reached this length
+	 */
+	public static final long MIN_SPOOLED_LENGTH = 256 * 1024;
+	
+	/**
+	 * Suffix of the spool file
+	 */
+	private static final String PARTIAL_SUFFIX = ".part";
+	
+	/**
+	 * Suffix of the file holding the validator and the content coding of the spooled body
+	 */
+	private static final String META_SUFFIX = ".part.meta";
+	
+	private static final String META_VALIDATOR = "Validator";
+	private static final String META_CONTENT_ENCODING = "Content-Encoding";
+	
+	/**
+	 * HashSet to store the names of the spool files being written, so that two requests never spool the same url at once
+	 */
+	private static final HashSet<String> spooling = new HashSet<String>();
+	
+	/**
+	 * Name of the spool file, without suffix
+	 */
+	private final String mName;
+	
+	/**
+	 * The spool file
+	 */
+	private final File mFile;
+	
+	/**
+	 * The meta file
+	 */
+	private final File mMetaFile;
+	
+	/**
+	 * Validator of the spooled representation, sent in the If-Range header
+	 */
+	private String mValidator;
+	
+	/**
+	 * Content coding of the spooled bytes, null for identity
+	 */
+	private String mContentEncoding;
+	
+	/**
+	 * Body of a response shorter than {@link PartialDownload#MIN_SPOOLED_LENGTH}, null if the body is in {@link PartialDownload#mFile}
+	 */
+	private SegmentedOutputStream mMemory;
+	
+	/**
+	 * Boolean to know if this download holds {@link PartialDownload#mName} in {@link PartialDownload#spooling}
+	 */
+	private boolean mClaimed;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param r
+	 * 		The GET {@link RESTRequest}
+	 */
+	private PartialDownload(RESTRequest<? extends Resource> r) {
+		mName = getName(r.getUrl());
+		mFile = new File(CacheManager.getCacheDir(), mName + PARTIAL_SUFFIX);
+		mMetaFile = new File(CacheManager.getCacheDir(), mName + META_SUFFIX);
+	}
+	
+	/**
+	 * Returns the interrupted download of a request
+	 * 
+	 * @param r
+	 * 		The GET {@link RESTRequest}
+	 * 
+	 * @return
+	 * 		The download to resume, or null if there is none or if another request is spooling the same url
+	 */
+	public static PartialDownload find(RESTRequest<? extends Resource> r) {
+		if(null == CacheManager.getCacheDir())
+			return null;
+		PartialDownload download = new PartialDownload(r);
+		synchronized(spooling) {
+			if(spooling.contains(download.mName))
+				return null;
+		}
+		if(!download.mFile.exists() || download.mFile.length() == 0 || !download.readMeta()) {
+			download.delete();
+			return null;
+		}
+		return download;
+	}
+	
+	/**
+	 * Spools the body of a GET response if it is large enough, or if it is the rest of an interrupted download. The complete download must be deleted once read
+	 * 
+	 * @param r
+	 * 		The GET {@link RESTRequest}
+	 * 
+	 * @param statusCode
+	 * 		The response status code
+	 * 
+	 * @param exchange
+	 * 		The executed {@link Transport.Exchange}
+	 * 
+	 * @return
+	 * 		The complete download, in memory if its body is shorter than {@link PartialDownload#MIN_SPOOLED_LENGTH}, or null if the response has not been spooled
+	 * 
+	 * @throws IOException
+	 * 		If the transfer fails, the bytes received so far are kept for the next attempt
+	 */
+	public static PartialDownload spool(RESTRequest<? extends Resource> r, int statusCode, Exchange exchange) throws IOException {
+		if(null == CacheManager.getCacheDir())
+			return null;
+		if(statusCode == 416) {
+			/* The spooled bytes do not match the resource anymore */
+			new PartialDownload(r).delete();
+			return null;
+		}
+		boolean resumed = statusCode == HttpURLConnection.HTTP_PARTIAL;
+		if(!resumed && statusCode != HttpURLConnection.HTTP_OK)
+			return null;
+		String validator = getStrongValidator(exchange);
+		long contentLength = getContentLength(exchange);
+		if(!resumed && (null == validator || (contentLength != -1 && contentLength < MIN_SPOOLED_LENGTH)))
+			return null;
+		PartialDownload download = resumed ? find(r) : new PartialDownload(r);
+		if(null == download)
+			throw new ProtocolException("Unexpected partial response");
+		if(!download.claim()) {
+			if(resumed)
+				throw new ProtocolException("Partial response for an url already being spooled");
+			return null;
+		}
+		try {
+			if(resumed) {
+				if(getRangeStart(exchange.getResponseHeader("Content-Range")) != download.mFile.length() || (null != validator && !validator.equals(download.mValidator))) {
+					download.delete();
+					throw new ProtocolException("Partial response does not match the spooled bytes");
+				}
+			}
+			else {
+				download.deleteFiles();
+				download.mValidator = validator;
+				download.mContentEncoding = exchange.getResponseHeader("Content-Encoding");
+				if(contentLength == -1)
+					download.mMemory = new SegmentedOutputStream();
+				else
+					download.writeMeta();
+			}
+			InputStream input = exchange.getResponseStream();
+			if(null != input)
+				download.write(input, resumed);
+		} catch (IOException e) {
+			/* The spooled bytes are kept for the next attempt */
+			if(null != download.mMemory)
+				download.mMemory.release();
+			download.unclaim();
+			throw e;
+		}
+		if(null != download.mMemory)
+			download.unclaim();
+		return download;
+	}
+	
+	/**
+	 * Copies a response body to {@link PartialDownload#mMemory} until it reaches {@link PartialDownload#MIN_SPOOLED_LENGTH}, then to {@link PartialDownload#mFile}
+	 * 
+	 * @param input
+	 * 		The response body, closed once read
+	 * 
+	 * @param append
+	 * 		True to append the bytes to the spool file
+	 * 
+	 * @throws IOException
+	 */
+	private void write(InputStream input, boolean append) throws IOException {
+		OutputStream output = null;
+		byte[] buffer = BufferPool.acquire();
+		try {
+			if(null == mMemory)
+				output = new FileOutputStream(mFile, append);
+			int read;
+			while((read = input.read(buffer)) != -1) {
+				if(null == output && mMemory.size() + read >= MIN_SPOOLED_LENGTH) {
+					writeMeta();
+					output = new FileOutputStream(mFile);
+					mMemory.writeTo(output);
+					mMemory.release();
+					mMemory = null;
+				}
+				if(null != output)
+					output.write(buffer, 0, read);
+				else
+					mMemory.write(buffer, 0, read);
+			}
+		} finally {
+			BufferPool.release(buffer);
+			try {
+				if(null != output)
+					output.close();
+			} finally {
+				input.close();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the headers asking for the missing bytes
+	 * 
+	 * @return
+	 * 		Range and If-Range headers
+	 */
+	public List<SerializableHeader> getResumeHeaders() {
+		List<SerializableHeader> headers = new ArrayList<SerializableHeader>();
+		headers.add(new SerializableHeader("Range", "bytes=" + mFile.length() + "-"));
+		headers.add(new SerializableHeader("If-Range", mValidator));
+		return headers;
+	}
+	
+	/**
+	 * Opens the complete body
+	 * 
+	 * @return
+	 * 		The body, still encoded with {@link PartialDownload#getContentEncoding()}
+	 * 
+	 * @throws IOException
+	 */
+	public InputStream open() throws IOException {
+		if(null != mMemory)
+			return mMemory.openStream();
+		return new BufferedInputStream(new FileInputStream(mFile));
+	}
+	
+	/**
+	 * Getter for {@link PartialDownload#mContentEncoding}
+	 * 
+	 * @return
+	 * 		Content coding of the spooled bytes, null for identity
+	 */
+	public String getContentEncoding() {
+		return mContentEncoding;
+	}
+	
+	/**
+	 * Drops the body : deletes the spool file and its meta file, or releases the memory buffers. Streams already opened can still be read until they are closed
+	 */
+	public void delete() {
+		if(null != mMemory)
+			mMemory.release();
+		else
+			deleteFiles();
+		unclaim();
+	}
+	
+	/**
+	 * Deletes the spool file and its meta file
+	 */
+	private void deleteFiles() {
+		mFile.delete();
+		mMetaFile.delete();
+	}
+	
+	/**
+	 * Reserves {@link PartialDownload#mName} so that no other request spools the same url
+	 * 
+	 * @return
+	 * 		False if another request is spooling the url
+	 */
+	private boolean claim() {
+		synchronized(spooling) {
+			mClaimed = spooling.add(mName);
+			return mClaimed;
+		}
+	}
+	
+	/**
+	 * Gives back {@link PartialDownload#mName} if this download holds it
+	 */
+	private void unclaim() {
+		synchronized(spooling) {
+			if(mClaimed)
+				spooling.remove(mName);
+			mClaimed = false;
+		}
+	}
+	
+	/**
+	 * Reads the meta file
+	 * 
+	 * @return
+	 * 		True if the meta file holds a validator
+	 */
+	private boolean readMeta() {
+		if(!mMetaFile.exists())
+			return false;
+		Properties meta = new Properties();
+		try {
+			InputStream input = new FileInputStream(mMetaFile);
+			try {
+				meta.load(input);
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		mValidator = meta.getProperty(META_VALIDATOR);
+		mContentEncoding = meta.getProperty(META_CONTENT_ENCODING);
+		return null != mValidator;
+	}
+	
+	/**
+	 * Writes the meta file
+	 * 
+	 * @throws IOException
+	 */
+	private void writeMeta() throws IOException {
+		Properties meta = new Properties();
+		meta.setProperty(META_VALIDATOR, mValidator);
+		if(null != mContentEncoding)
+			meta.setProperty(META_CONTENT_ENCODING, mContentEncoding);
+		OutputStream output = new FileOutputStream(mMetaFile);
+		try {
+			meta.store(output, null);
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Returns the name of the spool file of an url : the hexadecimal SHA-1 digest of the url
+	 * 
+	 * @param url
+	 * 		The url of the request
+	 * 
+	 * @return
+	 * 		The name, without suffix
+	 */
+	private static String getName(String url) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(digest.length * 2);
+			for(byte b : digest)
+				name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return name.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Returns the validator usable in an If-Range header
+	 * 
+	 * @param exchange
+	 * 		The executed {@link Transport.Exchange}
+	 * 
+	 * @return
+	 * 		The strong ETag or the Last-Modified date of the response, null if it has none
+	 */
+	private static String getStrongValidator(Exchange exchange) {
+		String eTag = exchange.getResponseHeader("ETag");
+		if(null != eTag && !eTag.startsWith("W/"))
+			return eTag;
+		return exchange.getResponseHeader("Last-Modified");
+	}
+	
+	/**
+	 * Returns the Content-Length of a response
+	 * 
+	 * @param exchange
+	 * 		The executed {@link Transport.Exchange}
+	 * 
+	 * @return
+	 * 		The length, -1 if unknown
+	 */
+	private static long getContentLength(Exchange exchange) {
+		String contentLength = exchange.getResponseHeader("Content-Length");
+		if(null == contentLength)
+			return -1;
+		try {
+			return Long.parseLong(contentLength.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns the first byte position of a Content-Range header, like "bytes 1024-2047/4096"
+	 * 
+	 * @param contentRange
+	 * 		The Content-Range header, may be null
+	 * 
+	 * @return
+	 * 		The first byte position, -1 if the header is missing or malformed
+	 */
+	private static long getRangeStart(String contentRange) {
+		if(null == contentRange)
+			return -1;
+		String range = contentRange.trim();
+		if(!range.startsWith("bytes "))
+			return -1;
+		int dash = range.indexOf('-');
+		if(dash == -1)
+			return -1;
+		try {
+			return Long.parseLong(range.substring(6, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+}
@@ -7,7 +7,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
+import java.net.HttpURLConnection;
 import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.util.Log;
 import fr.pcreations.labs.RESTDroid.core.HttpRequestHandler.ProcessorCallback;
@@ -30,11 +33,41 @@ public abstract class Processor {
 	protected HttpRequestHandler mHttpRequestHandler;
 	
 	/**
-	 * Instance of {@link RESTServiceCallback}
+	 * {@link ProcessorCallback} given to {@link Processor#mHttpRequestHandler} with each request
+	 * 
+	 * @see Processor#handleHttpRequestHandlerCallback(int, RESTRequest)
+	 */
+	private final ProcessorCallback mProcessorCallback = new ProcessorCallback() {
+
+		@Override
+		public void callAction(int statusCode, RESTRequest<? extends Resource> request) {
+			handleHttpRequestHandlerCallback(statusCode, request);
+		}
+		
+	};
+	
+	/**
+	 * Instance of {@link RESTServiceCallback}, fired for the requests processed without their own callback
+	 * 
+	 * @see Processor#process(RESTRequest, RESTServiceCallback)
 	 */
 	
 	protected RESTServiceCallback mRESTServiceCallback;
 	
+	/**
+	 * ConcurrentHashMap to store the {@link RESTServiceCallback} of each request being processed, so that several requests can be processed at the same time
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : ID of the request</li>
+	 * <li><b>value</b> : the callback to fire once its result is known</li>
+	 * </ul>
+	 * </p>
+	 * 
+	 * @see Processor#fireRESTServiceCallback(int, RESTRequest)
+	 */
+	private final ConcurrentHashMap<UUID, RESTServiceCallback> mRESTServiceCallbacks = new ConcurrentHashMap<UUID, RESTServiceCallback>();
+	
 	/**
 	 * Instance of {@link PersistableFactory}
 	 */
@@ -123,7 +156,8 @@ public abstract class Processor {
 	abstract protected int postRequestProcess(int statusCode, RESTRequest<? extends Resource> r, InputStream resultStream);
 	
 	/**
-	 * Calls {@link Processor#preRequestProcess(RESTRequest)} and {@link Processor#process(RESTRequest)}
+	 * Calls {@link Processor#preRequestProcess(RESTRequest)} and {@link Processor#process(RESTRequest)}. A request whose deadline has passed while it was waiting for the service is not processed and fires {@link RESTServiceCallback} with {@link HttpRequestHandler#DEADLINE_EXCEEDED}.
+	 * A request cancelled while it was waiting fires it with {@link HttpRequestHandler#CANCELLED}
 	 * 
 	 * @param r
 	 * 		The actual {@link RESTRequest}
@@ -131,17 +165,21 @@ public abstract class Processor {
 	 * @throws Exception
 	 */
 	protected void process(RESTRequest<? extends Resource> r) throws Exception {
+		if(HttpRequestHandler.isCancelled(r)) {
+			fireRESTServiceCallback(HttpRequestHandler.CANCELLED, r);
+			return;
+		}
+		if(r.isExpired()) {
+			fireRESTServiceCallback(HttpRequestHandler.DEADLINE_EXCEEDED, r);
+			return;
+		}
 		preRequestProcess(r);
 		if(r.getVerb() == HTTPVerb.GET) {
 			final File file = new File(CacheManager.getCacheDir(), String.valueOf(r.getUrl().hashCode()));
 			Log.e(RestService.TAG, "LAST MODIFIED BEFORE UDPATE = " + String.valueOf(file.lastModified()));
 			InputStream cacheStream = CacheManager.getRequestFromCache(r);
-			if(cacheStream != null) {
-				r.setResultStream(cacheStream);
-				r.setResource(parseToObject(r.getResultStream(), r.getResourceClass()));
-				r.setResultCode(210);
-				mRESTServiceCallback.callAction(210, r);
-			}
+			if(cacheStream != null)
+				deliverFromCache(r, cacheStream);
 			else
 				processRequest(r);
 		}
@@ -149,6 +187,34 @@ public abstract class Processor {
 			processRequest(r);
 	}
 	
+	/**
+	 * Sets the cached response as result stream, parses it and fires {@link RESTServiceCallback} with the 210 status code
+	 * 
+	 * @param r
+	 * 		The actual {@link RESTRequest}
+	 * 
+	 * @param cacheStream
+	 * 		The cached response
+	 * 
+	 * @throws IOException
+	 * @throws ParsingException
+	 * 
+	 * @see CacheManager#getRequestFromCache(RESTRequest)
+	 * @see CacheManager#revalidateRequest(RESTRequest)
+	 */
+	protected void deliverFromCache(RESTRequest<? extends Resource> r, InputStream cacheStream) throws IOException, ParsingException {
+		r.setResultStream(cacheStream);
+		cacheStream.close();
+		InputStream resultStream = r.getResultStream();
+		try {
+			r.setResource(parseToObject(resultStream, r.getResourceClass()));
+		} finally {
+			resultStream.close();
+		}
+		r.setResultCode(210);
+		fireRESTServiceCallback(210, r);
+	}
+	
 	/**
 	 * Calls {@link HttpRequestHandler} API based on {@link RESTRequest} {@link HTTPVerb} after firing hooks
 	 * 
@@ -159,41 +225,74 @@ public abstract class Processor {
 	 * @see Processor#prePostRequest(RESTRequest)
 	 * @see Processor#prePutRequest(RESTRequest)
 	 * @see Processor#preDeleteRequest(RESTRequest)
+	 * @see Processor#getRequestBody(RESTRequest, InputStream)
 	 * @see ProcessorCallback
 	 */
 	protected void processRequest(RESTRequest<? extends Resource> r) {
-		mHttpRequestHandler.setProcessorCallback(new ProcessorCallback() {
-
-			@Override
-			public void callAction(int statusCode, RESTRequest<? extends Resource> request) {
-				// TODO Auto-generated method stub
-				handleHttpRequestHandlerCallback(statusCode, request);
-			}
-			
-		});
-		InputStream is;
 		switch(r.getVerb()) {
 			case GET:
 				preGetRequest(r);
-				mHttpRequestHandler.get(r);
+				mHttpRequestHandler.get(r, mProcessorCallback);
 				break;
 			case POST:
-				is = prePostRequest(r);
-				mHttpRequestHandler.post(r, is);
+				InputStream postStream = prePostRequest(r);
+				try {
+					mHttpRequestHandler.post(r, getRequestBody(r, postStream), mProcessorCallback);
+				} catch (IOException e) {
+					e.printStackTrace();
+					handleHttpRequestHandlerCallback(HttpRequestHandler.IO_EXCEPTION, r);
+				}
 				break;
 			case PUT:
-				is = prePutRequest(r);
-				mHttpRequestHandler.put(r, is);
+				InputStream putStream = prePutRequest(r);
+				try {
+					mHttpRequestHandler.put(r, getRequestBody(r, putStream), mProcessorCallback);
+				} catch (IOException e) {
+					e.printStackTrace();
+					handleHttpRequestHandlerCallback(HttpRequestHandler.IO_EXCEPTION, r);
+				}
 				break;
 			case DELETE:
 				preDeleteRequest(r);
-				mHttpRequestHandler.delete(r);
+				mHttpRequestHandler.delete(r, mProcessorCallback);
 				
 		}
 	}
 	
 	/**
-	 * Handles the binder callback from {@link HttpRequestHandler} by updating status code calling {@link Processor#postRequestProcess(int, RESTRequest, InputStream)} hook, set the result stream in {@link RESTRequest} and fires {@link RESTServiceCallback}
+	 * Returns the body to send : the JSON representation of the resource, or the body set with {@link RESTRequest#setRequestBody(RequestBody)}.
+	 * In the latter case the JSON representation of the resource fills the parts of a {@link MultipartRequestBody} added with {@link MultipartRequestBody#addResourcePart(String)}, and is ignored by other bodies
+	 * 
+	 * @param r
+	 * 		The actual {@link RESTRequest}
+	 * 
+	 * @param resourceStream
+	 * 		JSON representation of the resource returned by {@link Processor#prePostRequest(RESTRequest)} or {@link Processor#prePutRequest(RESTRequest)}, may be null
+	 * 
+	 * @return
+	 * 		The body to send, may be null
+	 * 
+	 * @throws IOException
+	 * 
+	 * @since 0.9
+	 */
+	protected RequestBody getRequestBody(RESTRequest<? extends Resource> r, InputStream resourceStream) throws IOException {
+		RequestBody body = r.getRequestBody();
+		if(null == body)
+			return null != resourceStream ? new InputStreamRequestBody(resourceStream, RequestBody.CONTENT_TYPE_JSON) : null;
+		if(body instanceof MultipartRequestBody)
+			((MultipartRequestBody) body).setResourcePart(resourceStream);
+		else if(null != resourceStream)
+			resourceStream.close();
+		return body;
+	}
+	
+	/**
+	 * Handles the binder callback from {@link HttpRequestHandler}. A 304 Not Modified answer to a conditional GET is delivered from cache with the 210 status code, or fails with {@link HttpRequestHandler#REVALIDATION_FAILED} if the cache entry cannot be delivered.
+	 * Otherwise updates status code calling {@link Processor#postRequestProcess(int, RESTRequest, InputStream)} hook, set the result stream in {@link RESTRequest} and fires {@link RESTServiceCallback}.
+	 * When the request is in streaming mode the hook reads the response from the open connection and the copy kept for caching is completed afterwards.
+	 * If the request deadline has passed the hook receives {@link HttpRequestHandler#DEADLINE_EXCEEDED} instead of the response status code.
+	 * The response of a cancelled request is neither parsed nor persisted : the hook is not called and {@link RESTServiceCallback} is fired with {@link HttpRequestHandler#CANCELLED}
 	 * 
 	 * @param statusCode
 	 *		Status code returned by {@link HttpRequestHandler}
@@ -203,8 +302,88 @@ public abstract class Processor {
 	 *
 	 */
 	protected void handleHttpRequestHandlerCallback(int statusCode, RESTRequest<? extends Resource> request) {
-        statusCode = postRequestProcess(statusCode, request, request.getResultStream());
-		mRESTServiceCallback.callAction(statusCode, request);
+		if(HttpRequestHandler.isCancelled(request)) {
+			if(request.isStreamingResponse())
+				request.setLiveResultStream(null);
+			fireRESTServiceCallback(HttpRequestHandler.CANCELLED, request);
+			return;
+		}
+		if(request.isExpired())
+			statusCode = HttpRequestHandler.DEADLINE_EXCEEDED;
+		if(statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && request.getVerb() == HTTPVerb.GET) {
+			InputStream cacheStream = CacheManager.revalidateRequest(request);
+			if(null != cacheStream) {
+				try {
+					deliverFromCache(request, cacheStream);
+					return;
+				} catch (Exception e) {
+					Log.w(RestService.TAG, "Cache entry of request " + request.getID() + " cannot be delivered, it is dropped", e);
+					CacheManager.removeRequest(request);
+					statusCode = HttpRequestHandler.REVALIDATION_FAILED;
+				}
+			}
+		}
+        InputStream resultStream = request.getResultStream();
+        statusCode = postRequestProcess(statusCode, request, resultStream);
+        if(request.isStreamingResponse())
+        	request.finishLiveResultStream();
+        else if(null != resultStream) {
+        	try {
+        		resultStream.close();
+        	} catch (IOException e) {
+        		e.printStackTrace();
+        	}
+        }
+		fireRESTServiceCallback(statusCode, request);
+	}
+	
+	/**
+	 * Processes a request and fires the given callback with its result, whatever the other requests processed at the same time.
+	 * If the processing fails before the request is executed the callback is forgotten and the exception is thrown
+	 * 
+	 * @param r
+	 * 		The actual {@link RESTRequest}
+	 * 
+	 * @param callback
+	 * 		The {@link RESTServiceCallback} of this request
+	 * 
+	 * @throws Exception
+	 * 
+	 * @see Processor#process(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	protected void process(RESTRequest<? extends Resource> r, RESTServiceCallback callback) throws Exception {
+		mRESTServiceCallbacks.put(r.getID(), callback);
+		try {
+			process(r);
+		} catch (Exception e) {
+			mRESTServiceCallbacks.remove(r.getID());
+			throw e;
+		}
+	}
+	
+	/**
+	 * Fires the {@link RESTServiceCallback} of a request, or {@link Processor#mRESTServiceCallback} if it has been processed without its own callback.
+	 * A result without any callback, like the late or duplicate result of a request already reported, is dropped
+	 * 
+	 * @param statusCode
+	 * 		The status code resulting of all process
+	 * 
+	 * @param r
+	 * 		The actual {@link RESTRequest}
+	 * 
+	 * @since 0.9
+	 */
+	protected void fireRESTServiceCallback(int statusCode, RESTRequest<? extends Resource> r) {
+		RESTServiceCallback callback = mRESTServiceCallbacks.remove(r.getID());
+		if(null == callback)
+			callback = mRESTServiceCallback;
+		if(null == callback) {
+			Log.w(RestService.TAG, "Result " + statusCode + " of request " + r.getID() + " dropped, the request has already been reported");
+			return;
+		}
+		callback.callAction(statusCode, r);
 	}
 	
 	/**
@@ -308,7 +487,7 @@ public abstract class Processor {
 	}
 	
 	/**
-	 * Set the {@link RESTServiceCallback}
+	 * Set the {@link RESTServiceCallback} fired for the requests processed without their own callback
 	 * 
 	 * @param callback
 	 * 		Instance of {@link RESTServiceCallback}
@@ -343,6 +522,90 @@ public abstract class Processor {
 		mParserFactory = p;
 	}
 	
+	/**
+	 * Set the {@link Transport} used by {@link Processor#mHttpRequestHandler}
+	 * 
+	 * @param t
+	 * 		Instance of {@link Transport}
+	 * 
+	 * @see HttpRequestHandler#setTransport(Transport)
+	 * 
+	 * @since 0.9
+	 */
+	public void setTransport(Transport t) {
+		mHttpRequestHandler.setTransport(t);
+	}
+	
+	/**
+	 * Cancels a request executed by {@link Processor#mHttpRequestHandler}
+	 * 
+	 * @param r
+	 * 		The {@link RESTRequest} to cancel
+	 * 
+	 * @see HttpRequestHandler#cancel(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	public void cancel(RESTRequest<? extends Resource> r) {
+		mHttpRequestHandler.cancel(r);
+	}
+	
+	/**
+	 * Set the {@link HedgingPolicy} used by {@link Processor#mHttpRequestHandler}
+	 * 
+	 * @param hedgingPolicy
+	 * 		Instance of {@link HedgingPolicy}, null to disable hedging
+	 * 
+	 * @see HttpRequestHandler#setHedgingPolicy(HedgingPolicy)
+	 * 
+	 * @since 0.9
+	 */
+	public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+		mHttpRequestHandler.setHedgingPolicy(hedgingPolicy);
+	}
+	
+	/**
+	 * Set the {@link RequestDispatcher} used by {@link Processor#mHttpRequestHandler}
+	 * 
+	 * @param requestDispatcher
+	 * 		Instance of {@link RequestDispatcher}, null to use {@link WebService#getRequestDispatcher()}
+	 * 
+	 * @see HttpRequestHandler#setRequestDispatcher(RequestDispatcher)
+	 * 
+	 * @since 0.9
+	 */
+	public void setRequestDispatcher(RequestDispatcher requestDispatcher) {
+		mHttpRequestHandler.setRequestDispatcher(requestDispatcher);
+	}
+	
+	/**
+	 * Return the {@link RequestDispatcher} used by {@link Processor#mHttpRequestHandler}
+	 * 
+	 * @return
+	 * 		Instance of {@link RequestDispatcher}
+	 * 
+	 * @see HttpRequestHandler#getRequestDispatcher()
+	 * 
+	 * @since 0.9
+	 */
+	public RequestDispatcher getRequestDispatcher() {
+		return mHttpRequestHandler.getRequestDispatcher();
+	}
+	
+	/**
+	 * Opens a connection to an origin ahead of the first request
+	 * 
+	 * @param url
+	 * 		Url of the origin
+	 * 
+	 * @see HttpRequestHandler#preconnect(String)
+	 * 
+	 * @since 0.9
+	 */
+	public void preconnect(String url) {
+		mHttpRequestHandler.preconnect(url);
+	}
+	
 	/**
 	 * <b>Binder callback for {@link RestService}</b>
 	 * 
@@ -611,7 +874,8 @@ public abstract class Processor {
 	}
 	
 	/**
-	 * Shortcut to parse an instance of {@link ResourceRepresentation} to InputStream from Processor via retrieving the {@link Parser} thanks to {@link ParserFactory}
+	 * Shortcut to parse an instance of {@link ResourceRepresentation} to InputStream from Processor via retrieving the {@link Parser} thanks to {@link ParserFactory}.
+	 * A {@link ResourcesList} whose parser is a {@link StreamingParser} is serialized item by item while the stream is read
 	 * 
 	 * @param resource
 	 * 		Instance of {@link ResourceRepresentation} you want to parse
@@ -620,9 +884,14 @@ public abstract class Processor {
 	 * 		InputStream holding data parsed from {@link ResourceRepresentation}
 	 * 
 	 * @throws ParsingException
+	 * 
+	 * @see ResourcesListInputStream
 	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	protected <R extends Resource> InputStream parseToInputStream(R resource) throws ParsingException {
 		Parser<R> p = mParserFactory.getParser(resource.getClass());
+		if(p instanceof StreamingParser && resource instanceof ResourcesList)
+			return new ResourcesListInputStream((StreamingParser) p, (ResourcesList) resource);
 		return p.parseToInputStream(resource);
 	}
 
@@ -1,9 +1,9 @@
 package fr.pcreations.labs.RESTDroid.core;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -79,14 +79,74 @@ public class RESTRequest<T extends Resource> implements Serializable {
 	private boolean mPending;
 	
 	/**
-	 * The server response
+	 * The server response, kept in memory or in a temporary file depending on its size
 	 * 
 	 * @see RESTRequest#getResultStream()
 	 * @see RESTRequest#setResultStream(InputStream)
+	 * @see CacheManager#setSpillThreshold(int)
 	 * 
 	 * @since 0.7.1
 	 */
-	private transient ByteArrayOutputStream mByteArrayResultStream;
+	private transient ResultStreamBuffer mResultStreamBuffer;
+	
+	/**
+	 * Boolean to know if the server response has to be streamed to the {@link Parser} instead of being fully buffered first
+	 * 
+	 * @see RESTRequest#isStreamingResponse()
+	 * @see RESTRequest#setStreamingResponse(boolean)
+	 * 
+	 * @since 0.9
+	 */
+	private boolean mStreamingResponse;
+	
+	/**
+	 * The live server response when {@link RESTRequest#mStreamingResponse} is set. Handed once by {@link RESTRequest#getResultStream()}
+	 * 
+	 * @see RESTRequest#setLiveResultStream(InputStream)
+	 * @see RESTRequest#finishLiveResultStream()
+	 * 
+	 * @since 0.9
+	 */
+	private transient InputStream mLiveResultStream;
+	
+	/**
+	 * Copy of the live result stream into {@link RESTRequest#mResultStreamBuffer}, kept to complete the copy once the response is processed
+	 * 
+	 * @see RESTRequest#finishLiveResultStream()
+	 * 
+	 * @since 0.9
+	 */
+	private transient TeeInputStream mResultStreamTee;
+	
+	/**
+	 * Boolean to know if the request body has to be compressed with gzip
+	 * 
+	 * @see RESTRequest#isCompressRequestBody()
+	 * @see RESTRequest#setCompressRequestBody(boolean)
+	 * 
+	 * @since 0.9
+	 */
+	private boolean mCompressRequestBody;
+	
+	/**
+	 * Value of the ETag header of the server response, used to revalidate the cached response
+	 * 
+	 * @see RESTRequest#getETag()
+	 * @see CacheManager#getConditionalHeaders(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	private String mETag;
+	
+	/**
+	 * Value of the Last-Modified header of the server response, used to revalidate the cached response
+	 * 
+	 * @see RESTRequest#getLastModified()
+	 * @see CacheManager#getConditionalHeaders(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	private String mLastModified;
 	
 	/**
 	 * Defines extra parameters for request
@@ -132,6 +192,78 @@ public class RESTRequest<T extends Resource> implements Serializable {
 	
 	private long mExpirationTime;
 	
+	/**
+	 * Connection timeout of the request in milliseconds, 0 to use the default timeout of {@link HttpRequestHandler}
+	 * 
+	 * @see RESTRequest#getConnectTimeout()
+	 * @see RESTRequest#setTimeouts(int, int)
+	 * 
+	 * @since 0.9
+	 */
+	private int mConnectTimeout;
+	
+	/**
+	 * Socket read timeout of the request in milliseconds, 0 to use the default timeout of {@link HttpRequestHandler}
+	 * 
+	 * @see RESTRequest#getReadTimeout()
+	 * @see RESTRequest#setTimeouts(int, int)
+	 * 
+	 * @since 0.9
+	 */
+	private int mReadTimeout;
+	
+	/**
+	 * Time in milliseconds given to the request to complete, from {@link WebService#executeRequest(RESTRequest)} to the delivery of its result. 0 for no limit
+	 * 
+	 * @see RESTRequest#getTotalTimeout()
+	 * @see RESTRequest#setTotalTimeout(long)
+	 * 
+	 * @since 0.9
+	 */
+	private long mTotalTimeout;
+	
+	/**
+	 * Time in milliseconds (see System.currentTimeMillis()) after which the request is dropped. 0 for no deadline
+	 * 
+	 * @see RESTRequest#getDeadline()
+	 * @see RESTRequest#setDeadline(long)
+	 * @see RESTRequest#isExpired()
+	 * 
+	 * @since 0.9
+	 */
+	private long mDeadline;
+	
+	/**
+	 * Body sent instead of the JSON representation of {@link RESTRequest#mResource}, null to send the JSON representation
+	 * 
+	 * @see RESTRequest#getRequestBody()
+	 * @see RESTRequest#setRequestBody(RequestBody)
+	 * 
+	 * @since 0.9
+	 */
+	private RequestBody mRequestBody;
+	
+	/**
+	 * Tag grouping requests to cancel them together, typically the screen which sent them. It is not serialized so it does not reach {@link RestService}
+	 * 
+	 * @see RESTRequest#getTag()
+	 * @see RESTRequest#setTag(Object)
+	 * @see WebService#cancelAll(Object)
+	 * 
+	 * @since 0.9
+	 */
+	private transient Object mTag;
+	
+	/**
+	 * Priority of the request while it waits for a worker thread
+	 * 
+	 * @see RESTRequest#getPriority()
+	 * @see RESTRequest#setPriority(RequestPriority)
+	 * 
+	 * @since 0.9
+	 */
+	private RequestPriority mPriority = RequestPriority.NORMAL;
+	
 	/**
 	 * Constructor
 	 * 
@@ -476,46 +608,185 @@ public class RESTRequest<T extends Resource> implements Serializable {
 	}
 
 	/**
-	 * Getter for {@link RESTRequest#mByteArrayResultStream}. Returns a new InputStream each time
+	 * Getter for {@link RESTRequest#mResultStreamBuffer}. Returns a new InputStream each time, which should be closed once read since a large response is read from a temporary file.
+	 * If a live result stream is pending it is returned instead, only once
 	 * 
 	 * @return
-	 * 		The server's result stream
+	 * 		The server's result stream, or null if there is no response or the temporary file cannot be opened
 	 * 
-	 * @see RESTRequest#mByteArrayResultStream
+	 * @see RESTRequest#mResultStreamBuffer
+	 * @see RESTRequest#mLiveResultStream
 	 * @see RESTRequest#setResultStream(InputStream)
 	 * 
 	 * @since 0.7.1
 	 */
 	public InputStream getResultStream() {
-		if(null == mByteArrayResultStream)
+		if(null != mLiveResultStream) {
+			InputStream is = mLiveResultStream;
+			mLiveResultStream = null;
+			return is;
+		}
+		if(null == mResultStreamBuffer)
+			return null;
+		try {
+			return mResultStreamBuffer.openStream();
+		} catch (IOException e) {
+			e.printStackTrace();
 			return null;
-		InputStream is = new ByteArrayInputStream(mByteArrayResultStream.toByteArray());
-		return is;
+		}
 	}
 
 	/**
-	 * Setter for {@link RESTRequest#mByteArrayResultStream}
+	 * Setter for {@link RESTRequest#mResultStreamBuffer}. The stream is read until its end, the bytes are kept in memory up to {@link CacheManager#getSpillThreshold()} and in a temporary file above
 	 * 
 	 * @param mResultStream
 	 * 		The server's result stream
 	 * @throws IOException 
 	 * 
-	 * @see RESTRequest#mByteArrayResultStream
+	 * @see RESTRequest#mResultStreamBuffer
 	 * @see RESTRequest#getResultStream()
 	 * 
 	 * @since 0.7.1
 	 */
 	public void setResultStream(InputStream mResultStream) throws IOException {
+		mLiveResultStream = null;
+		mResultStreamTee = null;
+		ResultStreamBuffer resultStreamBuffer = null;
 		if(null != mResultStream) {
-			mByteArrayResultStream = new ByteArrayOutputStream();
-		    byte[] buffer = new byte[1024];
+			/* The previous response is released only once the new one is read, it may be the stream being copied */
+			resultStreamBuffer = new ResultStreamBuffer();
+		    byte[] buffer = BufferPool.acquire();
 		    int len;
-		    while ((len = mResultStream.read(buffer)) > -1 ) {
-		    	mByteArrayResultStream.write(buffer, 0, len);
+		    try {
+			    while ((len = mResultStream.read(buffer)) > -1 ) {
+			    	resultStreamBuffer.write(buffer, 0, len);
+			    }
+			    resultStreamBuffer.flush();
+		    } catch (IOException e) {
+		    	resultStreamBuffer.delete();
+		    	throw e;
+		    } finally {
+		    	BufferPool.release(buffer);
 		    }
-		    mByteArrayResultStream.flush();
+		}
+		releaseResultStream();
+		mResultStreamBuffer = resultStreamBuffer;
+	}
+	
+	/**
+	 * Drops the server response and deletes its temporary file if any. Streams already returned by {@link RESTRequest#getResultStream()} can still be read until they are closed
+	 * 
+	 * @see RESTRequest#getResultStream()
+	 * 
+	 * @since 0.9
+	 */
+	public void releaseResultStream() {
+		if(null != mResultStreamBuffer) {
+			mResultStreamBuffer.delete();
+			mResultStreamBuffer = null;
+		}
+	}
+	
+	/**
+	 * Takes the server response of another instance of the same request without copying it. The other instance no longer has a response
+	 * 
+	 * @param from
+	 * 		The request holding the response, usually the copy processed by {@link RestService}
+	 * 
+	 * @see WebService#onReceiveResult(int, Bundle)
+	 * 
+	 * @since 0.9
+	 */
+	void takeResultStream(RESTRequest<?> from) {
+		if(from == this)
+			return;
+		releaseResultStream();
+		mLiveResultStream = null;
+		mResultStreamTee = null;
+		mResultStreamBuffer = from.mResultStreamBuffer;
+		from.mResultStreamBuffer = null;
+		from.mLiveResultStream = null;
+		from.mResultStreamTee = null;
+	}
+	
+	/**
+	 * Setter for {@link RESTRequest#mLiveResultStream}. Used when {@link RESTRequest#isStreamingResponse()} is true : the response is read from the connection by the {@link Parser}.
+	 * For a GET request the bytes read are also copied in {@link RESTRequest#mResultStreamBuffer} so that the response can be cached
+	 * 
+	 * @param liveResultStream
+	 * 		The server's response stream, still connected
+	 * 
+	 * @see RESTRequest#finishLiveResultStream()
+	 * 
+	 * @since 0.9
+	 */
+	public void setLiveResultStream(InputStream liveResultStream) {
+		releaseResultStream();
+		mResultStreamTee = null;
+		if(null != liveResultStream && mVerb == HTTPVerb.GET) {
+			mResultStreamBuffer = new ResultStreamBuffer();
+			mResultStreamTee = new TeeInputStream(liveResultStream, mResultStreamBuffer);
+			mLiveResultStream = mResultStreamTee;
+		}
+		else
+			mLiveResultStream = liveResultStream;
+	}
+	
+	/**
+	 * Reads what the {@link Parser} left in the live result stream so that the copy used for caching is complete, then releases the live stream.
+	 * If the stream cannot be read the partial copy is dropped
+	 * 
+	 * @return
+	 * 		True if the copy of the response is complete, false otherwise
+	 * 
+	 * @see RESTRequest#setLiveResultStream(InputStream)
+	 * 
+	 * @since 0.9
+	 */
+	public boolean finishLiveResultStream() {
+		TeeInputStream tee = mResultStreamTee;
+		mLiveResultStream = null;
+		mResultStreamTee = null;
+		if(null == tee)
+			return false;
+		byte[] buffer = BufferPool.acquire();
+		try {
+			while(tee.read(buffer) > -1);
+			mResultStreamBuffer.flush();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			releaseResultStream();
+			return false;
+		} finally {
+			BufferPool.release(buffer);
 		}
 	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mStreamingResponse}
+	 * 
+	 * @return
+	 * 		True if the server response is streamed to the {@link Parser}, false if it is buffered first
+	 * 
+	 * @since 0.9
+	 */
+	public boolean isStreamingResponse() {
+		return mStreamingResponse;
+	}
+	
+	/**
+	 * Setter for {@link RESTRequest#mStreamingResponse}. In streaming mode the response is parsed while the connection is open and, for a non GET request, {@link RESTRequest#getResultStream()} returns null once the response has been processed.
+	 * With {@link NioTransport} or {@link Http2Transport} the response is fully received before it is parsed, streaming mode then only avoids the copy in {@link RESTRequest#mResultStreamBuffer}
+	 * 
+	 * @param streamingResponse
+	 * 		True to stream the server response to the {@link Parser}
+	 * 
+	 * @since 0.9
+	 */
+	public void setStreamingResponse(boolean streamingResponse) {
+		mStreamingResponse = streamingResponse;
+	}
 
 	/**
 	 * Getter for {@link HTTPVerb}
@@ -711,6 +982,343 @@ public class RESTRequest<T extends Resource> implements Serializable {
 		this.mFailBehaviorClass = failBehaviorClass;
 	}
 
+	/**
+	 * Getter for {@link RESTRequest#mConnectTimeout}
+	 * 
+	 * @return
+	 * 		Connection timeout in milliseconds, 0 for the default timeout
+	 * 
+	 * @since 0.9
+	 */
+	public int getConnectTimeout() {
+		return mConnectTimeout;
+	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mReadTimeout}
+	 * 
+	 * @return
+	 * 		Socket read timeout in milliseconds, 0 for the default timeout
+	 * 
+	 * @since 0.9
+	 */
+	public int getReadTimeout() {
+		return mReadTimeout;
+	}
+	
+	/**
+	 * Sets the network timeouts of the request. They are shortened if the {@link RESTRequest#mDeadline} is closer
+	 * 
+	 * @param connectTimeout
+	 * 		Connection timeout in milliseconds, 0 for the default timeout
+	 * 
+	 * @param readTimeout
+	 * 		Socket read timeout in milliseconds, 0 for the default timeout
+	 * 
+	 * @see RESTRequest#mConnectTimeout
+	 * @see RESTRequest#mReadTimeout
+	 * 
+	 * @since 0.9
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		mConnectTimeout = connectTimeout;
+		mReadTimeout = readTimeout;
+	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mTotalTimeout}
+	 * 
+	 * @return
+	 * 		Time given to the request to complete in milliseconds, 0 for no limit
+	 * 
+	 * @since 0.9
+	 */
+	public long getTotalTimeout() {
+		return mTotalTimeout;
+	}
+	
+	/**
+	 * Setter for {@link RESTRequest#mTotalTimeout}. The {@link RESTRequest#mDeadline} is set from this value each time the request is executed, it covers queueing, retries, parsing and persistence
+	 * 
+	 * @param totalTimeout
+	 * 		Time given to the request to complete in milliseconds, 0 for no limit
+	 * 
+	 * @see WebService#executeRequest(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	public void setTotalTimeout(long totalTimeout) {
+		mTotalTimeout = totalTimeout;
+	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mDeadline}
+	 * 
+	 * @return
+	 * 		The deadline in milliseconds, 0 for no deadline
+	 * 
+	 * @since 0.9
+	 */
+	public long getDeadline() {
+		return mDeadline;
+	}
+	
+	/**
+	 * Setter for {@link RESTRequest#mDeadline}
+	 * 
+	 * @param deadline
+	 * 		Time in milliseconds (see System.currentTimeMillis()) after which the request is dropped, 0 for no deadline
+	 * 
+	 * @since 0.9
+	 */
+	public void setDeadline(long deadline) {
+		mDeadline = deadline;
+	}
+	
+	/**
+	 * Returns the time left before the {@link RESTRequest#mDeadline}
+	 * 
+	 * @return
+	 * 		The time left in milliseconds, 0 if the deadline has passed, Long.MAX_VALUE if the request has no deadline
+	 * 
+	 * @since 0.9
+	 */
+	public long getRemainingTime() {
+		if(mDeadline == 0)
+			return Long.MAX_VALUE;
+		return Math.max(0, mDeadline - System.currentTimeMillis());
+	}
+	
+	/**
+	 * Checks if the {@link RESTRequest#mDeadline} has passed. An expired request is not executed nor retried and its result is not delivered : it fails with {@link HttpRequestHandler#DEADLINE_EXCEEDED}
+	 * 
+	 * @return
+	 * 		True if the deadline has passed, false otherwise
+	 * 
+	 * @since 0.9
+	 */
+	public boolean isExpired() {
+		return mDeadline != 0 && System.currentTimeMillis() >= mDeadline;
+	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mRequestBody}
+	 * 
+	 * @return
+	 * 		The body of the POST or PUT request, or null if the JSON representation of the resource is sent
+	 * 
+	 * @since 0.9
+	 */
+	public RequestBody getRequestBody() {
+		return mRequestBody;
+	}
+	
+	/**
+	 * Setter for {@link RESTRequest#mRequestBody}. The body is serialized with the request, use a {@link FileRequestBody} or a {@link MultipartRequestBody} to upload files without loading them in memory
+	 * 
+	 * @param requestBody
+	 * 		The body of the POST or PUT request, null to send the JSON representation of the resource
+	 * 
+	 * @throws IllegalArgumentException
+	 * 		If the body cannot be serialized, like an {@link InputStreamRequestBody} or a {@link FileRequestBody} created from a FileChannel
+	 * 
+	 * @see RequestBody#isSerializable()
+	 * 
+	 * @since 0.9
+	 */
+	public void setRequestBody(RequestBody requestBody) {
+		if(null != requestBody && !requestBody.isSerializable())
+			throw new IllegalArgumentException("Request body " + requestBody.getClass().getSimpleName() + " cannot be serialized with the request");
+		mRequestBody = requestBody;
+	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mTag}
+	 * 
+	 * @return
+	 * 		The tag of the request, or null
+	 * 
+	 * @since 0.9
+	 */
+	public Object getTag() {
+		return mTag;
+	}
+	
+	/**
+	 * Setter for {@link RESTRequest#mTag}
+	 * 
+	 * @param tag
+	 * 		The tag of the request, compared with equals()
+	 * 
+	 * @see WebService#cancelAll(Object)
+	 * 
+	 * @since 0.9
+	 */
+	public void setTag(Object tag) {
+		mTag = tag;
+	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mPriority}
+	 * 
+	 * @return
+	 * 		The priority of the request, {@link RequestPriority#NORMAL} by default
+	 * 
+	 * @since 0.9
+	 */
+	public RequestPriority getPriority() {
+		return mPriority;
+	}
+	
+	/**
+	 * Setter for {@link RESTRequest#mPriority}. Must be called before the request is executed, use {@link WebService#setPriority(RESTRequest, RequestPriority)} for a pending request
+	 * 
+	 * @param priority
+	 * 		The priority of the request
+	 * 
+	 * @since 0.9
+	 */
+	public void setPriority(RequestPriority priority) {
+		mPriority = null != priority ? priority : RequestPriority.NORMAL;
+	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mCompressRequestBody}
+	 * 
+	 * @return
+	 * 		True if the POST or PUT body is sent compressed with gzip
+	 * 
+	 * @since 0.9
+	 */
+	public boolean isCompressRequestBody() {
+		return mCompressRequestBody;
+	}
+	
+	/**
+	 * Setter for {@link RESTRequest#mCompressRequestBody}. The server must accept "Content-Encoding: gzip" request bodies
+	 * 
+	 * @param compressRequestBody
+	 * 		True to send the POST or PUT body compressed with gzip
+	 * 
+	 * @see WebService#setCompressRequestBodies(boolean)
+	 * 
+	 * @since 0.9
+	 */
+	public void setCompressRequestBody(boolean compressRequestBody) {
+		mCompressRequestBody = compressRequestBody;
+	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mETag}
+	 * 
+	 * @return
+	 * 		The ETag of the server response or null
+	 * 
+	 * @since 0.9
+	 */
+	public String getETag() {
+		return mETag;
+	}
+	
+	/**
+	 * Getter for {@link RESTRequest#mLastModified}
+	 * 
+	 * @return
+	 * 		The Last-Modified date of the server response or null
+	 * 
+	 * @since 0.9
+	 */
+	public String getLastModified() {
+		return mLastModified;
+	}
+	
+	/**
+	 * Sets the cache validators of the server response
+	 * 
+	 * @param eTag
+	 * 		Value of the ETag header, may be null
+	 * 
+	 * @param lastModified
+	 * 		Value of the Last-Modified header, may be null
+	 * 
+	 * @see RESTRequest#mETag
+	 * @see RESTRequest#mLastModified
+	 * 
+	 * @since 0.9
+	 */
+	public void setCacheValidators(String eTag, String lastModified) {
+		mETag = eTag;
+		mLastModified = lastModified;
+	}
+	
+	/**
+	 * <b>InputStream copying every byte read into an OutputStream</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class TeeInputStream extends FilterInputStream {
+		
+		/**
+		 * Stream receiving the copy
+		 */
+		private OutputStream mCopy;
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param in
+		 * 		The stream to read
+		 * 
+		 * @param copy
+		 * 		The stream receiving the copy
+		 */
+		public TeeInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			mCopy = copy;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1)
+				mCopy.write(b);
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read = super.read(buffer, offset, count);
+			if(read > 0)
+				mCopy.write(buffer, offset, read);
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			/* Skipped bytes still have to be copied */
+			byte[] buffer = BufferPool.acquire();
+			try {
+				int read = read(buffer, 0, (int) Math.min(n, buffer.length));
+				return read > 0 ? read : 0;
+			} finally {
+				BufferPool.release(buffer);
+			}
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		@Override
+		public void close() {
+			/* The connection is released by HttpRequestHandler */
+		}
+		
+	}
+
 	public String toString() {
 		String str = "";
 		str += null != mID ? "Request[id] = " +mID.toString() : "Request[id] = null";
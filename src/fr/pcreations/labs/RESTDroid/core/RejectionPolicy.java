@@ -0,0 +1,24 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+/**
+ * <b>Enum which represents what {@link RequestDispatcher} does with a new request when its queue is full</b>
+ * 
+ * <p>
+ * <ul>
+ * <li><b>REJECT_NEWEST</b> : the new request fails with {@link HttpRequestHandler#REJECTED}</li>
+ * <li><b>DROP_OLDEST_BACKGROUND</b> : the oldest waiting {@link RequestPriority#BACKGROUND} request fails with {@link HttpRequestHandler#REJECTED} to make room for the new one. If there is none the new request is rejected</li>
+ * <li><b>CALLER_RUNS</b> : the new request is executed by the thread submitting it, which slows down the submission of the next requests</li>
+ * </ul>
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see RequestDispatcher#setRejectionPolicy(RejectionPolicy)
+ */
+public enum RejectionPolicy {
+	REJECT_NEWEST,
+	DROP_OLDEST_BACKGROUND,
+	CALLER_RUNS
+}
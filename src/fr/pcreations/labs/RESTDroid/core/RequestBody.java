@@ -0,0 +1,136 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <b>Body of a POST or PUT request, written straight to the connection output stream by {@link HttpRequestHandler}</b>
+ * 
+ * <p>
+ * A body never has to be fully held in memory : it is asked to write itself when the connection is ready.
+ * If {@link RequestBody#getContentLength()} returns a negative value the body is sent with chunked transfer encoding, otherwise a Content-Length header is sent.
+ * </p>
+ * 
+ * <p>
+ * A body attached to a {@link RESTRequest} with {@link RESTRequest#setRequestBody(RequestBody)} is serialized with the request, its fields must be serializable or transient, and it must still be complete once deserialized (see {@link RequestBody#isSerializable()}).
+ * A transferable body (see {@link RequestBody#isTransferable()}) is written by {@link NioTransport} and {@link Http2Transport} region by region, file content going from the file to the socket without being copied in the heap.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see InputStreamRequestBody
+ * @see FileRequestBody
+ * @see MultipartRequestBody
+ */
+public abstract class RequestBody implements Serializable {
+
+	private static final long serialVersionUID = 4283405916627203118L;
+
+	/**
+	 * Default content type of request bodies
+	 */
+	public static final String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+	
+	/**
+	 * Content type of the body
+	 * 
+	 * @see RequestBody#getContentType()
+	 */
+	private String mContentType;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param contentType
+	 * 		The content type of the body
+	 */
+	public RequestBody(String contentType) {
+		mContentType = contentType;
+	}
+	
+	/**
+	 * Getter for {@link RequestBody#mContentType}
+	 * 
+	 * @return
+	 * 		The content type of the body
+	 */
+	public String getContentType() {
+		return mContentType;
+	}
+	
+	/**
+	 * Returns the length of the body in bytes
+	 * 
+	 * @return
+	 * 		The length of the body or -1 if it is unknown
+	 */
+	public long getContentLength() {
+		return -1;
+	}
+	
+	/**
+	 * Writes the body to the connection
+	 * 
+	 * @param out
+	 * 		The connection output stream
+	 * 
+	 * @throws IOException
+	 */
+	public abstract void writeTo(OutputStream out) throws IOException;
+	
+	/**
+	 * Checks if the body can be serialized without losing its content, so that it can be attached to a {@link RESTRequest} sent to {@link RestService}
+	 * 
+	 * @return
+	 * 		True if the body is serializable, false if its content is held by transient fields
+	 * 
+	 * @see RESTRequest#setRequestBody(RequestBody)
+	 * 
+	 * @since 0.9
+	 */
+	public boolean isSerializable() {
+		return true;
+	}
+	
+	/**
+	 * Checks if the body can be written with {@link RequestBody#transferTo(WritableByteChannel, long, long)}. A transferable body has a known length and can be written several times
+	 * 
+	 * @return
+	 * 		True if the body is transferable, false otherwise
+	 * 
+	 * @since 0.9
+	 */
+	public boolean isTransferable() {
+		return false;
+	}
+	
+	/**
+	 * Writes a region of the body to a channel. Fewer bytes than asked may be written, for instance to a non-blocking socket
+	 * 
+	 * @param channel
+	 * 		The channel to write to
+	 * 
+	 * @param position
+	 * 		Position of the region in the body
+	 * 
+	 * @param count
+	 * 		Maximum number of bytes to write
+	 * 
+	 * @return
+	 * 		Number of bytes written
+	 * 
+	 * @throws IOException
+	 * 
+	 * @see RequestBody#isTransferable()
+	 * 
+	 * @since 0.9
+	 */
+	public long transferTo(WritableByteChannel channel, long position, long count) throws IOException {
+		throw new UnsupportedOperationException("Body is not transferable");
+	}
+	
+}
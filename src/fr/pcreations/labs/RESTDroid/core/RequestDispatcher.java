@@ -0,0 +1,1076 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+/**
+ * <b>Fair scheduler sitting in front of the {@link WebService} thread pool</b>
+ * 
+ * <p>
+ * Requests are queued per host (host and port of the request url). A request is handed to the thread pool only when :
+ * <ul>
+ * <li>a worker thread is free, so that waiting requests stay in this dispatcher instead of the pool FIFO queue</li>
+ * <li>its host has less in-flight requests than its limit (see {@link RequestDispatcher#setMaxRequestsPerHost(String, int)})</li>
+ * </ul>
+ * Hosts are served in round-robin order so that a slow backend cannot occupy all the workers and starve the others.
+ * </p>
+ * 
+ * <p>
+ * A {@link SlotTask} keeps the slot of its host after it returns, until it calls {@link Slot#release()} or the task given to {@link Slot#releaseAfter(Runnable)} is finished.
+ * This is how an exchange of an {@link AsyncTransport} counts for its host while it is on the network without holding a worker thread.
+ * </p>
+ * 
+ * <p>
+ * When a worker is free the waiting request with the highest {@link RequestPriority} is started first, requests of the same priority in queueing order.
+ * A waiting request gains one level of priority each {@link RequestDispatcher#getAgingInterval()} milliseconds, so that BACKGROUND requests are eventually started.
+ * The round-robin order only decides between hosts whose next requests have the same priority.
+ * </p>
+ * 
+ * <p>
+ * The number of waiting requests is bounded by {@link RequestDispatcher#getMaxQueueSize()}. When the queue is full a new request is handled according to the {@link RejectionPolicy}.
+ * Only the execution of requests can be rejected : the tasks delivering the result of a request already on the network are always queued.
+ * </p>
+ * 
+ * <p>
+ * The dispatcher of {@link WebService#getRequestDispatcher()} is shared by default. A {@link Module} can run its requests on its own dispatcher and thread pool, see {@link Module#setRequestDispatcher()},
+ * so that a slow or busy API cannot take the workers of the others.
+ * </p>
+ * 
+ * <p>
+ * With an {@link AdaptiveConcurrencyLimit} the in-flight limit of each host follows its measured latency and failures instead of a fixed number, see {@link RequestDispatcher#setConcurrencyLimit(AdaptiveConcurrencyLimit)}.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see WebService#getRequestDispatcher()
+ */
+public class RequestDispatcher {
+	
+	/**
+	 * Default value of {@link RequestDispatcher#mAgingInterval}
+	 * 
+	 * @since 0.9
+	 */
+	public static final long DEFAULT_AGING_INTERVAL = 5000;
+	
+	/**
+	 * Default value of {@link RequestDispatcher#mMaxQueueSize}
+	 * 
+	 * @since 0.9
+	 */
+	public static final int DEFAULT_MAX_QUEUE_SIZE = 500;
+	
+	/**
+	 * ExecutorService running the requests
+	 */
+	private final ExecutorService mExecutor;
+	
+	/**
+	 * Maximum number of requests handed to {@link RequestDispatcher#mExecutor} at the same time. Should be the number of threads of the pool
+	 */
+	private final int mMaxRequests;
+	
+	/**
+	 * Default maximum number of in-flight requests per host
+	 */
+	private int mMaxRequestsPerHost;
+	
+	/**
+	 * HashMap to store the in-flight limit of specific hosts
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : host (and port if not default)</li>
+	 * <li><b>value</b> : maximum number of in-flight requests for this host</li>
+	 * </ul>
+	 * </p>
+	 */
+	private final HashMap<String, Integer> mHostLimits;
+	
+	/**
+	 * Queues of waiting requests per host. The iteration order is the round-robin order : a host is moved at the end each time one of its requests is started
+	 */
+	private final LinkedHashMap<String, LinkedList<DispatchedTask>> mQueues;
+	
+	/**
+	 * Number of in-flight requests per host, running on a worker thread or holding a {@link Slot}
+	 */
+	private final HashMap<String, Integer> mRunning;
+	
+	/**
+	 * Number of tasks running on a worker thread
+	 */
+	private int mRunningCount;
+	
+	/**
+	 * Tasks given to {@link Slot#releaseAfter(Runnable)}, started before any queued task since their request already holds the slot of its host
+	 */
+	private final LinkedList<DispatchedTask> mContinuations;
+	
+	/**
+	 * Time in milliseconds after which a waiting request gains one level of priority, 0 to disable aging
+	 * 
+	 * @see RequestDispatcher#setAgingInterval(long)
+	 */
+	private long mAgingInterval;
+	
+	/**
+	 * Number of tasks queued so far, gives the queueing order of tasks of the same priority
+	 */
+	private long mSequence;
+	
+	/**
+	 * HashMap to store the priority changes of requests which are not queued yet, applied when the request is queued
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : ID of the {@link RESTRequest}</li>
+	 * <li><b>value</b> : its new {@link RequestPriority}</li>
+	 * </ul>
+	 * </p>
+	 * 
+	 * @see RequestDispatcher#setPriority(UUID, RequestPriority)
+	 */
+	private final HashMap<UUID, RequestPriority> mPriorityChanges;
+	
+	/**
+	 * Maximum number of waiting tasks above which a new request is handled by {@link RequestDispatcher#mRejectionPolicy}, 0 for no limit
+	 * 
+	 * @see RequestDispatcher#setMaxQueueSize(int)
+	 */
+	private int mMaxQueueSize;
+	
+	/**
+	 * What to do with a new request when the queue is full
+	 * 
+	 * @see RequestDispatcher#setRejectionPolicy(RejectionPolicy)
+	 */
+	private RejectionPolicy mRejectionPolicy;
+	
+	/**
+	 * Number of requests rejected so far
+	 */
+	private long mRejectedCount;
+	
+	/**
+	 * Adaptive in-flight limit of the hosts, null to use fixed limits
+	 * 
+	 * @see RequestDispatcher#setConcurrencyLimit(AdaptiveConcurrencyLimit)
+	 */
+	private AdaptiveConcurrencyLimit mConcurrencyLimit;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param executor
+	 * 		ExecutorService running the requests
+	 * 
+	 * @param maxRequests
+	 * 		Maximum number of requests running at the same time, typically the size of the thread pool
+	 * 
+	 * @param maxRequestsPerHost
+	 * 		Default maximum number of in-flight requests per host
+	 */
+	public RequestDispatcher(ExecutorService executor, int maxRequests, int maxRequestsPerHost) {
+		mExecutor = executor;
+		mMaxRequests = maxRequests;
+		mMaxRequestsPerHost = maxRequestsPerHost;
+		mHostLimits = new HashMap<String, Integer>();
+		mQueues = new LinkedHashMap<String, LinkedList<DispatchedTask>>();
+		mRunning = new HashMap<String, Integer>();
+		mContinuations = new LinkedList<DispatchedTask>();
+		mAgingInterval = DEFAULT_AGING_INTERVAL;
+		mPriorityChanges = new HashMap<UUID, RequestPriority>();
+		mMaxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+		mRejectionPolicy = RejectionPolicy.REJECT_NEWEST;
+	}
+	
+	/**
+	 * Constructor creating its own thread pool, to isolate the requests of a {@link Module} from the others
+	 * 
+	 * @param name
+	 * 		Name of the worker threads, followed by their number
+	 * 
+	 * @param threads
+	 * 		Number of worker threads, which is also the maximum number of requests running at the same time
+	 * 
+	 * @param maxRequestsPerHost
+	 * 		Default maximum number of in-flight requests per host
+	 * 
+	 * @param threadPriority
+	 * 		Linux priority of the worker threads, like android.os.Process.THREAD_PRIORITY_BACKGROUND
+	 * 
+	 * @see Module#setRequestDispatcher()
+	 * 
+	 * @since 0.9
+	 */
+	public RequestDispatcher(String name, int threads, int maxRequestsPerHost, int threadPriority) {
+		this(Executors.newFixedThreadPool(threads, new WorkerThreadFactory(name, threadPriority)), threads, maxRequestsPerHost);
+	}
+	
+	/**
+	 * Queues the task of a request. It is started as soon as a worker thread is free, the request's host is under its limit and no waiting request has a higher priority.
+	 * The task is queued even if the queue is full
+	 * 
+	 * @param request
+	 * 		The {@link RESTRequest} executed by the task
+	 * 
+	 * @param task
+	 * 		The task to run
+	 */
+	public void execute(RESTRequest<? extends Resource> request, Runnable task) {
+		execute(request, task, null);
+	}
+	
+	/**
+	 * Queues the task of a request, or handles it according to the {@link RejectionPolicy} if {@link RequestDispatcher#getMaxQueueSize()} tasks are already waiting.
+	 * The rejection tasks are run by the calling thread
+	 * 
+	 * @param request
+	 * 		The {@link RESTRequest} executed by the task
+	 * 
+	 * @param task
+	 * 		The task to run
+	 * 
+	 * @param rejectedTask
+	 * 		The task to run instead of task if the request is rejected, null if the task cannot be rejected
+	 * 
+	 * @since 0.9
+	 */
+	public void execute(RESTRequest<? extends Resource> request, Runnable task, Runnable rejectedTask) {
+		execute(request, task, null, rejectedTask, false);
+	}
+	
+	/**
+	 * Queues a {@link SlotTask}, or handles it according to the {@link RejectionPolicy} if {@link RequestDispatcher#getMaxQueueSize()} tasks are already waiting.
+	 * Once started the task keeps the slot of its host until it releases its {@link Slot}, even after it has returned
+	 * 
+	 * @param request
+	 * 		The {@link RESTRequest} executed by the task
+	 * 
+	 * @param task
+	 * 		The task to run
+	 * 
+	 * @param rejectedTask
+	 * 		The task to run instead of task if the request is rejected, null if the task cannot be rejected
+	 * 
+	 * @since 0.9
+	 */
+	public void execute(RESTRequest<? extends Resource> request, SlotTask task, Runnable rejectedTask) {
+		execute(request, null, task, rejectedTask, false);
+	}
+	
+	/**
+	 * Queues an optional {@link SlotTask}, like a hedged request. When the queue is full it is always rejected : it is neither run by the calling thread nor queued in place of another request
+	 * 
+	 * @param request
+	 * 		The {@link RESTRequest} executed by the task
+	 * 
+	 * @param task
+	 * 		The task to run
+	 * 
+	 * @param rejectedTask
+	 * 		The task to run instead of task if the queue is full
+	 * 
+	 * @since 0.9
+	 */
+	void executeOptional(RESTRequest<? extends Resource> request, SlotTask task, Runnable rejectedTask) {
+		execute(request, null, task, rejectedTask, true);
+	}
+	
+	/**
+	 * Queues a task or applies the {@link RejectionPolicy}. The rejection tasks and the task run by {@link RejectionPolicy#CALLER_RUNS} are run by the calling thread
+	 * 
+	 * @param request
+	 * 		The {@link RESTRequest} executed by the task
+	 * 
+	 * @param task
+	 * 		The task to run, null if slotTask is given
+	 * 
+	 * @param slotTask
+	 * 		The {@link SlotTask} to run, null if task is given
+	 * 
+	 * @param rejectedTask
+	 * 		The task to run instead if the request is rejected, null if it cannot be rejected
+	 * 
+	 * @param optional
+	 * 		True to reject the task whenever the queue is full, whatever the {@link RejectionPolicy}
+	 */
+	private void execute(RESTRequest<? extends Resource> request, Runnable task, SlotTask slotTask, Runnable rejectedTask, boolean optional) {
+		Runnable rejected = null;
+		DispatchedTask callerRuns = null;
+		synchronized(this) {
+			RequestPriority priority = mPriorityChanges.remove(request.getID());
+			if(null != priority)
+				request.setPriority(priority);
+			String host = getHost(request.getUrl());
+			DispatchedTask dispatchedTask = new DispatchedTask(host, request.getID(), request.getPriority(), mSequence++, task, slotTask, rejectedTask, null);
+			if(null == rejectedTask || mMaxQueueSize <= 0 || getQueueDepth() < mMaxQueueSize) {
+				enqueue(dispatchedTask);
+			}
+			else if(optional) {
+				rejected = rejectedTask;
+				mRejectedCount++;
+			}
+			else if(mRejectionPolicy == RejectionPolicy.CALLER_RUNS) {
+				callerRuns = dispatchedTask;
+			}
+			else {
+				DispatchedTask dropped = null;
+				if(mRejectionPolicy == RejectionPolicy.DROP_OLDEST_BACKGROUND)
+					dropped = removeOldestBackgroundTask();
+				if(null != dropped) {
+					rejected = dropped.mRejectedTask;
+					enqueue(dispatchedTask);
+				}
+				else
+					rejected = rejectedTask;
+				mRejectedCount++;
+			}
+		}
+		/* Not counted for its host : its slot is released without effect */
+		if(null != callerRuns)
+			callerRuns.run();
+		if(null != rejected)
+			rejected.run();
+	}
+	
+	/**
+	 * Adds a task to the queue of its host and starts the waiting tasks if workers are free
+	 * 
+	 * @param task
+	 * 		The task to queue
+	 */
+	private synchronized void enqueue(DispatchedTask task) {
+		LinkedList<DispatchedTask> queue = mQueues.get(task.mHost);
+		if(null == queue) {
+			queue = new LinkedList<DispatchedTask>();
+			mQueues.put(task.mHost, queue);
+		}
+		queue.add(task);
+		promote();
+	}
+	
+	/**
+	 * Takes the oldest waiting {@link RequestPriority#BACKGROUND} task which can be rejected out of the queue
+	 * 
+	 * @return
+	 * 		The task, or null if there is none
+	 */
+	private synchronized DispatchedTask removeOldestBackgroundTask() {
+		String oldestHost = null;
+		DispatchedTask oldest = null;
+		for(Entry<String, LinkedList<DispatchedTask>> entry : mQueues.entrySet()) {
+			for(DispatchedTask task : entry.getValue()) {
+				if(null != task.mRejectedTask && task.mPriority == RequestPriority.BACKGROUND && (null == oldest || task.mSequence < oldest.mSequence)) {
+					oldestHost = entry.getKey();
+					oldest = task;
+				}
+			}
+		}
+		if(null != oldest) {
+			LinkedList<DispatchedTask> queue = mQueues.get(oldestHost);
+			queue.remove(oldest);
+			if(queue.isEmpty())
+				mQueues.remove(oldestHost);
+		}
+		return oldest;
+	}
+	
+	/**
+	 * Takes the queued tasks of a cancelled request out of the queue of its host. They are handed to the thread pool without waiting for a slot, the request being cancelled they only report the cancellation
+	 * 
+	 * @param requestId
+	 * 		The ID of the cancelled {@link RESTRequest}
+	 * 
+	 * @return
+	 * 		The number of tasks taken out of the queue
+	 * 
+	 * @see HttpRequestHandler#cancel(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized int cancel(UUID requestId) {
+		int cancelled = 0;
+		for(Iterator<LinkedList<DispatchedTask>> it = mQueues.values().iterator(); it.hasNext();) {
+			LinkedList<DispatchedTask> queue = it.next();
+			for(Iterator<DispatchedTask> taskIt = queue.iterator(); taskIt.hasNext();) {
+				DispatchedTask task = taskIt.next();
+				if(task.mRequestId.equals(requestId)) {
+					taskIt.remove();
+					mExecutor.execute(task);
+					cancelled++;
+				}
+			}
+			if(queue.isEmpty())
+				it.remove();
+		}
+		return cancelled;
+	}
+	
+	/**
+	 * Changes the priority of a request. If the request is waiting for a worker its position in the queue is updated, otherwise the priority is applied when the request is queued
+	 * 
+	 * @param requestId
+	 * 		The ID of the {@link RESTRequest}
+	 * 
+	 * @param priority
+	 * 		Its new priority
+	 * 
+	 * @return
+	 * 		True if a waiting task of the request has been found, false otherwise
+	 * 
+	 * @see WebService#setPriority(RESTRequest, RequestPriority)
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized boolean setPriority(UUID requestId, RequestPriority priority) {
+		if(null == priority)
+			priority = RequestPriority.NORMAL;
+		boolean found = false;
+		for(LinkedList<DispatchedTask> queue : mQueues.values()) {
+			for(DispatchedTask task : queue) {
+				if(task.mRequestId.equals(requestId)) {
+					task.mPriority = priority;
+					found = true;
+				}
+			}
+		}
+		if(!found)
+			mPriorityChanges.put(requestId, priority);
+		return found;
+	}
+	
+	/**
+	 * Drops the pending priority change of a request, once it is finished
+	 * 
+	 * @param requestId
+	 * 		The ID of the {@link RESTRequest}
+	 */
+	synchronized void forgetPriority(UUID requestId) {
+		mPriorityChanges.remove(requestId);
+	}
+	
+	/**
+	 * Hands queued tasks to the thread pool while workers are free. The continuations of requests holding a slot are started first.
+	 * Then the next task of each host under its limit is compared, the one with the highest priority is started and its host is moved at the end of the round-robin order
+	 */
+	private synchronized void promote() {
+		long now = System.currentTimeMillis();
+		while(mRunningCount < mMaxRequests && !mContinuations.isEmpty()) {
+			mRunningCount++;
+			mExecutor.execute(mContinuations.removeFirst());
+		}
+		while(mRunningCount < mMaxRequests) {
+			String selectedHost = null;
+			DispatchedTask selected = null;
+			int selectedRank = 0;
+			for(Entry<String, LinkedList<DispatchedTask>> entry : mQueues.entrySet()) {
+				String host = entry.getKey();
+				if(getRunningCount(host) >= getMaxRequestsPerHost(host))
+					continue;
+				DispatchedTask task = getNextTask(entry.getValue(), now);
+				int rank = task.getRank(now);
+				/* Strict comparison : on a tie the host coming first in the round-robin order wins */
+				if(null == selected || rank < selectedRank) {
+					selectedHost = host;
+					selected = task;
+					selectedRank = rank;
+				}
+			}
+			if(null == selected)
+				return;
+			LinkedList<DispatchedTask> queue = mQueues.remove(selectedHost);
+			queue.remove(selected);
+			if(!queue.isEmpty())
+				mQueues.put(selectedHost, queue);
+			mRunning.put(selectedHost, getRunningCount(selectedHost) + 1);
+			mRunningCount++;
+			selected.mStarted = true;
+			selected.mHoldsSlot = true;
+			mExecutor.execute(selected);
+		}
+	}
+	
+	/**
+	 * Returns the task of a host to start first : the one with the lowest rank, the oldest one on a tie
+	 * 
+	 * @param queue
+	 * 		The waiting tasks of the host, not empty
+	 * 
+	 * @param now
+	 * 		Current time in milliseconds
+	 * 
+	 * @return
+	 * 		The next task
+	 */
+	private DispatchedTask getNextTask(LinkedList<DispatchedTask> queue, long now) {
+		DispatchedTask next = null;
+		int nextRank = 0;
+		for(DispatchedTask task : queue) {
+			int rank = task.getRank(now);
+			if(null == next || rank < nextRank || (rank == nextRank && task.mSequence < next.mSequence)) {
+				next = task;
+				nextRank = rank;
+			}
+		}
+		return next;
+	}
+	
+	/**
+	 * Called when a task returns to free its worker thread. The slot of its host is freed as well, unless it is a {@link SlotTask}
+	 * 
+	 * @param task
+	 * 		The finished task
+	 */
+	private synchronized void finished(DispatchedTask task) {
+		if(!task.mStarted)
+			return;
+		mRunningCount--;
+		if(null != task.mContinued)
+			releaseSlot(task.mContinued);
+		else if(null == task.mSlotTask)
+			releaseSlot(task);
+		promote();
+	}
+	
+	/**
+	 * Frees the slot of the host of a task, once
+	 * 
+	 * @param task
+	 * 		The task holding the slot
+	 */
+	private synchronized void releaseSlot(DispatchedTask task) {
+		if(!task.mHoldsSlot)
+			return;
+		task.mHoldsSlot = false;
+		int running = getRunningCount(task.mHost) - 1;
+		if(running > 0)
+			mRunning.put(task.mHost, running);
+		else
+			mRunning.remove(task.mHost);
+		promote();
+	}
+	
+	/**
+	 * Queues the continuation of a task holding a slot
+	 * 
+	 * @param task
+	 * 		The task holding the slot
+	 * 
+	 * @param continuation
+	 * 		The task to run on a worker thread before the slot is freed
+	 */
+	private synchronized void continueWith(DispatchedTask task, Runnable continuation) {
+		mContinuations.add(new DispatchedTask(task.mHost, task.mRequestId, task.mPriority, mSequence++, continuation, null, null, task));
+		promote();
+	}
+	
+	/**
+	 * Returns the key used to group requests of the same host
+	 * 
+	 * @param url
+	 * 		The request url
+	 * 
+	 * @return
+	 * 		Host and port of the url, or an empty String if it cannot be parsed
+	 */
+	static String getHost(String url) {
+		try {
+			URI uri = new URI(url);
+			if(null == uri.getHost())
+				return "";
+			return uri.getPort() != -1 ? uri.getHost() + ":" + uri.getPort() : uri.getHost();
+		} catch (URISyntaxException e) {
+			return "";
+		}
+	}
+	
+	/**
+	 * Getter for the in-flight limit of a host. With an {@link AdaptiveConcurrencyLimit} this is its current limit for the host, capped by the limit set with {@link RequestDispatcher#setMaxRequestsPerHost(String, int)} if any
+	 * 
+	 * @param host
+	 * 		The host
+	 * 
+	 * @return
+	 * 		Maximum number of in-flight requests for this host
+	 */
+	public synchronized int getMaxRequestsPerHost(String host) {
+		Integer limit = mHostLimits.get(host);
+		if(null != mConcurrencyLimit) {
+			int adaptiveLimit = mConcurrencyLimit.getLimit(host);
+			return null != limit ? Math.min(limit, adaptiveLimit) : adaptiveLimit;
+		}
+		return null != limit ? limit : mMaxRequestsPerHost;
+	}
+	
+	/**
+	 * Getter for {@link RequestDispatcher#mConcurrencyLimit}
+	 * 
+	 * @return
+	 * 		The {@link AdaptiveConcurrencyLimit} of the hosts, or null if the limits are fixed
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized AdaptiveConcurrencyLimit getConcurrencyLimit() {
+		return mConcurrencyLimit;
+	}
+	
+	/**
+	 * Setter for {@link RequestDispatcher#mConcurrencyLimit}. The default limit of {@link RequestDispatcher#setMaxRequestsPerHost(int)} is not used anymore, the limits of specific hosts remain as caps
+	 * 
+	 * @param concurrencyLimit
+	 * 		The {@link AdaptiveConcurrencyLimit} of the hosts, null to go back to fixed limits
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized void setConcurrencyLimit(AdaptiveConcurrencyLimit concurrencyLimit) {
+		mConcurrencyLimit = concurrencyLimit;
+		promote();
+	}
+	
+	/**
+	 * Reports the latency of an exchange to the {@link AdaptiveConcurrencyLimit}, if any, and starts waiting requests if the limit of the host has grown
+	 * 
+	 * @param host
+	 * 		Host of the request
+	 * 
+	 * @param rtt
+	 * 		Time in milliseconds between the start of the exchange and the reception of the response headers
+	 * 
+	 * @param dropped
+	 * 		True if the request timed out or the server refused it because it is overloaded
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized void recordSample(String host, long rtt, boolean dropped) {
+		if(null == mConcurrencyLimit)
+			return;
+		mConcurrencyLimit.onSample(host, rtt, getRunningCount(host), dropped);
+		promote();
+	}
+	
+	/**
+	 * Setter for the default in-flight limit of hosts
+	 * 
+	 * @param maxRequestsPerHost
+	 * 		Default maximum number of in-flight requests per host
+	 */
+	public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+		mMaxRequestsPerHost = maxRequestsPerHost;
+		promote();
+	}
+	
+	/**
+	 * Setter for the in-flight limit of a specific host
+	 * 
+	 * @param host
+	 * 		The host, followed by ":port" if the port is not the default one
+	 * 
+	 * @param maxRequests
+	 * 		Maximum number of in-flight requests for this host
+	 */
+	public synchronized void setMaxRequestsPerHost(String host, int maxRequests) {
+		mHostLimits.put(host, maxRequests);
+		promote();
+	}
+	
+	/**
+	 * Getter for {@link RequestDispatcher#mExecutor}
+	 * 
+	 * @return
+	 * 		ExecutorService running the requests
+	 * 
+	 * @since 0.9
+	 */
+	public ExecutorService getExecutor() {
+		return mExecutor;
+	}
+	
+	/**
+	 * Shuts down the thread pool of a dispatcher created with {@link RequestDispatcher#RequestDispatcher(String, int, int, int)}, once the running requests are finished. The dispatcher must not be used afterwards
+	 * 
+	 * @since 0.9
+	 */
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+	
+	/**
+	 * Getter for {@link RequestDispatcher#mAgingInterval}
+	 * 
+	 * @return
+	 * 		Time in milliseconds after which a waiting request gains one level of priority
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized long getAgingInterval() {
+		return mAgingInterval;
+	}
+	
+	/**
+	 * Setter for {@link RequestDispatcher#mAgingInterval}
+	 * 
+	 * @param agingInterval
+	 * 		Time in milliseconds after which a waiting request gains one level of priority, 0 to start requests strictly by priority
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized void setAgingInterval(long agingInterval) {
+		mAgingInterval = agingInterval;
+	}
+	
+	/**
+	 * Getter for {@link RequestDispatcher#mMaxQueueSize}
+	 * 
+	 * @return
+	 * 		Maximum number of waiting tasks, 0 for no limit
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized int getMaxQueueSize() {
+		return mMaxQueueSize;
+	}
+	
+	/**
+	 * Setter for {@link RequestDispatcher#mMaxQueueSize}. The tasks already waiting are kept if the new limit is lower
+	 * 
+	 * @param maxQueueSize
+	 * 		Maximum number of waiting tasks, 0 for no limit
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized void setMaxQueueSize(int maxQueueSize) {
+		mMaxQueueSize = maxQueueSize;
+	}
+	
+	/**
+	 * Getter for {@link RequestDispatcher#mRejectionPolicy}
+	 * 
+	 * @return
+	 * 		What is done with a new request when the queue is full
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized RejectionPolicy getRejectionPolicy() {
+		return mRejectionPolicy;
+	}
+	
+	/**
+	 * Setter for {@link RequestDispatcher#mRejectionPolicy}
+	 * 
+	 * @param rejectionPolicy
+	 * 		What to do with a new request when the queue is full, {@link RejectionPolicy#REJECT_NEWEST} by default
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized void setRejectionPolicy(RejectionPolicy rejectionPolicy) {
+		mRejectionPolicy = null != rejectionPolicy ? rejectionPolicy : RejectionPolicy.REJECT_NEWEST;
+	}
+	
+	/**
+	 * Returns the number of requests rejected because the queue was full, since the dispatcher was created
+	 * 
+	 * @return
+	 * 		Number of rejected requests
+	 * 
+	 * @since 0.9
+	 */
+	public synchronized long getRejectedCount() {
+		return mRejectedCount;
+	}
+	
+	/**
+	 * Returns the number of in-flight requests of a host, including the exchanges of an {@link AsyncTransport} holding a {@link Slot} without a worker thread
+	 * 
+	 * @param host
+	 * 		The host
+	 * 
+	 * @return
+	 * 		Number of in-flight requests
+	 */
+	public synchronized int getRunningCount(String host) {
+		Integer running = mRunning.get(host);
+		return null != running ? running : 0;
+	}
+	
+	/**
+	 * Returns the number of tasks running on a worker thread
+	 * 
+	 * @return
+	 * 		Number of running tasks
+	 */
+	public synchronized int getRunningCount() {
+		return mRunningCount;
+	}
+	
+	/**
+	 * Returns the number of requests waiting for a slot, all hosts included
+	 * 
+	 * @return
+	 * 		The queue depth
+	 */
+	public synchronized int getQueueDepth() {
+		int depth = 0;
+		for(LinkedList<DispatchedTask> queue : mQueues.values())
+			depth += queue.size();
+		return depth;
+	}
+	
+	/**
+	 * Returns the number of requests of a host waiting for a slot
+	 * 
+	 * @param host
+	 * 		The host
+	 * 
+	 * @return
+	 * 		The queue depth of the host
+	 */
+	public synchronized int getQueueDepth(String host) {
+		LinkedList<DispatchedTask> queue = mQueues.get(host);
+		return null != queue ? queue.size() : 0;
+	}
+	
+	/**
+	 * <b>ThreadFactory naming the worker threads and setting their priority</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	static class WorkerThreadFactory implements ThreadFactory {
+	
+		private final String mName;
+	
+		private final int mThreadPriority;
+	
+		private final AtomicInteger mCount = new AtomicInteger();
+	
+		public WorkerThreadFactory(String name, int threadPriority) {
+			mName = name;
+			mThreadPriority = threadPriority;
+		}
+	
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				public void run() {
+					Process.setThreadPriority(mThreadPriority);
+					r.run();
+				}
+			}, mName + "-" + mCount.incrementAndGet());
+		}
+	
+	}
+	
+	/**
+	 * <b>Task keeping the slot of its host after it has returned</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 * 
+	 * @see RequestDispatcher#execute(RESTRequest, SlotTask, Runnable)
+	 */
+	public interface SlotTask {
+		
+		/**
+		 * Runs the task on a worker thread. The slot must be released once the request is finished, from any thread
+		 * 
+		 * @param slot
+		 * 		The {@link Slot} of the request
+		 */
+		public void run(Slot slot);
+		
+	}
+	
+	/**
+	 * <b>In-flight slot of a host held by a {@link SlotTask}</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	public interface Slot {
+		
+		/**
+		 * Frees the slot so that a waiting request of the host can be started. Calling it again has no effect
+		 */
+		public void release();
+		
+		/**
+		 * Runs a task on a worker thread, before any waiting request, and frees the slot once it is finished. Used to process the response of an exchange which has been executed without worker thread
+		 * 
+		 * @param task
+		 * 		The task to run
+		 */
+		public void releaseAfter(Runnable task);
+		
+	}
+	
+	/**
+	 * <b>Wrapper freeing the worker thread once the task is finished, and the slot of its host unless it is a {@link SlotTask}</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private class DispatchedTask implements Runnable, Slot {
+	
+		/**
+		 * Host of the request
+		 */
+		private final String mHost;
+	
+		/**
+		 * ID of the request
+		 */
+		private final UUID mRequestId;
+	
+		/**
+		 * Priority of the request, updated by {@link RequestDispatcher#setPriority(UUID, RequestPriority)}
+		 */
+		private RequestPriority mPriority;
+	
+		/**
+		 * Queueing order of the task
+		 */
+		private final long mSequence;
+	
+		/**
+		 * Time in milliseconds when the task has been queued
+		 */
+		private final long mQueuedAt;
+	
+		/**
+		 * The actual task, null if it is a {@link SlotTask}
+		 */
+		private final Runnable mTask;
+	
+		/**
+		 * The actual {@link SlotTask}, null if it is a Runnable
+		 */
+		private final SlotTask mSlotTask;
+	
+		/**
+		 * Task run instead of {@link DispatchedTask#mTask} if the request is dropped from the queue, null if it cannot be dropped
+		 */
+		private final Runnable mRejectedTask;
+	
+		/**
+		 * Task holding the slot freed when this continuation is finished, null if this task is not a continuation
+		 */
+		private final DispatchedTask mContinued;
+	
+		/**
+		 * True if the task has been started by {@link RequestDispatcher#promote()} and runs on a counted worker thread, guarded by the dispatcher
+		 */
+		private boolean mStarted;
+	
+		/**
+		 * True while the task holds the slot of its host, guarded by the dispatcher
+		 */
+		private boolean mHoldsSlot;
+	
+		/**
+		 * Constructor
+		 * 
+		 * @param host
+		 * 		Host of the request
+		 * 
+		 * @param requestId
+		 * 		ID of the request
+		 * 
+		 * @param priority
+		 * 		Priority of the request
+		 * 
+		 * @param sequence
+		 * 		Queueing order of the task
+		 * 
+		 * @param task
+		 * 		The actual task, null if slotTask is given
+		 * 
+		 * @param slotTask
+		 * 		The actual {@link SlotTask}, null if task is given
+		 * 
+		 * @param rejectedTask
+		 * 		Task run if the request is dropped from the queue, may be null
+		 * 
+		 * @param continued
+		 * 		Task holding the slot to free once this one is finished, null if this task is not a continuation
+		 */
+		public DispatchedTask(String host, UUID requestId, RequestPriority priority, long sequence, Runnable task, SlotTask slotTask, Runnable rejectedTask, DispatchedTask continued) {
+			mHost = host;
+			mRequestId = requestId;
+			mPriority = priority;
+			mSequence = sequence;
+			mQueuedAt = System.currentTimeMillis();
+			mTask = task;
+			mSlotTask = slotTask;
+			mRejectedTask = rejectedTask;
+			mContinued = continued;
+			/* A continuation is counted when it is queued so that promote() does not need to know it */
+			mStarted = null != continued;
+		}
+	
+		/**
+		 * Returns the effective priority of the task : the ordinal of its {@link RequestPriority} minus one level per {@link RequestDispatcher#mAgingInterval} spent waiting
+		 * 
+		 * @param now
+		 * 		Current time in milliseconds
+		 * 
+		 * @return
+		 * 		The rank of the task, 0 being the highest priority
+		 */
+		public int getRank(long now) {
+			int rank = mPriority.ordinal();
+			if(mAgingInterval > 0)
+				rank -= (int) Math.min(rank, Math.max(0, now - mQueuedAt) / mAgingInterval);
+			return rank;
+		}
+	
+		@Override
+		public void run() {
+			try {
+				if(null != mSlotTask) {
+					try {
+						mSlotTask.run(this);
+					} catch (RuntimeException e) {
+						release();
+						throw e;
+					}
+				}
+				else
+					mTask.run();
+			} finally {
+				finished(this);
+			}
+		}
+	
+		@Override
+		public void release() {
+			releaseSlot(this);
+		}
+	
+		@Override
+		public void releaseAfter(Runnable task) {
+			continueWith(this, task);
+		}
+	
+	}
+	
+}
@@ -0,0 +1,26 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+/**
+ * <b>Enum which represents the priority of a {@link RESTRequest} waiting for a worker thread</b>
+ * 
+ * <p>
+ * <ul>
+ * <li><b>IMMEDIATE</b> : the user is waiting for the result, the request is started before the others</li>
+ * <li><b>NORMAL</b> : default priority</li>
+ * <li><b>BACKGROUND</b> : prefetch or synchronization, the request is started when no other request is waiting</li>
+ * </ul>
+ * A waiting request gains one level each {@link RequestDispatcher#getAgingInterval()} so that a flow of IMMEDIATE requests cannot starve the others.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see RESTRequest#setPriority(RequestPriority)
+ * @see WebService#setPriority(RESTRequest, RequestPriority)
+ */
+public enum RequestPriority {
+	IMMEDIATE,
+	NORMAL,
+	BACKGROUND
+}
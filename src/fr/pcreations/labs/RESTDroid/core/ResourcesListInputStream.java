@@ -0,0 +1,158 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import fr.pcreations.labs.RESTDroid.exceptions.ParsingException;
+
+/**
+ * <b>InputStream serializing a {@link ResourcesList} with a {@link StreamingParser} as it is read</b>
+ * 
+ * <p>
+ * Only the serialized form of the current item is held in memory, so the memory used does not depend on the size of the list.
+ * The length of the document is unknown : the stream is sent with chunked transfer encoding by {@link ApacheTransport} and {@link UrlConnectionTransport}.
+ * {@link NioTransport} and {@link Http2Transport} still read the whole stream before sending it.
+ * </p>
+ * 
+ * <p>
+ * The list must not be modified while the stream is read.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @param <T>
+ * 		The Class object of the serialized {@link ResourcesList}
+ * 
+ * @version 0.9
+ * 
+ * @see Processor#parseToInputStream(Resource)
+ */
+public class ResourcesListInputStream<T extends ResourcesList> extends InputStream {
+	
+	private final StreamingParser<T> mParser;
+	
+	private final T mList;
+	
+	private final Iterator<? extends ResourceRepresentation<?>> mIterator;
+	
+	/**
+	 * Serialized form of the current part of the document
+	 */
+	private ItemBuffer mBuffer;
+	
+	/**
+	 * Number of bytes of {@link ResourcesListInputStream#mBuffer} already read
+	 */
+	private int mPosition;
+	
+	/**
+	 * Index of the next item to serialize
+	 */
+	private int mIndex;
+	
+	private boolean mStarted;
+	
+	private boolean mEnded;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param parser
+	 * 		The {@link StreamingParser} of the list
+	 * 
+	 * @param list
+	 * 		The {@link ResourcesList} to serialize
+	 */
+	public ResourcesListInputStream(StreamingParser<T> parser, T list) {
+		mParser = parser;
+		mList = list;
+		mIterator = list.getResourcesList().iterator();
+		mBuffer = new ItemBuffer();
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		while(null != mBuffer && mPosition == mBuffer.size()) {
+			if(!fill())
+				return -1;
+		}
+		if(null == mBuffer)
+			return -1;
+		int n = Math.min(len, mBuffer.size() - mPosition);
+		System.arraycopy(mBuffer.getBuffer(), mPosition, b, off, n);
+		mPosition += n;
+		return n;
+	}
+	
+	@Override
+	public int available() {
+		return null != mBuffer ? mBuffer.size() - mPosition : 0;
+	}
+	
+	@Override
+	public void close() {
+		mBuffer = null;
+	}
+	
+	/**
+	 * Serializes the next part of the document : the start of the list, an item or the end of the list
+	 * 
+	 * @return
+	 * 		False if the whole document has been read, true otherwise
+	 * 
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		mBuffer.reset();
+		mPosition = 0;
+		try {
+			if(!mStarted) {
+				mStarted = true;
+				mParser.writeListStart(mList, mBuffer);
+			}
+			else if(mIterator.hasNext()) {
+				mParser.writeItem(mList, mIterator.next(), mIndex, mBuffer);
+				mIndex++;
+			}
+			else if(!mEnded) {
+				mEnded = true;
+				mParser.writeListEnd(mList, mBuffer);
+			}
+			else {
+				mBuffer = null;
+				return false;
+			}
+		} catch (ParsingException e) {
+			IOException ioe = new IOException("Cannot serialize the item " + mIndex + " of the list");
+			ioe.initCause(e);
+			throw ioe;
+		}
+		return true;
+	}
+	
+	/**
+	 * <b>ByteArrayOutputStream giving access to its buffer to avoid a copy for each item</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class ItemBuffer extends ByteArrayOutputStream {
+	
+		public byte[] getBuffer() {
+			return buf;
+		}
+	
+	}
+	
+}
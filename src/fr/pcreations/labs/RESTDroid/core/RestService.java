@@ -1,8 +1,16 @@
 package fr.pcreations.labs.RESTDroid.core;
 
-import android.app.IntentService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Service;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Process;
 import android.os.ResultReceiver;
 import fr.pcreations.labs.RESTDroid.core.Processor.RESTServiceCallback;
 
@@ -13,11 +21,18 @@ import fr.pcreations.labs.RESTDroid.core.Processor.RESTServiceCallback;
  * On the forward path the service receives the Intent sent by {@link WebService} and starts the corresponding REST method.
  * On the return path the service handles the callback fires by {@link Processor} and sends the result to the {@link RestResultReceiver}
  * </p>
+ * 
+ * <p>
+ * The intents are processed concurrently by {@link RestService#getProcessingThreads()} background threads, so that reading the cache, parsing a cached response or mirroring the server state
+ * for one request does not delay the others. Each request carries its own {@link RESTServiceCallback} and the result is sent to the receiver of the intent which started it.
+ * The service stops itself once every intent has been processed, like an IntentService.
+ * </p>
+ * 
  * @author Pierre Criulanscy
  * 
- * @version 0.5
+ * @version 0.9
  */
-public class RestService extends IntentService{
+public class RestService extends Service {
 	
 	/**
 	 * {@link RESTRequest} key for intent
@@ -34,8 +49,27 @@ public class RestService extends IntentService{
 	 */
 	public final static String INTENT_KEY = "com.pcreations.restclient.restservice.INTENT_KEY";
 	
+	/**
+	 * {@link Processor} key for intent
+	 * 
+	 * @see RestService#registerProcessor(String, Processor)
+	 */
+	public final static String PROCESSOR_KEY = "com.pcreations.restclient.restservice.PROCESSOR_KEY";
+	
 	public final static String TAG = "com.pcreations.restclient.restservice";
 	
+	/**
+	 * Default number of threads processing the intents
+	 * 
+	 * @see RestService#setProcessingThreads(int)
+	 */
+	public static final int DEFAULT_PROCESSING_THREADS = 4;
+	
+	/**
+	 * Number of seconds after which an idle processing thread ends. The threads are kept alive below API 9
+	 */
+	private static final long KEEP_ALIVE_SECONDS = 30;
+	
 	/**
 	 * {@link Processor} to call
 	 * 
@@ -44,37 +78,102 @@ public class RestService extends IntentService{
 	private static Processor processor = null;
 	
 	/**
-	 * Constructor
+	 * ConcurrentHashMap to store the {@link Processor} of each {@link WebService}, so that each request is processed by the {@link Module} of the WebService which sent it
+	 * 
+	 * <p>
+	 * <ul>
+	 * <li><b>key</b> : key sent with the request under {@link RestService#PROCESSOR_KEY}</li>
+	 * <li><b>value</b> : the {@link Processor}</li>
+	 * </ul>
+	 * </p>
+	 * 
+	 * @see RestService#registerProcessor(String, Processor)
+	 */
+	private static final ConcurrentHashMap<String, Processor> processors = new ConcurrentHashMap<String, Processor>();
+	
+	/**
+	 * Threads processing the intents, shared by the successive instances of the service
+	 * 
+	 * @see RestService#setProcessingThreads(int)
 	 */
-	public RestService() {
-		super("RestService");
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_PROCESSING_THREADS, DEFAULT_PROCESSING_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new RequestDispatcher.WorkerThreadFactory("RestService", Process.THREAD_PRIORITY_BACKGROUND));
+	
+	static {
+		/* ThreadPoolExecutor#allowCoreThreadTimeOut only exists from API 9, the idle threads are kept on older devices */
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+			executor.allowCoreThreadTimeOut(true);
 	}
 	
-	private Intent mCurrentIntent;
+	/**
+	 * Number of intents received and not processed yet
+	 */
+	private int mPendingIntents;
+	
+	/**
+	 * ID of the last start of the service, to stop it once every intent has been processed
+	 */
+	private int mLastStartId;
 	
 	/**
-	 * Receives the intent and starts the request by calling {@link Processor#process(RESTRequest)}
+	 * Receives the intent and processes it on one of the processing threads
+	 * 
+	 * @see RestService#handleIntent(Intent)
+	 */
+	@Override
+	public int onStartCommand(final Intent intent, int flags, int startId) {
+		synchronized(this) {
+			mPendingIntents++;
+			mLastStartId = startId;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					handleIntent(intent);
+				} finally {
+					onIntentProcessed();
+				}
+			}
+		});
+		return START_NOT_STICKY;
+	}
+	
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+	
+	/**
+	 * Stops the service once the last intent received has been processed. The requests still on the network send their result without the service
+	 */
+	private synchronized void onIntentProcessed() {
+		if(--mPendingIntents == 0)
+			stopSelf(mLastStartId);
+	}
+	
+	/**
+	 * Starts the request of the intent by calling {@link Processor#process(RESTRequest, RESTServiceCallback)} with a callback sending the result to the receiver of this intent
+	 * 
+	 * @param intent
+	 * 		The intent sent by {@link WebService}
 	 * 
 	 * @see Processor
 	 * @see RESTServiceCallback
 	 */
-	@Override
-	protected void onHandleIntent(Intent intent){
-		mCurrentIntent = intent;
+	private void handleIntent(final Intent intent) {
 		Bundle bundle = intent.getExtras();
 		@SuppressWarnings("unchecked")
 		RESTRequest<? extends Resource> r = (RESTRequest<? extends Resource>) bundle.getSerializable(RestService.REQUEST_KEY);
-		RestService.processor.setRESTServiceCallback(new RESTServiceCallback() {
+		Processor moduleProcessor = getProcessor(bundle.getString(RestService.PROCESSOR_KEY));
+		try {
+			moduleProcessor.process(r, new RESTServiceCallback() {
 
-			@Override
-			public void callAction(int statusCode, RESTRequest<? extends Resource> r) {
-				// TODO Auto-generated method stub
-				handleRESTServiceCallback(statusCode, r);
-			}
+				@Override
+				public void callAction(int statusCode, RESTRequest<? extends Resource> r) {
+					handleRESTServiceCallback(intent, statusCode, r);
+				}
      
-        });
-		try {
-			RestService.processor.process(r);
+			});
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -83,7 +182,10 @@ public class RestService extends IntentService{
 	
 	/**
 	 * Handles the binder callback fires by the Processor in {@link Processor#postRequestProcess(int, RESTRequest, java.io.InputStream)}
-	 * Current intent is retrieved in {@link RestService#intentsMap} in order to send results to {@link RestResultReceiver}
+	 * and sends the result to the {@link RestResultReceiver} of the intent which started the request
+	 * 
+	 * @param intent
+	 * 		The intent which started the request
 	 * 
 	 * @param statusCode
 	 * 		The status code resulting of all process
@@ -93,18 +195,50 @@ public class RestService extends IntentService{
 	 * 
 	 * @see Processor#postRequestProcess(int, RESTRequest, java.io.InputStream)
 	 * @see RestResultReceiver
-	 * @see RestService#intentsMap
 	 */
-	private void handleRESTServiceCallback(int statusCode, RESTRequest<? extends Resource> r) {
-		Bundle bundle = mCurrentIntent.getExtras();
+	private static void handleRESTServiceCallback(Intent intent, int statusCode, RESTRequest<? extends Resource> r) {
+		Bundle bundle = intent.getExtras();
 		ResultReceiver receiver = bundle.getParcelable(RestService.RECEIVER_KEY);
 		//Log.e(RestService.TAG, "resource dans handleRESTServiceCallback = " + r.getResourceRepresentation().toString());
 		Bundle resultData = new Bundle();
         resultData.putSerializable(RestService.REQUEST_KEY, r);
-        resultData.putParcelable(RestService.INTENT_KEY, mCurrentIntent);
+        resultData.putParcelable(RestService.INTENT_KEY, intent);
         receiver.send(statusCode, resultData);
 	}
 	
+	/**
+	 * Returns the number of threads processing the intents
+	 * 
+	 * @return
+	 * 		The number of processing threads
+	 * 
+	 * @since 0.9
+	 */
+	public static int getProcessingThreads() {
+		return executor.getMaximumPoolSize();
+	}
+	
+	/**
+	 * Sets the number of threads processing the intents. 1 processes them one at a time in their order of arrival, as an IntentService
+	 * 
+	 * @param threads
+	 * 		The number of processing threads, at least 1
+	 * 
+	 * @since 0.9
+	 */
+	public static synchronized void setProcessingThreads(int threads) {
+		if(threads < 1)
+			throw new IllegalArgumentException("At least one processing thread is needed");
+		if(threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		}
+		else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+	
 	/**
 	 * Setter for the {@link Processor}
 	 * 
@@ -116,5 +250,36 @@ public class RestService extends IntentService{
 	public static void setProcessor(Processor processor) {
 		RestService.processor = processor;
 	}
+	
+	/**
+	 * Registers the {@link Processor} of a {@link WebService}
+	 * 
+	 * @param key
+	 * 		The key sent with the requests of the WebService under {@link RestService#PROCESSOR_KEY}
+	 * 
+	 * @param processor
+	 * 		The {@link Processor} of its {@link Module}
+	 * 
+	 * @see WebService#registerModule(Module)
+	 * 
+	 * @since 0.9
+	 */
+	public static void registerProcessor(String key, Processor processor) {
+		processors.put(key, processor);
+	}
+	
+	/**
+	 * Returns the {@link Processor} registered under a key
+	 * 
+	 * @param key
+	 * 		The key sent with the request, may be null
+	 * 
+	 * @return
+	 * 		The registered {@link Processor}, or the one of {@link RestService#setProcessor(Processor)} if there is none
+	 */
+	private static Processor getProcessor(String key) {
+		Processor registered = null != key ? processors.get(key) : null;
+		return null != registered ? registered : RestService.processor;
+	}
 
 }
@@ -0,0 +1,161 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <b>Buffer holding the server response of a {@link RESTRequest}, in memory or in a temporary file once it is larger than {@link CacheManager#getSpillThreshold()}</b>
+ * 
+ * <p>
+ * The temporary file is created in {@link CacheManager#getSpillDir()}. It is deleted by {@link ResultStreamBuffer#delete()}, when the request drops its response.
+ * </p>
+ * 
+ * <p>
+ * The transports receiving the whole response before handing it over, like {@link NioTransport} and {@link Http2Transport}, also keep the response body of their exchanges in this buffer.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see RESTRequest#getResultStream()
+ */
+class ResultStreamBuffer extends OutputStream {
+	
+	/**
+	 * Bytes written while the buffer is below the threshold, null once it has spilled
+	 */
+	private SegmentedOutputStream mMemory;
+	
+	/**
+	 * Temporary file holding the bytes once the buffer has spilled, null before
+	 */
+	private File mFile;
+	
+	private OutputStream mFileOutput;
+	
+	/**
+	 * Size above which the bytes are moved to {@link ResultStreamBuffer#mFile}
+	 */
+	private final int mThreshold;
+	
+	/**
+	 * Number of bytes written
+	 */
+	private long mLength;
+	
+	/**
+	 * Constructor. The threshold is {@link CacheManager#getSpillThreshold()}
+	 */
+	public ResultStreamBuffer() {
+		mMemory = new SegmentedOutputStream();
+		mThreshold = CacheManager.getSpillThreshold();
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public synchronized void write(byte[] buffer, int offset, int count) throws IOException {
+		if(null != mMemory && mMemory.size() + count > mThreshold)
+			spill();
+		if(null != mMemory)
+			mMemory.write(buffer, offset, count);
+		else
+			mFileOutput.write(buffer, offset, count);
+		mLength += count;
+	}
+	
+	/**
+	 * Flushes the temporary file, or shrinks the memory buffer to its content since the response is usually complete when this method is called
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if(null != mFileOutput)
+			mFileOutput.flush();
+		else
+			mMemory.trim();
+	}
+	
+	/**
+	 * Moves the bytes written so far to a temporary file. The buffer stays in memory if the spill directory is not available
+	 * 
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		File dir = CacheManager.getSpillDir();
+		if(null == dir)
+			return;
+		mFile = File.createTempFile("response", ".tmp", dir);
+		mFileOutput = new BufferedOutputStream(new FileOutputStream(mFile));
+		mMemory.writeTo(mFileOutput);
+		mMemory.release();
+		mMemory = null;
+	}
+	
+	/**
+	 * Returns a new stream reading the bytes written so far. It must be closed, to release the temporary file or give the memory buffers back to the {@link BufferPool}
+	 * 
+	 * @return
+	 * 		The stream
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized InputStream openStream() throws IOException {
+		if(null != mMemory)
+			return mMemory.openStream();
+		mFileOutput.flush();
+		return new BufferedInputStream(new FileInputStream(mFile));
+	}
+	
+	/**
+	 * Returns the number of bytes written
+	 * 
+	 * @return
+	 * 		The length of the response
+	 */
+	public synchronized long length() {
+		return mLength;
+	}
+	
+	/**
+	 * Checks if the bytes have been moved to a temporary file
+	 * 
+	 * @return
+	 * 		True if the buffer has spilled, false if it is in memory
+	 */
+	public synchronized boolean isSpilled() {
+		return null != mFile;
+	}
+	
+	/**
+	 * Drops the bytes and deletes the temporary file. Streams already opened can still be read until they are closed
+	 */
+	public synchronized void delete() {
+		if(null != mMemory)
+			mMemory.release();
+		mMemory = new SegmentedOutputStream();
+		mLength = 0;
+		if(null != mFileOutput) {
+			try {
+				mFileOutput.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mFileOutput = null;
+		}
+		if(null != mFile) {
+			mFile.delete();
+			mFile = null;
+		}
+	}
+	
+}
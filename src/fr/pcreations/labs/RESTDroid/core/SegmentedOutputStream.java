@@ -0,0 +1,262 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * <b>In-memory OutputStream storing its bytes in buffers of the {@link BufferPool}</b>
+ * 
+ * <p>
+ * Unlike a ByteArrayOutputStream, growing the stream never copies the bytes already written : a new buffer is appended when the last one is full.
+ * The bytes are read back with {@link SegmentedOutputStream#openStream()}, without copy either.
+ * </p>
+ * 
+ * <p>
+ * The buffers are given back to the pool by {@link SegmentedOutputStream#release()}, or once the last stream opened on them is closed if some are still open.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see ResultStreamBuffer
+ */
+class SegmentedOutputStream extends OutputStream {
+	
+	/**
+	 * Buffers holding the bytes, all full except the last one
+	 */
+	private final ArrayList<byte[]> mSegments;
+	
+	/**
+	 * Number of bytes written
+	 */
+	private int mCount;
+	
+	/**
+	 * Number of streams returned by {@link SegmentedOutputStream#openStream()} and not closed yet
+	 */
+	private int mOpenStreams;
+	
+	/**
+	 * Boolean to know if {@link SegmentedOutputStream#release()} has been called
+	 */
+	private boolean mReleased;
+	
+	/**
+	 * Constructor
+	 */
+	public SegmentedOutputStream() {
+		mSegments = new ArrayList<byte[]>();
+	}
+	
+	@Override
+	public synchronized void write(int b) throws IOException {
+		ensureOpen();
+		currentSegment()[mCount % BufferPool.BUFFER_SIZE] = (byte) b;
+		mCount++;
+	}
+	
+	@Override
+	public synchronized void write(byte[] buffer, int offset, int count) throws IOException {
+		ensureOpen();
+		while(count > 0) {
+			byte[] segment = currentSegment();
+			int position = mCount % BufferPool.BUFFER_SIZE;
+			int n = Math.min(count, BufferPool.BUFFER_SIZE - position);
+			System.arraycopy(buffer, offset, segment, position, n);
+			mCount += n;
+			offset += n;
+			count -= n;
+		}
+	}
+	
+	/**
+	 * Returns the buffer receiving the next byte, taking a new one from the pool if the last one is full or has been shrunk by {@link SegmentedOutputStream#trim()}
+	 * 
+	 * @return
+	 * 		The buffer at index mCount / {@link BufferPool#BUFFER_SIZE}
+	 */
+	private byte[] currentSegment() {
+		int index = mCount / BufferPool.BUFFER_SIZE;
+		if(index == mSegments.size()) {
+			mSegments.add(BufferPool.acquire());
+		}
+		else if(mSegments.get(index).length < BufferPool.BUFFER_SIZE) {
+			byte[] segment = BufferPool.acquire();
+			System.arraycopy(mSegments.get(index), 0, segment, 0, mCount % BufferPool.BUFFER_SIZE);
+			mSegments.set(index, segment);
+		}
+		return mSegments.get(index);
+	}
+	
+	/**
+	 * Shrinks the last buffer to the bytes it holds and gives it back to the pool, so that a small stream kept for a long time does not hold a whole buffer.
+	 * The stream can still be written, the last buffer is taken again from the pool
+	 */
+	public synchronized void trim() {
+		int used = mCount % BufferPool.BUFFER_SIZE;
+		if(mReleased || used == 0)
+			return;
+		int index = mSegments.size() - 1;
+		byte[] segment = mSegments.get(index);
+		if(segment.length == used)
+			return;
+		byte[] trimmed = new byte[used];
+		System.arraycopy(segment, 0, trimmed, 0, used);
+		mSegments.set(index, trimmed);
+		BufferPool.release(segment);
+	}
+	
+	/**
+	 * Returns the number of bytes written
+	 * 
+	 * @return
+	 * 		The size of the stream
+	 */
+	public synchronized int size() {
+		return mCount;
+	}
+	
+	/**
+	 * Writes the bytes of this stream to another one
+	 * 
+	 * @param out
+	 * 		The stream to write to
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void writeTo(OutputStream out) throws IOException {
+		ensureOpen();
+		int remaining = mCount;
+		for(int i = 0; remaining > 0; i++) {
+			int n = Math.min(remaining, BufferPool.BUFFER_SIZE);
+			out.write(mSegments.get(i), 0, n);
+			remaining -= n;
+		}
+	}
+	
+	/**
+	 * Returns a new stream reading the bytes written so far. It should be closed once read so that the buffers can be reused
+	 * 
+	 * @return
+	 * 		The stream
+	 * 
+	 * @throws IOException
+	 * 		If the stream has been released
+	 */
+	public synchronized InputStream openStream() throws IOException {
+		ensureOpen();
+		mOpenStreams++;
+		return new SegmentInputStream(mCount);
+	}
+	
+	/**
+	 * Gives the buffers back to the {@link BufferPool}, once the streams opened by {@link SegmentedOutputStream#openStream()} are closed. Nothing can be written nor opened afterwards
+	 */
+	public synchronized void release() {
+		mReleased = true;
+		if(mOpenStreams == 0)
+			recycle();
+	}
+	
+	private void recycle() {
+		for(byte[] segment : mSegments)
+			BufferPool.release(segment);
+		mSegments.clear();
+		mCount = 0;
+	}
+	
+	private void ensureOpen() throws IOException {
+		if(mReleased)
+			throw new IOException("Stream has been released");
+	}
+	
+	/**
+	 * Called by a {@link SegmentInputStream} when it is closed
+	 */
+	private synchronized void onStreamClosed() {
+		mOpenStreams--;
+		if(mReleased && mOpenStreams == 0)
+			recycle();
+	}
+	
+	/**
+	 * <b>InputStream reading the segments of the enclosing {@link SegmentedOutputStream}</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private class SegmentInputStream extends InputStream {
+	
+		/**
+		 * Number of bytes written when the stream was opened
+		 */
+		private final int mLength;
+	
+		private int mPosition;
+	
+		private boolean mClosed;
+	
+		public SegmentInputStream(int length) {
+			mLength = length;
+		}
+	
+		@Override
+		public int read() throws IOException {
+			synchronized(SegmentedOutputStream.this) {
+				if(mClosed || mPosition >= mLength)
+					return -1;
+				int b = mSegments.get(mPosition / BufferPool.BUFFER_SIZE)[mPosition % BufferPool.BUFFER_SIZE] & 0xff;
+				mPosition++;
+				return b;
+			}
+		}
+	
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if(count == 0)
+				return 0;
+			synchronized(SegmentedOutputStream.this) {
+				if(mClosed || mPosition >= mLength)
+					return -1;
+				int position = mPosition % BufferPool.BUFFER_SIZE;
+				int n = Math.min(count, Math.min(mLength - mPosition, BufferPool.BUFFER_SIZE - position));
+				System.arraycopy(mSegments.get(mPosition / BufferPool.BUFFER_SIZE), position, buffer, offset, n);
+				mPosition += n;
+				return n;
+			}
+		}
+	
+		@Override
+		public long skip(long n) {
+			synchronized(SegmentedOutputStream.this) {
+				int skipped = (int) Math.max(0, Math.min(n, mLength - mPosition));
+				mPosition += skipped;
+				return skipped;
+			}
+		}
+	
+		@Override
+		public int available() {
+			synchronized(SegmentedOutputStream.this) {
+				return mClosed ? 0 : mLength - mPosition;
+			}
+		}
+	
+		@Override
+		public void close() {
+			synchronized(SegmentedOutputStream.this) {
+				if(mClosed)
+					return;
+				mClosed = true;
+			}
+			onStreamClosed();
+		}
+	
+	}
+	
+}
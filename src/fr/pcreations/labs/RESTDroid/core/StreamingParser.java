@@ -0,0 +1,91 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import fr.pcreations.labs.RESTDroid.exceptions.ParsingException;
+
+/**
+ * <b>{@link Parser} able to serialize a {@link ResourcesList} item by item</b>
+ * 
+ * <p>
+ * When the parser of a {@link ResourcesList} implements this interface, {@link Processor#parseToInputStream(Resource)} returns a {@link ResourcesListInputStream} :
+ * the list is serialized while the request body is sent, one {@link ResourceRepresentation} at a time, instead of building the whole document in memory.
+ * The document is written in three steps, for instance for a JSON array :
+ * <pre>
+ * public void writeListStart(MyList list, OutputStream out) throws IOException {
+ * 	out.write('[');
+ * }
+ * 
+ * public void writeItem(MyList list, ResourceRepresentation&lt;?&gt; item, int index, OutputStream out) throws ParsingException, IOException {
+ * 	if(index > 0)
+ * 		out.write(',');
+ * 	out.write(toJson(item).getBytes("UTF-8"));
+ * }
+ * 
+ * public void writeListEnd(MyList list, OutputStream out) throws IOException {
+ * 	out.write(']');
+ * }
+ * </pre>
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @param <T>
+ * 		The Class object of {@link ResourcesList} which is parsed with this parser
+ * 
+ * @version 0.9
+ * 
+ * @see ResourcesListInputStream
+ */
+public interface StreamingParser<T extends ResourcesList> extends Parser<T> {
+	
+	/**
+	 * Writes what precedes the first item of the list
+	 * 
+	 * @param list
+	 * 		The {@link ResourcesList} being serialized
+	 * 
+	 * @param out
+	 * 		The stream to write to
+	 * 
+	 * @throws ParsingException
+	 * @throws IOException
+	 */
+	public void writeListStart(T list, OutputStream out) throws ParsingException, IOException;
+	
+	/**
+	 * Writes an item of the list, with its separator from the previous item if any
+	 * 
+	 * @param list
+	 * 		The {@link ResourcesList} being serialized
+	 * 
+	 * @param item
+	 * 		The {@link ResourceRepresentation} to write
+	 * 
+	 * @param index
+	 * 		Position of the item in the list
+	 * 
+	 * @param out
+	 * 		The stream to write to
+	 * 
+	 * @throws ParsingException
+	 * @throws IOException
+	 */
+	public void writeItem(T list, ResourceRepresentation<?> item, int index, OutputStream out) throws ParsingException, IOException;
+	
+	/**
+	 * Writes what follows the last item of the list
+	 * 
+	 * @param list
+	 * 		The {@link ResourcesList} being serialized
+	 * 
+	 * @param out
+	 * 		The stream to write to
+	 * 
+	 * @throws ParsingException
+	 * @throws IOException
+	 */
+	public void writeListEnd(T list, OutputStream out) throws ParsingException, IOException;
+	
+}
@@ -0,0 +1,162 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+import fr.pcreations.labs.RESTDroid.exceptions.ConnectionTimeoutException;
+
+/**
+ * <b>HTTP stack used by {@link HttpRequestHandler} to execute requests</b>
+ * 
+ * <p>
+ * A Transport is chosen per {@link Module} via {@link Module#setTransport()}. RESTDroid comes with :
+ * <ul>
+ * <li>{@link ApacheTransport} : Apache HttpClient backed by a thread-safe connection pool (default)</li>
+ * <li>{@link UrlConnectionTransport} : HttpURLConnection, using the platform connection pool</li>
+ * <li>{@link NioTransport} : non-blocking HTTP/1.1 engine multiplexing the requests on a single thread</li>
+ * <li>{@link Http2Transport} : HTTP/2 with prior knowledge, one multiplexed connection per origin</li>
+ * </ul>
+ * Implementations must be thread-safe : exchanges are created and executed from several worker threads at the same time.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ * 
+ * @see Transport.Exchange
+ */
+public interface Transport {
+
+	/**
+	 * Creates a new exchange for a single request. Nothing is sent before {@link Exchange#execute()} is called
+	 * 
+	 * @param verb
+	 * 		The {@link HTTPVerb} of the request
+	 * 
+	 * @param uri
+	 * 		Uri to fetch
+	 * 
+	 * @return
+	 * 		A new {@link Exchange}
+	 * 
+	 * @throws IOException
+	 */
+	public Exchange newExchange(HTTPVerb verb, URI uri) throws IOException;
+	
+	/**
+	 * Resolves the host of an uri and, if the Transport pools its connections, establishes a connection to it ahead of the first request. Blocks while connecting.
+	 * A Transport which can do neither, like {@link UrlConnectionTransport}, does nothing
+	 * 
+	 * @param uri
+	 * 		Uri of the origin, only its scheme, host and port are used
+	 * 
+	 * @throws IOException
+	 * 
+	 * @since 0.9
+	 */
+	public void preconnect(URI uri) throws IOException;
+	
+	/**
+	 * Releases all the resources held by this Transport, such as pooled connections
+	 */
+	public void shutdown();
+	
+	/**
+	 * <b>A single request / response exchange</b>
+	 * 
+	 * <p>
+	 * Protocol errors are reported as java.net.ProtocolException and connection timeouts as {@link ConnectionTimeoutException}.
+	 * </p>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	public interface Exchange {
+		
+		/**
+		 * Adds a request header
+		 * 
+		 * @param name
+		 * 		Header's name
+		 * 
+		 * @param value
+		 * 		Header's value
+		 */
+		public void addHeader(String name, String value);
+		
+		/**
+		 * Sets a request header, replacing any header with the same name
+		 * 
+		 * @param name
+		 * 		Header's name
+		 * 
+		 * @param value
+		 * 		Header's value
+		 */
+		public void setHeader(String name, String value);
+		
+		/**
+		 * Sets the body to stream to the server
+		 * 
+		 * @param body
+		 * 		Instance of {@link RequestBody}
+		 */
+		public void setBody(RequestBody body);
+		
+		/**
+		 * Sets the timeouts of the exchange
+		 * 
+		 * @param connectTimeout
+		 * 		Connection timeout in milliseconds
+		 * 
+		 * @param readTimeout
+		 * 		Socket read timeout in milliseconds
+		 */
+		public void setTimeouts(int connectTimeout, int readTimeout);
+		
+		/**
+		 * Sends the request and reads the response status and headers. Blocks the calling thread
+		 * 
+		 * @return
+		 * 		The response status code
+		 * 
+		 * @throws IOException
+		 */
+		public int execute() throws IOException;
+		
+		/**
+		 * Returns the first response header with the given name
+		 * 
+		 * @param name
+		 * 		Header's name
+		 * 
+		 * @return
+		 * 		The header's value or null if the response has no such header
+		 */
+		public String getResponseHeader(String name);
+		
+		/**
+		 * Returns the response body, still connected to the server
+		 * 
+		 * @return
+		 * 		The response body or null if the response has no body
+		 * 
+		 * @throws IOException
+		 */
+		public InputStream getResponseStream() throws IOException;
+		
+		/**
+		 * Aborts the exchange from any thread. A blocked {@link Exchange#execute()} or read fails with an IOException
+		 */
+		public void abort();
+		
+		/**
+		 * Releases the connection once the response has been processed so that it can be reused
+		 */
+		public void release();
+		
+	}
+	
+}
@@ -0,0 +1,173 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+
+import android.util.Log;
+import fr.pcreations.labs.RESTDroid.exceptions.ConnectionTimeoutException;
+
+/**
+ * <b>{@link Transport} backed by HttpURLConnection</b>
+ * 
+ * <p>
+ * Keep-alive connections are pooled by the platform (see the http.keepAlive and http.maxConnections system properties).
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public class UrlConnectionTransport implements Transport {
+
+	/**
+	 * @see Transport#newExchange(HTTPVerb, URI)
+	 */
+	@Override
+	public Exchange newExchange(HTTPVerb verb, URI uri) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+		connection.setRequestMethod(verb.name());
+		connection.setUseCaches(false);
+		return new UrlConnectionExchange(connection);
+	}
+	
+	/**
+	 * Does nothing : HttpURLConnection resolves hosts itself, without the {@link DnsCache}, and the platform pool cannot open a connection ahead of a request
+	 * 
+	 * @see Transport#preconnect(URI)
+	 */
+	@Override
+	public void preconnect(URI uri) {
+		/* Nothing to prepare outside of the platform */
+	}
+	
+	/**
+	 * @see Transport#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		/* Connections are owned by the platform pool */
+	}
+	
+	/**
+	 * <b>{@link Transport.Exchange} wrapping an HttpURLConnection</b>
+	 * 
+	 * @author Pierre Criulanscy
+	 * 
+	 * @version 0.9
+	 */
+	private static class UrlConnectionExchange implements Exchange {
+		
+		/**
+		 * Actual HttpURLConnection
+		 */
+		private HttpURLConnection mConnection;
+		
+		/**
+		 * Body to send, may be null
+		 */
+		private RequestBody mBody;
+		
+		/**
+		 * The response status code, once executed
+		 */
+		private int mStatusCode;
+		
+		/**
+		 * The response body, once requested
+		 */
+		private InputStream mResponseStream;
+		
+		/**
+		 * Constructor
+		 * 
+		 * @param connection
+		 * 		Instance of HttpURLConnection, not connected yet
+		 */
+		public UrlConnectionExchange(HttpURLConnection connection) {
+			mConnection = connection;
+		}
+		
+		@Override
+		public void addHeader(String name, String value) {
+			mConnection.addRequestProperty(name, value);
+		}
+		
+		@Override
+		public void setHeader(String name, String value) {
+			mConnection.setRequestProperty(name, value);
+		}
+		
+		@Override
+		public void setBody(RequestBody body) {
+			mBody = body;
+			mConnection.setDoOutput(true);
+			mConnection.setRequestProperty("Content-Type", body.getContentType());
+			long length = body.getContentLength();
+			if(length >= 0 && length <= Integer.MAX_VALUE)
+				mConnection.setFixedLengthStreamingMode((int) length);
+			else
+				mConnection.setChunkedStreamingMode(0);
+		}
+		
+		@Override
+		public void setTimeouts(int connectTimeout, int readTimeout) {
+			mConnection.setConnectTimeout(connectTimeout);
+			mConnection.setReadTimeout(readTimeout);
+		}
+		
+		@Override
+		public int execute() throws IOException {
+			try {
+				mConnection.connect();
+			} catch (SocketTimeoutException e) {
+				throw new ConnectionTimeoutException(e.getMessage());
+			}
+			if(null != mBody) {
+				OutputStream out = mConnection.getOutputStream();
+				try {
+					mBody.writeTo(out);
+				} finally {
+					out.close();
+				}
+			}
+			mStatusCode = mConnection.getResponseCode();
+			return mStatusCode;
+		}
+		
+		@Override
+		public String getResponseHeader(String name) {
+			return mConnection.getHeaderField(name);
+		}
+		
+		@Override
+		public InputStream getResponseStream() throws IOException {
+			if(null == mResponseStream)
+				mResponseStream = mStatusCode >= 400 ? mConnection.getErrorStream() : mConnection.getInputStream();
+			return mResponseStream;
+		}
+		
+		@Override
+		public void abort() {
+			mConnection.disconnect();
+		}
+		
+		@Override
+		public void release() {
+			/* Closing the body, instead of disconnecting, gives the connection back to the platform pool */
+			try {
+				if(null != mResponseStream)
+					mResponseStream.close();
+			} catch (IOException e) {
+				/* The rest of the body could not be drained, the connection cannot be reused */
+				Log.w(RestService.TAG, "Cannot release the connection to " + mConnection.getURL() + ", closing it", e);
+				mConnection.disconnect();
+			}
+		}
+		
+	}
+	
+}
@@ -64,6 +64,15 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	 */
 	protected Module mModule;
 	
+	/**
+	 * Key of the {@link Processor} of {@link WebService#mModule} in {@link RestService}, sent with each request so that the service processes it with this module
+	 * 
+	 * @see RestService#registerProcessor(String, Processor)
+	 * 
+	 * @since 0.9
+	 */
+	private final String mProcessorKey = UUID.randomUUID().toString();
+	
 	/**
 	 * Default {@link FailBehavior} to use for all request sent by this WebService
 	 * 
@@ -72,6 +81,15 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	 */
 	private Class<? extends FailBehavior> mDefaultFailBehavior = null;
 	
+	/**
+	 * Boolean to know if POST and PUT bodies of requests created by this WebService are compressed with gzip by default
+	 * 
+	 * @see WebService#isCompressRequestBodies()
+	 * @see WebService#setCompressRequestBodies(boolean)
+	 * @see RESTRequest#setCompressRequestBody(boolean)
+	 */
+	private boolean mCompressRequestBodies = false;
+	
 	/**
 	 * HashMap which stores intent generated for specific {@link RESTRequest}
 	 * 
@@ -112,6 +130,20 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	 */
 	private final static ExecutorService threadExecutor = Executors.newFixedThreadPool(maximumThreadPool);
 	
+	/**
+	 * Default maximum number of in-flight requests per host
+	 * 
+	 * @see WebService#setMaxRequestsPerHost(String, int)
+	 */
+	private final static int maximumRequestsPerHost = 6;
+	
+	/**
+	 * Instance of {@link RequestDispatcher} queuing requests per host in front of {@link WebService#threadExecutor}
+	 * 
+	 * @see WebService#getRequestDispatcher()
+	 */
+	private final static RequestDispatcher requestDispatcher = new RequestDispatcher(threadExecutor, maximumThreadPool, maximumRequestsPerHost);
+	
 	/**
 	 * Default constructor. When overriding it you can call {@link WebService#setDefaultFailBehavior(Class)} to set the default {@link FailBehavior} for all request sent by this WebService 
 	 * 
@@ -143,6 +175,7 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 		mModule = m;
 		mModule.init();
 		RestService.setProcessor(mModule.getProcessor());
+		RestService.registerProcessor(mProcessorKey, mModule.getProcessor());
 	}
 	
 	/**
@@ -336,6 +369,7 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 		request = new RESTRequest<R>(generateID(), clazz);
 		request.setResource(resource);
 		request.setFailBehaviorClass(mDefaultFailBehavior);
+		request.setCompressRequestBody(mCompressRequestBodies);
 		//mRequestCollection.add(request);
 		requestsCollection.add(request);
 		return request;
@@ -380,15 +414,19 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	
 	
 	/**
-	 * Executes a {@link RESTRequest}
+	 * Executes a {@link RESTRequest}. If the request has a total timeout, its deadline starts now
 	 * 
 	 * @param r
 	 * 		The request to execute
 	 * 
+	 * @see RESTRequest#setTotalTimeout(long)
+	 * 
 	 * @since 0.7.0
 	 */
 	public void executeRequest(RESTRequest<? extends Resource> r) {
 		if(!r.isPending()) {
+			if(r.getTotalTimeout() > 0)
+				r.setDeadline(System.currentTimeMillis() + r.getTotalTimeout());
 			ArrayList<RESTRequest<?>> toRemove = new ArrayList<RESTRequest<?>>();
 			for(Iterator<RESTRequest<?>> it = requestsCollection.iterator(); it.hasNext();) {
 				RESTRequest<?> request = it.next();
@@ -410,15 +448,20 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	}
 	
 	/**
-	 * Initializes and starts the service if the request has to be re-sent
+	 * Initializes and starts the service if the request has to be re-sent. A request whose deadline has passed is dropped instead
 	 * 
 	 * @param request
 	 * 		Instance of {@link RESTRequest}
 	 * 
 	 * @see Processor#checkRequest(RESTRequest)
+	 * @see WebService#dropExpiredRequest(RESTRequest)
 	 */
 	protected void initAndStartService(RESTRequest<? extends Resource> request){
 		Log.i(RestService.TAG, "initAndStartService : " + request.toString());
+		if(request.isExpired()) {
+			dropExpiredRequest(request);
+			return;
+		}
 		boolean proceedRequest = true;
 		if(request.getVerb() != HTTPVerb.GET)
 			proceedRequest = mModule.getProcessor().checkRequest(request);
@@ -428,6 +471,7 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 			i.setData(Uri.parse(request.getUrl()));
 			i.putExtra(RestService.REQUEST_KEY, request);
 			i.putExtra(RestService.RECEIVER_KEY, mReceiver);
+			i.putExtra(RestService.PROCESSOR_KEY, mProcessorKey);
 			
 			/* Trigger OnStartedRequest listener */
 			for(Iterator<RESTRequest<? extends Resource>> it = requestsCollection.iterator(); it.hasNext();) {
@@ -454,7 +498,124 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	}
 
 	/**
-	 * Receive result from {@link RestService} and fires callbacks corresponding to the request'state
+	 * Drops a request whose deadline has passed : it is removed from {@link WebService#requestsCollection} so that it is not retried anymore, and fails with {@link HttpRequestHandler#DEADLINE_EXCEEDED} if it has not already
+	 * 
+	 * @param request
+	 * 		The expired request
+	 * 
+	 * @see RESTRequest#isExpired()
+	 * 
+	 * @since 0.9
+	 */
+	void dropExpiredRequest(RESTRequest<? extends Resource> request) {
+		Log.w(RestService.TAG, "Request " + request.getID() + " dropped, its deadline has passed");
+		ArrayList<RESTRequest<? extends Resource>> requestsToRemove = new ArrayList<RESTRequest<? extends Resource>>();
+		requestsToRemove.add(request);
+		removeRequests(requestsToRemove);
+		request.setPending(false);
+		if(request.getResultCode() != HttpRequestHandler.DEADLINE_EXCEEDED) {
+			request.setResultCode(HttpRequestHandler.DEADLINE_EXCEEDED);
+			if(request.triggerOnFailedRequestListeners())
+				request.triggerOnFinishedRequestListeners();
+		}
+	}
+	
+	/**
+	 * Cancels a request. A request waiting for {@link RestService} or for a worker thread is never executed, a request on the network is aborted and its response is neither parsed nor persisted.
+	 * The request is removed so that it is not retried, and fails with {@link HttpRequestHandler#CANCELLED}
+	 * 
+	 * @param request
+	 * 		The request to cancel
+	 * 
+	 * @return
+	 * 		True if the request has been cancelled, false if it was already finished
+	 * 
+	 * @see HttpRequestHandler#cancel(RESTRequest)
+	 * @see WebService#cancelAll(Object)
+	 * 
+	 * @since 0.9
+	 */
+	public boolean cancel(RESTRequest<? extends Resource> request) {
+		RESTRequest<? extends Resource> cancelled = null;
+		for(Iterator<RESTRequest<? extends Resource>> it = requestsCollection.iterator(); it.hasNext();) {
+			RESTRequest<? extends Resource> r = it.next();
+			if(request.getID().equals(r.getID()))
+				cancelled = r;
+		}
+		if(null == cancelled)
+			return false;
+		Log.i(RestService.TAG, "Request " + cancelled.getID() + " cancelled");
+		ArrayList<RESTRequest<? extends Resource>> requestsToRemove = new ArrayList<RESTRequest<? extends Resource>>();
+		requestsToRemove.add(cancelled);
+		removeRequests(requestsToRemove);
+		if(cancelled.isPending()) {
+			mIntentsMap.remove(cancelled.getID());
+			mModule.getProcessor().cancel(cancelled);
+			cancelled.setPending(false);
+		}
+		cancelled.setResultCode(HttpRequestHandler.CANCELLED);
+		if(cancelled.triggerOnFailedRequestListeners())
+			cancelled.triggerOnFinishedRequestListeners();
+		return true;
+	}
+	
+	/**
+	 * Changes the priority of a request. A pending request waiting for a worker thread is moved in the queue accordingly, a request already running keeps its place
+	 * 
+	 * @param request
+	 * 		The request
+	 * 
+	 * @param priority
+	 * 		Its new priority
+	 * 
+	 * @return
+	 * 		True if the request is known by this WebService, false if it is already finished
+	 * 
+	 * @see RequestDispatcher#setPriority(UUID, RequestPriority)
+	 * 
+	 * @since 0.9
+	 */
+	public boolean setPriority(RESTRequest<? extends Resource> request, RequestPriority priority) {
+		request.setPriority(priority);
+		for(Iterator<RESTRequest<? extends Resource>> it = requestsCollection.iterator(); it.hasNext();) {
+			RESTRequest<? extends Resource> r = it.next();
+			if(request.getID().equals(r.getID())) {
+				r.setPriority(priority);
+				/* The request processed by RestService is a copy, the dispatcher updates it when it is queued */
+				if(r.isPending())
+					getModuleRequestDispatcher().setPriority(r.getID(), r.getPriority());
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Cancels all the requests with a tag, typically when the screen which sent them is left
+	 * 
+	 * @param tag
+	 * 		The tag of the requests to cancel
+	 * 
+	 * @return
+	 * 		The number of cancelled requests
+	 * 
+	 * @see RESTRequest#setTag(Object)
+	 * @see WebService#cancel(RESTRequest)
+	 * 
+	 * @since 0.9
+	 */
+	public int cancelAll(Object tag) {
+		int cancelled = 0;
+		for(Iterator<RESTRequest<? extends Resource>> it = requestsCollection.iterator(); it.hasNext();) {
+			RESTRequest<? extends Resource> r = it.next();
+			if(null != tag && tag.equals(r.getTag()) && cancel(r))
+				cancelled++;
+		}
+		return cancelled;
+	}
+	
+	/**
+	 * Receive result from {@link RestService} and fires callbacks corresponding to the request'state. The result of a request whose deadline has passed is not delivered : the request fails with {@link HttpRequestHandler#DEADLINE_EXCEEDED} and is not retried
 	 * 
 	 * @param resultCode
 	 * 		The result code send by the {@link RestService}
@@ -464,23 +625,22 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	@Override
 	public void onReceiveResult(int resultCode, Bundle resultData) {
 		RESTRequest<?> r = (RESTRequest<?>) resultData.getSerializable(RestService.REQUEST_KEY);
+		/* The result of a cancelled request is the last trace of it, its request has already been removed */
+		HttpRequestHandler.forgetCancelled(r.getID());
+		getModuleRequestDispatcher().forgetPriority(r.getID());
 		ArrayList<RESTRequest<? extends Resource>> requestsToRemove = new ArrayList<RESTRequest<? extends Resource>>();
 		for(Iterator<RESTRequest<?>> it = requestsCollection.iterator(); it.hasNext();) {
 			RESTRequest<?> request = it.next();
 			if(request.getID().equals(r.getID())) {
-				Intent i = resultData.getParcelable(RestService.INTENT_KEY);
 				if(null == mIntentsMap.remove(request.getID()))
 					throw new RuntimeException("Cannot find request in intents map");
 				for(Entry<UUID, Intent> intent : mIntentsMap.entrySet()) {
 					Log.w("intentinfo", intent.getKey().toString());
 				}
-				mContext.stopService(i);
-				try {
-					request.setResultStream(r.getResultStream());
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+				if(request.isExpired())
+					resultCode = HttpRequestHandler.DEADLINE_EXCEEDED;
+				request.setCacheValidators(r.getETag(), r.getLastModified());
+				request.takeResultStream(r);
 				request.setResultCode(resultCode);
 				request.setPending(false);
 				if(resultCode >= 200 && resultCode <= 210) {
@@ -504,6 +664,9 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 					if(request.triggerOnFailedRequestListeners()) {
 						request.triggerOnFinishedRequestListeners();
 					}
+					/* An expired or shed request is not kept to be retried */
+					if(resultCode == HttpRequestHandler.DEADLINE_EXCEEDED || resultCode == HttpRequestHandler.REJECTED)
+						requestsToRemove.add(request);
 					mModule.getProcessor().onFailedRequest(this, resultCode,  request);
 				}
 			}
@@ -515,7 +678,7 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	}
 	
 	/**
-	 * Retries a request by resetting it result code, it {@link RequestListeners}, it {@link Resource} and initializes and starts the service
+	 * Retries a request by resetting it result code, it {@link RequestListeners}, it {@link Resource} and initializes and starts the service. A cancelled request is not retried
 	 * 
 	 * @param request
 	 * 		The request to retry
@@ -524,6 +687,9 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	 * @see WebService#initAndStartService(RESTRequest)
 	 */
 	public void retryRequest(RESTRequest<? extends Resource> request) {
+		/* A FailBehavior may hold a request which has been cancelled since */
+		if(request.getResultCode() == HttpRequestHandler.CANCELLED)
+			return;
 		ArrayList<RESTRequest<? extends Resource>> requestToRemove = new ArrayList<RESTRequest<? extends Resource>>();
 		requestToRemove.add(request);
 		request.setResultCode(0);
@@ -666,6 +832,45 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 		this.mDefaultFailBehavior = defaultFailBehavior;
 	}
 	
+	/**
+	 * Getter for {@link WebService#mCompressRequestBodies}
+	 * 
+	 * @return
+	 * 		True if POST and PUT bodies are compressed with gzip by default
+	 * 
+	 * @since 0.9
+	 */
+	public boolean isCompressRequestBodies() {
+		return mCompressRequestBodies;
+	}
+	
+	/**
+	 * Resolves the host of an url and opens a connection to it in background, typically while a splash screen is displayed. The host resolution is kept in the {@link DnsCache} and the connection in the pool of the {@link Transport} of the registered {@link Module}.
+	 * Does nothing with an {@link UrlConnectionTransport}, which relies on the platform for both
+	 * 
+	 * @param url
+	 * 		Url of the origin, like https://api.example.com
+	 * 
+	 * @see Transport#preconnect(java.net.URI)
+	 * 
+	 * @since 0.9
+	 */
+	public void preconnect(String url) {
+		mModule.getProcessor().preconnect(url);
+	}
+	
+	/**
+	 * Setter for {@link WebService#mCompressRequestBodies}. Applies to requests created afterwards, each request can still override it with {@link RESTRequest#setCompressRequestBody(boolean)}
+	 * 
+	 * @param compressRequestBodies
+	 * 		True to compress POST and PUT bodies with gzip by default
+	 * 
+	 * @since 0.9
+	 */
+	public void setCompressRequestBodies(boolean compressRequestBodies) {
+		mCompressRequestBodies = compressRequestBodies;
+	}
+	
 	/**
 	 * Return the instance of ExecutorService used to manage threads
 	 * 
@@ -675,5 +880,51 @@ public abstract class WebService implements RestResultReceiver.Receiver{
 	public static ExecutorService getThreadExecutor() {
 		return threadExecutor;
 	}
+	
+	/**
+	 * Return the instance of {@link RequestDispatcher} used to schedule requests on {@link WebService#getThreadExecutor()}. Its queue depth can be used for monitoring
+	 * 
+	 * @return
+	 * 		Instance of {@link RequestDispatcher}
+	 * 
+	 * @since 0.9
+	 */
+	public static RequestDispatcher getRequestDispatcher() {
+		return requestDispatcher;
+	}
+	
+	/**
+	 * Return the {@link RequestDispatcher} scheduling the requests of this WebService : the one of its {@link Module} if it has its own, the shared one otherwise
+	 * 
+	 * @return
+	 * 		Instance of {@link RequestDispatcher}
+	 * 
+	 * @see Module#setRequestDispatcher()
+	 * 
+	 * @since 0.9
+	 */
+	public RequestDispatcher getModuleRequestDispatcher() {
+		if(null == mModule || null == mModule.getProcessor())
+			return requestDispatcher;
+		return mModule.getProcessor().getRequestDispatcher();
+	}
+	
+	/**
+	 * Limits the number of in-flight requests to a host on the {@link RequestDispatcher} of this WebService, see {@link WebService#getModuleRequestDispatcher()}.
+	 * Call it in the constructor of your WebService, after {@link WebService#registerModule(Module)}, to protect other hosts from a slow backend
+	 * 
+	 * @param host
+	 * 		The host, followed by ":port" if the port is not the default one
+	 * 
+	 * @param maxRequests
+	 * 		Maximum number of in-flight requests for this host
+	 * 
+	 * @see RequestDispatcher#setMaxRequestsPerHost(String, int)
+	 * 
+	 * @since 0.9
+	 */
+	protected void setMaxRequestsPerHost(String host, int maxRequests) {
+		getModuleRequestDispatcher().setMaxRequestsPerHost(host, maxRequests);
+	}
 
 }
@@ -0,0 +1,19 @@
+package fr.pcreations.labs.RESTDroid.exceptions;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown by a {@link fr.pcreations.labs.RESTDroid.core.Transport} when the connection to the server could not be established in time
+ */
+public class ConnectionTimeoutException extends SocketTimeoutException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -6521178374830467029L;
+
+	public ConnectionTimeoutException(String message) {
+		super(message);
+	}
+	
+}
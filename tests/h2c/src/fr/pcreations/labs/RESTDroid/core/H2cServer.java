@@ -0,0 +1,298 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <b>In-process HTTP/2 cleartext (h2c, prior knowledge) server used to check {@link Http2Transport}</b>
+ * 
+ * <p>
+ * Header blocks are decoded and encoded with {@link Hpack}, which {@link Http2Check} checks against the examples of RFC 7541 first.
+ * The server announces a limit of {@link H2cServer#MAX_CONCURRENT_STREAMS} streams and an initial window of {@link H2cServer#INITIAL_WINDOW_SIZE} bytes to exercise the flow control of the client.
+ * </p>
+ * 
+ * <p>
+ * <ul>
+ * <li><b>GET /slow...</b> : answered after 3 seconds</li>
+ * <li><b>GET /large</b> : answers 200 with {@link H2cServer#LARGE_BODY_LENGTH} bytes, see {@link H2cServer#getLargeBody()}</li>
+ * <li><b>GET</b> : answers 200 with "path=&lt;path&gt; ua=&lt;User-Agent&gt;"</li>
+ * <li><b>POST</b> : answers 201 and echoes the body</li>
+ * </ul>
+ * Every response carries an ETag and a long X-Custom-Header, and its body is split over at least two DATA frames.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public class H2cServer {
+	
+	public static final int MAX_CONCURRENT_STREAMS = 10;
+	
+	public static final int INITIAL_WINDOW_SIZE = 100;
+	
+	public static final int LARGE_BODY_LENGTH = 256 * 1024;
+	
+	/**
+	 * Default SETTINGS_MAX_FRAME_SIZE of the client, the largest DATA frame sent
+	 */
+	private static final int MAX_FRAME_SIZE = 16384;
+	
+	private static final byte[] CONNECTION_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+	
+	private static final int FRAME_DATA = 0;
+	private static final int FRAME_HEADERS = 1;
+	private static final int FRAME_RST_STREAM = 3;
+	private static final int FRAME_SETTINGS = 4;
+	private static final int FRAME_GOAWAY = 7;
+	private static final int FRAME_WINDOW_UPDATE = 8;
+	
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	
+	private final ServerSocket mServerSocket;
+	
+	/**
+	 * Protocol violations seen by the server
+	 */
+	private final AtomicInteger mErrors = new AtomicInteger();
+	
+	private final AtomicInteger mConnections = new AtomicInteger();
+	
+	private final AtomicInteger mResets = new AtomicInteger();
+	
+	/**
+	 * Largest number of streams open at once on a connection
+	 */
+	private final AtomicInteger mMaxActiveStreams = new AtomicInteger();
+	
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+	
+	/**
+	 * Constructor. The server listens on an ephemeral port of the loopback interface
+	 * 
+	 * @throws IOException
+	 */
+	public H2cServer() throws IOException {
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+	}
+	
+	/**
+	 * Starts accepting connections from a daemon thread
+	 */
+	public void start() {
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while(true) {
+						final Socket socket = mServerSocket.accept();
+						mConnections.incrementAndGet();
+						mExecutor.execute(new Runnable() {
+							public void run() {
+								try {
+									handle(socket);
+								} catch (IOException e) {
+									/* Connection closed by the client */
+								}
+							}
+						});
+					}
+				} catch (IOException e) {
+					/* Server closed */
+				}
+			}
+		}, "h2c-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	public void stop() throws IOException {
+		mServerSocket.close();
+		mExecutor.shutdownNow();
+	}
+	
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+	}
+	
+	public int getErrors() {
+		return mErrors.get();
+	}
+	
+	public int getConnections() {
+		return mConnections.get();
+	}
+	
+	public int getResets() {
+		return mResets.get();
+	}
+	
+	public int getMaxActiveStreams() {
+		return mMaxActiveStreams.get();
+	}
+	
+	/**
+	 * Returns the body of GET /large
+	 * 
+	 * @return
+	 * 		{@link H2cServer#LARGE_BODY_LENGTH} bytes
+	 */
+	public static byte[] getLargeBody() {
+		byte[] body = new byte[LARGE_BODY_LENGTH];
+		for(int i = 0; i < body.length; i++)
+			body[i] = (byte) (i * 31);
+		return body;
+	}
+	
+	private void error(String message) {
+		System.err.println("h2c server : " + message);
+		mErrors.incrementAndGet();
+	}
+	
+	private void handle(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+		byte[] preface = new byte[CONNECTION_PREFACE.length];
+		in.readFully(preface);
+		if(!Arrays.equals(preface, CONNECTION_PREFACE)) {
+			error("bad connection preface");
+			socket.close();
+			return;
+		}
+		writeFrame(out, FRAME_SETTINGS, 0, 0, new byte[] {
+			0, 3, 0, 0, 0, MAX_CONCURRENT_STREAMS,
+			0, 4, 0, 0, 0, INITIAL_WINDOW_SIZE
+		});
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		Map<Integer, Map<String, String>> headers = new ConcurrentHashMap<Integer, Map<String, String>>();
+		Map<Integer, ByteArrayOutputStream> bodies = new ConcurrentHashMap<Integer, ByteArrayOutputStream>();
+		AtomicInteger activeStreams = new AtomicInteger();
+		while(true) {
+			int length = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+			int type = in.readUnsignedByte();
+			int flags = in.readUnsignedByte();
+			int streamId = in.readInt() & 0x7FFFFFFF;
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			switch(type) {
+				case FRAME_SETTINGS:
+					if((flags & FLAG_ACK) == 0)
+						writeFrame(out, FRAME_SETTINGS, FLAG_ACK, 0, new byte[0]);
+					break;
+				case FRAME_HEADERS:
+					Map<String, String> h = new LinkedHashMap<String, String>();
+					for(String[] header : decoder.decode(payload))
+						h.put(header[0], header[1]);
+					headers.put(streamId, h);
+					bodies.put(streamId, new ByteArrayOutputStream());
+					int active = activeStreams.incrementAndGet();
+					updateMax(active);
+					if(active > MAX_CONCURRENT_STREAMS)
+						error("too many streams : " + active);
+					if(!h.containsKey(":authority") || h.containsKey("host") || h.containsKey("connection"))
+						error("bad request headers " + h);
+					if((flags & FLAG_END_STREAM) != 0)
+						respond(out, encoder, streamId, h, new byte[0], activeStreams);
+					break;
+				case FRAME_DATA:
+					ByteArrayOutputStream body = bodies.get(streamId);
+					if(null == body) {
+						error("DATA on unknown stream " + streamId);
+						break;
+					}
+					body.write(payload);
+					if(length > 0) {
+						byte[] increment = { 0, 0, (byte) (length >>> 8), (byte) length };
+						writeFrame(out, FRAME_WINDOW_UPDATE, 0, 0, increment);
+						writeFrame(out, FRAME_WINDOW_UPDATE, 0, streamId, increment);
+					}
+					if((flags & FLAG_END_STREAM) != 0)
+						respond(out, encoder, streamId, headers.get(streamId), body.toByteArray(), activeStreams);
+					break;
+				case FRAME_RST_STREAM:
+					mResets.incrementAndGet();
+					activeStreams.decrementAndGet();
+					break;
+				case FRAME_GOAWAY:
+					socket.close();
+					return;
+				default:
+					break;
+			}
+		}
+	}
+	
+	private void updateMax(int active) {
+		int max;
+		do {
+			max = mMaxActiveStreams.get();
+		} while(active > max && !mMaxActiveStreams.compareAndSet(max, active));
+	}
+	
+	private void respond(final OutputStream out, final Hpack.Encoder encoder, final int streamId, final Map<String, String> headers, final byte[] body, final AtomicInteger activeStreams) {
+		final Random random = new Random();
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					String path = headers.get(":path");
+					boolean post = "POST".equals(headers.get(":method"));
+					Thread.sleep(path.startsWith("/slow") ? 3000 : random.nextInt(20));
+					byte[] response = post ? body : path.equals("/large") ? getLargeBody() : ("path=" + path + " ua=" + headers.get("user-agent")).getBytes();
+					synchronized(out) {
+						List<String[]> responseHeaders = new ArrayList<String[]>();
+						responseHeaders.add(new String[] { ":status", post ? "201" : "200" });
+						responseHeaders.add(new String[] { "content-type", "application/json" });
+						responseHeaders.add(new String[] { "etag", "\"abc-" + streamId + "\"" });
+						responseHeaders.add(new String[] { "x-custom-header", "some value that is fairly long" });
+						byte[] headerBlock = encoder.encode(responseHeaders);
+						activeStreams.decrementAndGet();
+						writeFrame(out, FRAME_HEADERS, FLAG_END_HEADERS, streamId, headerBlock);
+						int frames = Math.max(2, (response.length + MAX_FRAME_SIZE - 1) / MAX_FRAME_SIZE);
+						int frameSize = (response.length + frames - 1) / frames;
+						for(int i = 0, offset = 0; i < frames; i++) {
+							int end = Math.min(response.length, offset + frameSize);
+							writeFrame(out, FRAME_DATA, i == frames - 1 ? FLAG_END_STREAM : 0, streamId, Arrays.copyOfRange(response, offset, end));
+							offset = end;
+						}
+					}
+				} catch (InterruptedException e) {
+					/* Server stopped */
+				} catch (IOException e) {
+					/* Connection closed by the client */
+				}
+			}
+		});
+	}
+	
+	private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload) throws IOException {
+		synchronized(out) {
+			out.write(new byte[] {
+				(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+				(byte) type, (byte) flags,
+				(byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId
+			});
+			out.write(payload);
+			out.flush();
+		}
+	}
+	
+}
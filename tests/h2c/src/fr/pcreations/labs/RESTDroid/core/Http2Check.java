@@ -0,0 +1,265 @@
+package fr.pcreations.labs.RESTDroid.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <b>Checks {@link Hpack} against the examples of RFC 7541 and {@link Http2Transport} against {@link H2cServer}</b>
+ * 
+ * <p>
+ * Exits with status 1 if a check fails. See tests/h2c/README.md to build and run it.
+ * </p>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public class Http2Check {
+	
+	private static int failures;
+	
+	private static void check(boolean condition, String description) {
+		System.out.println((condition ? "ok   " : "FAIL ") + description);
+		if(!condition)
+			failures++;
+	}
+	
+	private static byte[] readBytes(InputStream is) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while((read = is.read(buffer)) != -1)
+			out.write(buffer, 0, read);
+		is.close();
+		return out.toByteArray();
+	}
+	
+	private static String read(InputStream is) throws IOException {
+		return new String(readBytes(is), "UTF-8");
+	}
+	
+	public static void main(String[] args) throws Exception {
+		checkHpack();
+		H2cServer server = new H2cServer();
+		server.start();
+		try {
+			checkTransport(server);
+		} finally {
+			server.stop();
+		}
+		System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * Checks {@link Hpack} against the examples of RFC 7541 Appendix C. The {@link Hpack.Encoder} must produce the header blocks without Huffman coding (C.3),
+	 * the {@link Hpack.Decoder} must decode all of them, with and without Huffman coding and with evictions from a 256 bytes dynamic table (C.5 and C.6)
+	 * 
+	 * @throws IOException
+	 */
+	private static void checkHpack() throws IOException {
+		String[][][] requests = {
+			{ { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, { ":authority", "www.example.com" } },
+			{ { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, { ":authority", "www.example.com" }, { "cache-control", "no-cache" } },
+			{ { ":method", "GET" }, { ":scheme", "https" }, { ":path", "/index.html" }, { ":authority", "www.example.com" }, { "custom-key", "custom-value" } }
+		};
+		String[] requestBlocks = {
+			"828684410f7777772e6578616d706c652e636f6d",
+			"828684be58086e6f2d6361636865",
+			"828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"
+		};
+		String[] huffmanRequestBlocks = {
+			"828684418cf1e3c2e5f23a6ba0ab90f4ff",
+			"828684be5886a8eb10649cbf",
+			"828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"
+		};
+		String[][][] responses = {
+			{ { ":status", "302" }, { "cache-control", "private" }, { "date", "Mon, 21 Oct 2013 20:13:21 GMT" }, { "location", "https://www.example.com" } },
+			{ { ":status", "307" }, { "cache-control", "private" }, { "date", "Mon, 21 Oct 2013 20:13:21 GMT" }, { "location", "https://www.example.com" } },
+			{ { ":status", "200" }, { "cache-control", "private" }, { "date", "Mon, 21 Oct 2013 20:13:22 GMT" }, { "location", "https://www.example.com" }, { "content-encoding", "gzip" },
+				{ "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1" } }
+		};
+		String[] responseBlocks = {
+			"4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d",
+			"4803333037c1c0bf",
+			"88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a69707738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b2076657273696f6e3d31"
+		};
+		String[] huffmanResponseBlocks = {
+			"488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3",
+			"4883640effc1c0bf",
+			"88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007"
+		};
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		for(int i = 0; i < requests.length; i++)
+			check(requestBlocks[i].equals(toHex(encoder.encode(Arrays.asList(requests[i])))), "C.3." + (i + 1) + " encoded by Hpack.Encoder");
+		checkDecoder("C.3", requests, requestBlocks, "");
+		checkDecoder("C.4", requests, huffmanRequestBlocks, "");
+		/* The examples of C.5 and C.6 use a 256 bytes dynamic table, set by a dynamic table size update at the beginning of the first block */
+		checkDecoder("C.5", responses, responseBlocks, "3fe101");
+		checkDecoder("C.6", responses, huffmanResponseBlocks, "3fe101");
+	}
+	
+	/**
+	 * Decodes the header blocks of an example of RFC 7541 Appendix C with the same {@link Hpack.Decoder}
+	 * 
+	 * @param example
+	 * 		Section of the example
+	 * 
+	 * @param headers
+	 * 		Expected headers of each block
+	 * 
+	 * @param blocks
+	 * 		Header blocks, in hex
+	 * 
+	 * @param prefix
+	 * 		Bytes inserted before the first block, in hex
+	 * 
+	 * @throws IOException
+	 */
+	private static void checkDecoder(String example, String[][][] headers, String[] blocks, String prefix) throws IOException {
+		Hpack.Decoder decoder = new Hpack.Decoder();
+		for(int i = 0; i < blocks.length; i++) {
+			List<String[]> decoded = decoder.decode(fromHex((i == 0 ? prefix : "") + blocks[i]));
+			check(equal(Arrays.asList(headers[i]), decoded), example + "." + (i + 1) + " decoded by Hpack.Decoder");
+		}
+	}
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for(byte b : bytes)
+			hex.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return hex.toString();
+	}
+	
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+	
+	private static boolean equal(List<String[]> expected, List<String[]> actual) {
+		if(expected.size() != actual.size())
+			return false;
+		for(int i = 0; i < expected.size(); i++) {
+			if(!expected.get(i)[0].equals(actual.get(i)[0]) || !expected.get(i)[1].equals(actual.get(i)[1]))
+				return false;
+		}
+		return true;
+	}
+	
+	private static void checkTransport(H2cServer server) throws Exception {
+		final Http2Transport transport = new Http2Transport();
+		String base = server.getBaseUrl();
+		try {
+			Transport.Exchange exchange = transport.newExchange(HTTPVerb.GET, new URI(base + "/first?q=1"));
+			exchange.setTimeouts(2000, 2000);
+			exchange.addHeader("User-Agent", "RESTDroid");
+			exchange.addHeader("Connection", "keep-alive");
+			int statusCode = exchange.execute();
+			check(statusCode == 200 && "path=/first?q=1 ua=RESTDroid".equals(read(exchange.getResponseStream())), "GET response and body");
+			check("\"abc-1\"".equals(exchange.getResponseHeader("ETag")) && null != exchange.getResponseHeader("X-Custom-Header"), "response headers decoded");
+			exchange.release();
+	
+			StringBuilder body = new StringBuilder();
+			for(int i = 0; i < 1000; i++)
+				body.append((char) ('a' + i % 26));
+			exchange = transport.newExchange(HTTPVerb.POST, new URI(base + "/post"));
+			exchange.setTimeouts(2000, 2000);
+			exchange.setBody(new InputStreamRequestBody(new ByteArrayInputStream(body.toString().getBytes("UTF-8")), RequestBody.CONTENT_TYPE_JSON));
+			statusCode = exchange.execute();
+			check(statusCode == 201 && body.toString().equals(read(exchange.getResponseStream())), "POST body sent through a " + H2cServer.INITIAL_WINDOW_SIZE + " bytes window");
+			exchange.release();
+	
+			final int count = 200;
+			final CountDownLatch latch = new CountDownLatch(count);
+			final AtomicInteger succeeded = new AtomicInteger();
+			for(int i = 0; i < count; i++) {
+				Transport.Exchange asyncExchange = transport.newExchange(HTTPVerb.GET, new URI(base + "/n" + i));
+				asyncExchange.setTimeouts(5000, 5000);
+				asyncExchange.addHeader("User-Agent", "RESTDroid");
+				final String expected = "path=/n" + i + " ua=RESTDroid";
+				transport.executeAsync(asyncExchange, new AsyncTransport.ExchangeCallback() {
+					public void onResponse(Transport.Exchange exchange, int statusCode) {
+						try {
+							if(expected.equals(read(exchange.getResponseStream())))
+								succeeded.incrementAndGet();
+						} catch (IOException e) {
+							System.out.println("     " + e);
+						}
+						exchange.release();
+						latch.countDown();
+					}
+	
+					public void onFailure(Transport.Exchange exchange, IOException e) {
+						System.out.println("     " + e);
+						latch.countDown();
+					}
+				});
+			}
+			check(latch.await(30, TimeUnit.SECONDS) && succeeded.get() == count, count + " multiplexed exchanges (" + succeeded.get() + " succeeded)");
+			check(server.getMaxActiveStreams() <= H2cServer.MAX_CONCURRENT_STREAMS, "at most " + H2cServer.MAX_CONCURRENT_STREAMS + " concurrent streams (" + server.getMaxActiveStreams() + ")");
+	
+			File cacheDir = new File(System.getProperty("java.io.tmpdir"), "h2c-check");
+			CacheManager.setCacheDir(cacheDir);
+			CacheManager.setSpillThreshold(64 * 1024);
+			exchange = transport.newExchange(HTTPVerb.GET, new URI(base + "/large"));
+			exchange.setTimeouts(2000, 2000);
+			statusCode = exchange.execute();
+			int spilled = CacheManager.getSpillDir().list().length;
+			check(statusCode == 200 && spilled == 1 && Arrays.equals(H2cServer.getLargeBody(), readBytes(exchange.getResponseStream())), "large response spilled to a temporary file");
+			exchange.release();
+			check(CacheManager.getSpillDir().list().length == 0, "temporary file deleted on release");
+	
+			exchange = transport.newExchange(HTTPVerb.GET, new URI(base + "/slow"));
+			exchange.setTimeouts(2000, 1000);
+			try {
+				exchange.execute();
+				check(false, "read timeout");
+			} catch (IOException e) {
+				check(true, "read timeout : " + e);
+			}
+	
+			exchange = transport.newExchange(HTTPVerb.GET, new URI(base + "/slow-aborted"));
+			exchange.setTimeouts(2000, 10000);
+			final Transport.Exchange aborted = exchange;
+			new Thread() {
+				public void run() {
+					try {
+						Thread.sleep(300);
+					} catch (InterruptedException e) {
+						return;
+					}
+					aborted.abort();
+				}
+			}.start();
+			try {
+				exchange.execute();
+				check(false, "abort");
+			} catch (IOException e) {
+				check(true, "abort : " + e);
+			}
+	
+			exchange = transport.newExchange(HTTPVerb.GET, new URI(base + "/after"));
+			exchange.setTimeouts(2000, 2000);
+			statusCode = exchange.execute();
+			check(statusCode == 200 && "path=/after ua=null".equals(read(exchange.getResponseStream())), "connection usable after a timeout and an abort");
+			exchange.release();
+	
+			check(server.getConnections() == 1, "single connection (" + server.getConnections() + ")");
+			check(server.getErrors() == 0, "no protocol error seen by the server (" + server.getErrors() + ")");
+		} finally {
+			transport.shutdown();
+		}
+	}
+	
+}
@@ -0,0 +1,39 @@
+package android.util;
+
+/**
+ * <b>Stand-in for android.util.Log outside of Android, printing to the standard error</b>
+ * 
+ * @author Pierre Criulanscy
+ * 
+ * @version 0.9
+ */
+public final class Log {
+	
+	private Log() {}
+	
+	public static int i(String tag, String msg) {
+		return println("I", tag, msg, null);
+	}
+	
+	public static int w(String tag, String msg) {
+		return println("W", tag, msg, null);
+	}
+	
+	public static int w(String tag, String msg, Throwable tr) {
+		return println("W", tag, msg, tr);
+	}
+	
+	public static int e(String tag, String msg) {
+		return println("E", tag, msg, null);
+	}
+	
+	public static int e(String tag, String msg, Throwable tr) {
+		return println("E", tag, msg, tr);
+	}
+	
+	private static int println(String priority, String tag, String msg, Throwable tr) {
+		System.err.println(priority + "/" + tag + ": " + msg + (null != tr ? " : " + tr : ""));
+		return 0;
+	}
+	
+}